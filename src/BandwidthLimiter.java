@@ -0,0 +1,116 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limitador hierarquico: cada transferencia passa primeiro pelo balde do peer e depois
+ * pelo balde global. A taxa de cada peer e o minimo entre o limite por peer configurado
+ * e a fatia justa do limite global entre os peers ativos.
+ */
+public class BandwidthLimiter {
+    private static final long ACTIVE_WINDOW_NS = TimeUnit.SECONDS.toNanos(2);
+    private static final double BURST_SECONDS = 0.25;
+    private static final long MIN_BURST = 16 * 1024;
+
+    private final String name;
+    private volatile long globalRate;
+    private volatile long perPeerRate;
+    private final TokenBucket global;
+    private final Map<String, PeerState> peers = new ConcurrentHashMap<>();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+    private volatile long windowStart = System.nanoTime();
+    private volatile long windowBytes;
+    private volatile double lastUtilization;
+
+    public BandwidthLimiter(String name, long globalRate, long perPeerRate, Metrics metrics) {
+        this.name = name;
+        this.globalRate = globalRate;
+        this.perPeerRate = perPeerRate;
+        this.global = new TokenBucket(globalRate, burstFor(globalRate));
+        metrics.registerGauge(name + "_rate_limit_bytes", () -> this.globalRate);
+        metrics.registerGauge(name + "_peer_rate_limit_bytes", () -> this.perPeerRate);
+        metrics.registerCounter(name + "_bytes_total", bytes::sum);
+        metrics.registerCounter(name + "_throttled_ms_total", () -> throttledNanos.sum() / 1_000_000);
+        metrics.registerGauge(name + "_active_peers", this::activePeerCount);
+        metrics.registerGauge(name + "_utilization", this::utilization);
+    }
+
+    public void setLimits(long globalRate, long perPeerRate) {
+        this.globalRate = globalRate;
+        this.perPeerRate = perPeerRate;
+        global.setRate(globalRate, burstFor(globalRate));
+        System.out.printf("Limite de %s: global %s, por peer %s%n", name, describe(globalRate), describe(perPeerRate));
+    }
+
+    public void acquire(String peerAddress, long amount) throws InterruptedException {
+        long now = System.nanoTime();
+        PeerState state = peers.computeIfAbsent(peerAddress, k -> new PeerState());
+        state.lastActive = now;
+        bytes.add(amount);
+        synchronized (this) {
+            windowBytes += amount;
+        }
+
+        long peerRate = effectivePeerRate(now);
+        if (state.bucket.getRate() != peerRate) {
+            state.bucket.setRate(peerRate, burstFor(peerRate));
+        }
+        long waitNanos = Math.max(state.bucket.reserve(amount), global.reserve(amount));
+        if (waitNanos > 0) {
+            throttledNanos.add(waitNanos);
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private long effectivePeerRate(long now) {
+        long fairShare = 0;
+        if (globalRate > 0) {
+            fairShare = Math.max(1, globalRate / Math.max(1, activePeerCount(now)));
+        }
+        if (perPeerRate > 0 && (fairShare == 0 || perPeerRate < fairShare)) {
+            return perPeerRate;
+        }
+        return fairShare;
+    }
+
+    private int activePeerCount() {
+        return activePeerCount(System.nanoTime());
+    }
+
+    private int activePeerCount(long now) {
+        peers.values().removeIf(p -> now - p.lastActive > ACTIVE_WINDOW_NS * 30);
+        int active = 0;
+        for (PeerState state : peers.values()) {
+            if (now - state.lastActive <= ACTIVE_WINDOW_NS) active++;
+        }
+        return active;
+    }
+
+    /** Taxa observada nos ultimos ~2 s como fracao do limite global (0 se ilimitado). */
+    synchronized double utilization() {
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed >= ACTIVE_WINDOW_NS) {
+            double observedRate = windowBytes * 1_000_000_000.0 / elapsed;
+            lastUtilization = globalRate > 0 ? observedRate / globalRate : 0.0;
+            windowBytes = 0;
+            windowStart = now;
+        }
+        return lastUtilization;
+    }
+
+    private static long burstFor(long rate) {
+        return Math.max(MIN_BURST, (long) (rate * BURST_SECONDS));
+    }
+
+    private static String describe(long rate) {
+        return rate > 0 ? rate + " B/s" : "ilimitado";
+    }
+
+    private static class PeerState {
+        final TokenBucket bucket = new TokenBucket(0, MIN_BURST);
+        volatile long lastActive;
+    }
+}
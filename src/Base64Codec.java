@@ -0,0 +1,138 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Base64 padrao (com padding) operando sobre fatias de arrays, para que o caminho de
+ * chunks codifique e decodifique direto em buffers do {@link BufferPool}.
+ */
+final class Base64Codec {
+    private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final int[] DECODE = new int[256];
+    // Dois caracteres de saida para cada 12 bits de entrada: metade das consultas do laco principal.
+    private static final short[] ENCODE_PAIRS = new short[1 << 12];
+
+    static {
+        Arrays.fill(DECODE, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE[ALPHABET[i]] = i;
+        }
+        for (int i = 0; i < ENCODE_PAIRS.length; i++) {
+            ENCODE_PAIRS[i] = (short) (ALPHABET[i >>> 6] << 8 | ALPHABET[i & 63]);
+        }
+    }
+
+    private Base64Codec() {
+    }
+
+    static int encodedLength(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    static int encode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        int end = off + len;
+        int d = dstOff;
+        int i = off;
+        // Le 8 bytes de uma vez, usa 6 deles e grava 8 caracteres de uma vez.
+        for (; i + 8 <= end; i += 6) {
+            long bits = (long) LONG_BE.get(src, i);
+            long out = (long) ENCODE_PAIRS[(int) (bits >>> 52)] << 48
+                    | (long) (ENCODE_PAIRS[(int) (bits >>> 40) & 0xfff] & 0xffff) << 32
+                    | (long) (ENCODE_PAIRS[(int) (bits >>> 28) & 0xfff] & 0xffff) << 16
+                    | (ENCODE_PAIRS[(int) (bits >>> 16) & 0xfff] & 0xffff);
+            LONG_BE.set(dst, d, out);
+            d += 8;
+        }
+        for (; i + 3 <= end; i += 3) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            short high = ENCODE_PAIRS[bits >>> 12];
+            short low = ENCODE_PAIRS[bits & 0xfff];
+            dst[d] = (byte) (high >> 8);
+            dst[d + 1] = (byte) high;
+            dst[d + 2] = (byte) (low >> 8);
+            dst[d + 3] = (byte) low;
+            d += 4;
+        }
+        int remaining = end - i;
+        if (remaining > 0) {
+            int bits = (src[i] & 0xff) << 16 | (remaining == 2 ? (src[i + 1] & 0xff) << 8 : 0);
+            dst[d++] = ALPHABET[(bits >>> 18) & 63];
+            dst[d++] = ALPHABET[(bits >>> 12) & 63];
+            dst[d++] = remaining == 2 ? ALPHABET[(bits >>> 6) & 63] : (byte) '=';
+            dst[d++] = '=';
+        }
+        return d - dstOff;
+    }
+
+    static int decodedLength(byte[] src, int off, int len) {
+        if (len == 0 || len % 4 != 0) {
+            return len == 0 ? 0 : -1;
+        }
+        int padding = 0;
+        if (src[off + len - 1] == '=') padding++;
+        if (src[off + len - 2] == '=') padding++;
+        return len / 4 * 3 - padding;
+    }
+
+    /**
+     * Devolve o numero de bytes decodificados ou -1 se a entrada nao for Base64 valido.
+     */
+    static int decode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        int decodedLength = decodedLength(src, off, len);
+        if (decodedLength < 0) {
+            return -1;
+        }
+        int end = off + len;
+        int d = dstOff;
+        int fullEnd = end - 4;
+        int i = off;
+        // Oito caracteres viram seis bytes; a escrita de 8 bytes sobrepoe os 2 seguintes,
+        // que a proxima iteracao regrava, entao so vale enquanto houver folga no destino.
+        for (; i + 8 <= fullEnd && d + 8 <= dst.length; i += 8) {
+            long chars = (long) LONG_BE.get(src, i);
+            long bits = (long) DECODE[(int) (chars >>> 56)] << 42
+                    | (long) DECODE[(int) (chars >>> 48) & 0xff] << 36
+                    | (long) DECODE[(int) (chars >>> 40) & 0xff] << 30
+                    | (long) DECODE[(int) (chars >>> 32) & 0xff] << 24
+                    | (long) DECODE[(int) (chars >>> 24) & 0xff] << 18
+                    | (long) DECODE[(int) (chars >>> 16) & 0xff] << 12
+                    | (long) DECODE[(int) (chars >>> 8) & 0xff] << 6
+                    | (long) DECODE[(int) chars & 0xff];
+            if (bits < 0) {
+                return -1;
+            }
+            LONG_BE.set(dst, d, bits << 16);
+            d += 6;
+        }
+        for (; i < fullEnd; i += 4) {
+            int bits = DECODE[src[i] & 0xff] << 18 | DECODE[src[i + 1] & 0xff] << 12
+                    | DECODE[src[i + 2] & 0xff] << 6 | DECODE[src[i + 3] & 0xff];
+            if (bits < 0) {
+                return -1;
+            }
+            dst[d] = (byte) (bits >>> 16);
+            dst[d + 1] = (byte) (bits >>> 8);
+            dst[d + 2] = (byte) bits;
+            d += 3;
+        }
+        for (; i < end; i += 4) {
+            int a = DECODE[src[i] & 0xff];
+            int b = DECODE[src[i + 1] & 0xff];
+            boolean last = i + 4 == end;
+            int c = last && src[i + 2] == '=' ? 0 : DECODE[src[i + 2] & 0xff];
+            int e = last && src[i + 3] == '=' ? 0 : DECODE[src[i + 3] & 0xff];
+            if ((a | b | c | e) < 0) {
+                return -1;
+            }
+            int bits = a << 18 | b << 12 | c << 6 | e;
+            dst[d++] = (byte) (bits >>> 16);
+            if (d - dstOff < decodedLength) dst[d++] = (byte) (bits >>> 8);
+            if (d - dstOff < decodedLength) dst[d++] = (byte) bits;
+        }
+        return d - dstOff;
+    }
+}
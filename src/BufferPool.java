@@ -0,0 +1,72 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool de arrays reutilizaveis em classes de tamanho potencia de dois. Buffers maiores
+ * que a maior classe sao alocados normalmente e descartados na devolucao.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SHIFT = 24;
+    private static final int MAX_PER_CLASS = 64;
+
+    private final List<ConcurrentLinkedDeque<byte[]>> free;
+    private final AtomicInteger[] freeCounts;
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+
+    public BufferPool() {
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+        free = new ArrayList<>(classes);
+        freeCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free.add(new ConcurrentLinkedDeque<>());
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    public void registerMetrics(Metrics metrics, String prefix) {
+        metrics.registerCounter(prefix + "_reused_total", reused::sum);
+        metrics.registerCounter(prefix + "_allocated_total", allocated::sum);
+    }
+
+    public byte[] acquire(int minSize) {
+        int shift = shiftFor(minSize);
+        if (shift > MAX_SHIFT) {
+            allocated.increment();
+            return new byte[minSize];
+        }
+        int index = shift - MIN_SHIFT;
+        byte[] buffer = free.get(index).pollFirst();
+        if (buffer != null) {
+            freeCounts[index].decrementAndGet();
+            reused.increment();
+            return buffer;
+        }
+        allocated.increment();
+        return new byte[1 << shift];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer == null || Integer.bitCount(buffer.length) != 1) {
+            return;
+        }
+        int shift = Integer.numberOfTrailingZeros(buffer.length);
+        if (shift < MIN_SHIFT || shift > MAX_SHIFT) {
+            return;
+        }
+        int index = shift - MIN_SHIFT;
+        if (freeCounts[index].incrementAndGet() > MAX_PER_CLASS) {
+            freeCounts[index].decrementAndGet();
+            return;
+        }
+        free.get(index).offerFirst(buffer);
+    }
+
+    private static int shiftFor(int size) {
+        return Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+    }
+}
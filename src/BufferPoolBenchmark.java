@@ -0,0 +1,97 @@
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Mede bytes alocados por chunk no caminho DL/FILE (montagem da resposta no servidor e
+ * decodificacao no cliente), comparando o caminho antigo baseado em String com o caminho
+ * de buffers do pool. Uso: java BufferPoolBenchmark [iteracoes] [tamanhos...]
+ */
+public class BufferPoolBenchmark {
+    private static final String HEADER = "127.0.0.1:5000 42 FILE arquivo.bin ";
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int[] chunkSizes = args.length > 1
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[]{256, 4096, 65536};
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.err.println("JVM nao suporta contagem de alocacao por thread.");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        System.out.printf("%-10s %-8s %14s %12s%n", "chunk", "caminho", "bytes/chunk", "ns/chunk");
+        for (int chunkSize : chunkSizes) {
+            byte[] chunk = new byte[chunkSize];
+            ThreadLocalRandom.current().nextBytes(chunk);
+            BufferPool pool = new BufferPool();
+            long checksum = 0;
+            for (int warmup = 0; warmup < 3; warmup++) {
+                for (int i = 0; i < iterations / 10; i++) {
+                    checksum += legacy(chunk, i) + pooled(pool, chunk, i);
+                }
+            }
+            report(threads, "legacy", chunkSize, iterations, () -> {
+                long sum = 0;
+                for (int i = 0; i < iterations; i++) sum += legacy(chunk, i);
+                return sum;
+            });
+            report(threads, "pool", chunkSize, iterations, () -> {
+                long sum = 0;
+                for (int i = 0; i < iterations; i++) sum += pooled(pool, chunk, i);
+                return sum;
+            });
+            if (checksum == 42) System.out.print("");
+        }
+    }
+
+    private static void report(com.sun.management.ThreadMXBean threads, String name, int chunkSize, int iterations, Run run) {
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long result = run.execute();
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        System.out.printf("%-10d %-8s %14d %12d%s%n", chunkSize, name, allocated / iterations, elapsed / iterations, result == 0 ? " (?)" : "");
+    }
+
+    private static long legacy(byte[] chunk, int index) {
+        String b64 = Base64.getEncoder().encodeToString(chunk);
+        StringBuilder line = new StringBuilder(HEADER).append(chunk.length).append(' ').append(index).append(' ').append(b64);
+        byte[] wire = (line.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+        String received = new String(wire, 0, wire.length - 1, StandardCharsets.UTF_8);
+        String[] parts = received.split(" ", 4);
+        String[] fileArgs = parts[3].split(" ", 4);
+        byte[] decoded = Base64.getDecoder().decode(fileArgs[3]);
+        return decoded.length + decoded[decoded.length - 1];
+    }
+
+    private static long pooled(BufferPool pool, byte[] chunk, int index) {
+        try (MessageBuffer response = new MessageBuffer(pool)) {
+            response.append(HEADER).append(chunk.length).append(' ').append(index).append(' ');
+            response.appendBase64(chunk, 0, chunk.length);
+            response.append('\n');
+            response.setLength(response.length() - 1);
+            MessageTokenizer tokens = new MessageTokenizer(response);
+            tokens.readHeader();
+            tokens.next();
+            tokens.nextLong();
+            tokens.nextInt();
+            tokens.next();
+            int payloadStart = tokens.tokenStart();
+            int payloadLength = tokens.tokenEnd() - payloadStart;
+            try (MessageBuffer decoded = new MessageBuffer(pool, Base64Codec.decodedLength(response.array(), payloadStart, payloadLength))) {
+                int length = Base64Codec.decode(response.array(), payloadStart, payloadLength, decoded.array(), 0);
+                return length + decoded.array()[length - 1];
+            }
+        }
+    }
+
+    private interface Run {
+        long execute();
+    }
+}
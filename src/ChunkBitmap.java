@@ -0,0 +1,149 @@
+import java.util.Arrays;
+
+/**
+ * Mapa de bits de chunks indexado por {@code long}, para arquivos com mais de 2^31 chunks
+ * (o {@link java.util.BitSet} so aceita indices {@code int}). Mantem a contagem de bits
+ * ligados, para que progresso e conclusao nao percorram o mapa. Nao e sincronizado.
+ *
+ * <p>{@link #toByteArray()} e {@link #valueOf} usam o mesmo formato de
+ * {@code BitSet.toByteArray()}, que e o que trafega em HAVE.
+ */
+class ChunkBitmap {
+    private static final long MAX_SIZE = (long) (Integer.MAX_VALUE - 8) * Long.SIZE;
+
+    private final long size;
+    private final long[] words;
+    private long cardinality;
+
+    ChunkBitmap(long size) {
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Numero de chunks fora do suportado: " + size);
+        }
+        this.size = size;
+        this.words = new long[(int) ((size + Long.SIZE - 1) / Long.SIZE)];
+    }
+
+    /**
+     * Le um mapa no formato de {@code BitSet.toByteArray()}; bits alem de {@code size} sao ignorados.
+     */
+    static ChunkBitmap valueOf(byte[] bytes, long size) {
+        ChunkBitmap bitmap = new ChunkBitmap(size);
+        int limit = (int) Math.min(bytes.length, (size + 7) / 8);
+        for (int i = 0; i < limit; i++) {
+            bitmap.words[i >>> 3] |= (bytes[i] & 0xffL) << ((i & 7) * 8);
+        }
+        if (size % Long.SIZE != 0 && bitmap.words.length > 0) {
+            bitmap.words[bitmap.words.length - 1] &= (1L << (size % Long.SIZE)) - 1;
+        }
+        for (long word : bitmap.words) {
+            bitmap.cardinality += Long.bitCount(word);
+        }
+        return bitmap;
+    }
+
+    long size() {
+        return size;
+    }
+
+    long cardinality() {
+        return cardinality;
+    }
+
+    boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    boolean isFull() {
+        return cardinality == size;
+    }
+
+    boolean get(long index) {
+        return index >= 0 && index < size && (words[(int) (index >>> 6)] & (1L << index)) != 0;
+    }
+
+    /** Liga o bit; devolve false se ja estava ligado. */
+    boolean set(long index) {
+        checkIndex(index);
+        int w = (int) (index >>> 6);
+        long mask = 1L << index;
+        if ((words[w] & mask) != 0) {
+            return false;
+        }
+        words[w] |= mask;
+        cardinality++;
+        return true;
+    }
+
+    /** Desliga o bit; devolve false se ja estava desligado. */
+    boolean clear(long index) {
+        checkIndex(index);
+        int w = (int) (index >>> 6);
+        long mask = 1L << index;
+        if ((words[w] & mask) == 0) {
+            return false;
+        }
+        words[w] &= ~mask;
+        cardinality--;
+        return true;
+    }
+
+    /** Liga todos os bits. */
+    void setAll() {
+        Arrays.fill(words, -1L);
+        if (size % Long.SIZE != 0 && words.length > 0) {
+            words[words.length - 1] = (1L << (size % Long.SIZE)) - 1;
+        }
+        cardinality = size;
+    }
+
+    /** Proximo bit ligado a partir de {@code from}, ou -1. */
+    long nextSetBit(long from) {
+        if (from < 0) from = 0;
+        if (from >= size) return -1;
+        int w = (int) (from >>> 6);
+        long word = words[w] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                long index = ((long) w << 6) + Long.numberOfTrailingZeros(word);
+                return index < size ? index : -1;
+            }
+            if (++w == words.length) return -1;
+            word = words[w];
+        }
+    }
+
+    /** Proximo bit desligado a partir de {@code from}, ou {@link #size()} se nao houver. */
+    long nextClearBit(long from) {
+        if (from < 0) from = 0;
+        if (from >= size) return size;
+        int w = (int) (from >>> 6);
+        long word = ~words[w] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return Math.min(size, ((long) w << 6) + Long.numberOfTrailingZeros(word));
+            }
+            if (++w == words.length) return size;
+            word = ~words[w];
+        }
+    }
+
+    byte[] toByteArray() {
+        int lastWord = words.length - 1;
+        while (lastWord >= 0 && words[lastWord] == 0) lastWord--;
+        if (lastWord < 0) {
+            return new byte[0];
+        }
+        int length = lastWord * 8 + (Long.SIZE - Long.numberOfLeadingZeros(words[lastWord]) + 7) / 8;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (words[i >>> 3] >>> ((i & 7) * 8));
+        }
+        return bytes;
+    }
+
+    private void checkIndex(long index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Chunk " + index + " fora de [0, " + size + ")");
+        }
+    }
+}
@@ -0,0 +1,302 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Cache de chunks servidos guardado fora do heap, em paginas de {@link ByteBuffer} diretos
+ * divididas em classes de tamanho potencia de dois (no estilo slab). Cada classe mantem
+ * seu proprio LRU; uma entrada so desaloja outra da mesma classe. Quando todas as paginas ja
+ * foram distribuidas, uma classe sem nada para desalojar toma a pagina usada ha mais tempo de
+ * outra classe.
+ */
+public class ChunkCache {
+    static final int PAGE_SIZE = 1 << 20;
+    /**
+     * Maior chunk cru que ainda cabe numa pagina depois de virar Base64 (4/3 do tamanho) com o
+     * nome do codec no fim; chunks maiores sao servidos sem cache.
+     */
+    static final int MAX_CACHED_CHUNK_BYTES = (PAGE_SIZE - 64) / 4 * 3;
+    private static final int MIN_SLOT_SHIFT = 8;
+    private static final int MAX_SLOT_SHIFT = 20;
+
+    private final long capacity;
+    private long allocated;
+    private long bytesUsed;
+    private final SizeClass[] classes = new SizeClass[MAX_SLOT_SHIFT - MIN_SLOT_SHIFT + 1];
+    private final Map<Key, Entry> entries = new HashMap<>();
+    private final Map<String, Set<Key>> keysByFile = new HashMap<>();
+    private final LinkedHashMap<Page, Page> pageLru = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long pageSteals;
+    private long skipped;
+
+    public ChunkCache(long capacity, Metrics metrics) {
+        this.capacity = roundCapacity(capacity);
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(1 << (MIN_SLOT_SHIFT + i));
+        }
+        metrics.registerGauge("chunk_cache_capacity_bytes", () -> this.capacity);
+        metrics.registerGauge("chunk_cache_allocated_bytes", this::getAllocated);
+        metrics.registerGauge("chunk_cache_used_bytes", this::getBytesUsed);
+        metrics.registerGauge("chunk_cache_entries", this::size);
+        metrics.registerCounter("chunk_cache_hits_total", this::getHits);
+        metrics.registerCounter("chunk_cache_misses_total", this::getMisses);
+        metrics.registerCounter("chunk_cache_evictions_total", this::getEvictions);
+        metrics.registerCounter("chunk_cache_page_steals_total", this::getPageSteals);
+        metrics.registerCounter("chunk_cache_skipped_total", this::getSkipped);
+    }
+
+    /** Capacidade efetiva: abaixo de uma pagina nenhuma classe conseguiria guardar nada. */
+    static long roundCapacity(long capacity) {
+        return capacity <= 0 ? 0 : Math.max(capacity, PAGE_SIZE);
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Copia o conteudo em cache para o fim de {@code dst}. Devolve false em caso de miss.
+     */
+    public synchronized boolean appendTo(Key key, MessageBuffer dst) {
+        if (!isEnabled()) {
+            return false;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return false;
+        }
+        hits++;
+        entry.sizeClass.lru.get(key);
+        pageLru.get(entry.sizeClass.pageOf(entry.slot));
+        int start = dst.length();
+        dst.setLength(start + entry.length);
+        entry.sizeClass.slice(entry.slot).get(dst.array(), start, entry.length);
+        return true;
+    }
+
+    public void put(Key key, byte[] data) {
+        put(key, data, 0, data.length);
+    }
+
+    public synchronized void put(Key key, byte[] data, int offset, int length) {
+        if (!isEnabled() || entries.containsKey(key)) {
+            return;
+        }
+        if (length > PAGE_SIZE) {
+            if (skipped++ == 0) {
+                System.out.printf("Cache de chunks: entradas acima de %d bytes (chunks de mais de %d bytes) nao sao guardadas.%n",
+                        PAGE_SIZE, MAX_CACHED_CHUNK_BYTES);
+            }
+            return;
+        }
+        SizeClass sizeClass = classFor(length);
+        int slot = sizeClass.takeSlot();
+        if (slot < 0) {
+            return;
+        }
+        sizeClass.slice(slot).put(data, offset, length);
+        Entry entry = new Entry(key, sizeClass, slot, length);
+        entries.put(key, entry);
+        sizeClass.lru.put(key, entry);
+        pageLru.get(sizeClass.pageOf(slot));
+        keysByFile.computeIfAbsent(key.file, k -> new HashSet<>()).add(key);
+        bytesUsed += length;
+    }
+
+    public synchronized void invalidate(String file) {
+        Set<Key> keys = keysByFile.remove(file);
+        if (keys == null) {
+            return;
+        }
+        for (Key key : keys) {
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                entry.sizeClass.lru.remove(key);
+                entry.sizeClass.freeSlots.push(entry.slot);
+                bytesUsed -= entry.length;
+            }
+        }
+    }
+
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    public synchronized long getEvictions() { return evictions; }
+    public synchronized long getPageSteals() { return pageSteals; }
+    public synchronized long getSkipped() { return skipped; }
+    public synchronized long getAllocated() { return allocated; }
+    public synchronized long getBytesUsed() { return bytesUsed; }
+    public synchronized int size() { return entries.size(); }
+
+    private SizeClass classFor(int length) {
+        int shift = Math.max(MIN_SLOT_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, length) - 1));
+        return classes[shift - MIN_SLOT_SHIFT];
+    }
+
+    private void evict(Entry entry) {
+        entries.remove(entry.key);
+        Set<Key> keys = keysByFile.get(entry.key.file);
+        if (keys != null) {
+            keys.remove(entry.key);
+            if (keys.isEmpty()) keysByFile.remove(entry.key.file);
+        }
+        bytesUsed -= entry.length;
+        evictions++;
+    }
+
+    /**
+     * Tira de outra classe a pagina acessada ha mais tempo, desalojando as entradas dela, e a
+     * entrega a {@code thief}. Devolve false se nenhuma outra classe tem pagina.
+     */
+    private boolean stealPage(SizeClass thief) {
+        Page victim = null;
+        for (Page page : pageLru.keySet()) {
+            if (page.owner != thief) {
+                victim = page;
+                break;
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        victim.owner.release(victim);
+        thief.adopt(victim);
+        pageLru.get(victim);
+        pageSteals++;
+        return true;
+    }
+
+    private class SizeClass {
+        final int slotSize;
+        final int slotsPerPage;
+        /** Indice da pagina = slot / slotsPerPage; paginas tomadas por outra classe viram null. */
+        final List<Page> pages = new ArrayList<>();
+        final Deque<Integer> freeSlots = new ArrayDeque<>();
+        final LinkedHashMap<Key, Entry> lru = new LinkedHashMap<>(16, 0.75f, true);
+
+        SizeClass(int slotSize) {
+            this.slotSize = slotSize;
+            this.slotsPerPage = PAGE_SIZE / slotSize;
+        }
+
+        int takeSlot() {
+            if (freeSlots.isEmpty() && allocated + PAGE_SIZE <= capacity) {
+                Page page = new Page(ByteBuffer.allocateDirect(PAGE_SIZE));
+                allocated += PAGE_SIZE;
+                adopt(page);
+                pageLru.put(page, page);
+            }
+            if (freeSlots.isEmpty()) {
+                Iterator<Entry> eldest = lru.values().iterator();
+                if (!eldest.hasNext()) {
+                    return stealPage(this) ? freeSlots.pop() : -1;
+                }
+                Entry victim = eldest.next();
+                eldest.remove();
+                evict(victim);
+                return victim.slot;
+            }
+            return freeSlots.pop();
+        }
+
+        /** Passa a usar {@code page}, no primeiro buraco da lista ou no fim, com todos os slots livres. */
+        void adopt(Page page) {
+            int index = pages.indexOf(null);
+            if (index < 0) {
+                index = pages.size();
+                pages.add(page);
+            } else {
+                pages.set(index, page);
+            }
+            page.owner = this;
+            page.index = index;
+            int base = index * slotsPerPage;
+            for (int i = slotsPerPage - 1; i >= 0; i--) {
+                freeSlots.push(base + i);
+            }
+        }
+
+        /** Desaloja as entradas de {@code page} e devolve a pagina, deixando um buraco no lugar. */
+        void release(Page page) {
+            int index = page.index;
+            lru.values().removeIf(entry -> {
+                if (entry.slot / slotsPerPage != index) {
+                    return false;
+                }
+                evict(entry);
+                return true;
+            });
+            freeSlots.removeIf(slot -> slot / slotsPerPage == index);
+            pages.set(index, null);
+        }
+
+        Page pageOf(int slot) {
+            return pages.get(slot / slotsPerPage);
+        }
+
+        ByteBuffer slice(int slot) {
+            ByteBuffer page = pageOf(slot).buffer.duplicate();
+            int start = (slot % slotsPerPage) * slotSize;
+            page.limit(start + slotSize).position(start);
+            return page;
+        }
+    }
+
+    private static class Page {
+        final ByteBuffer buffer;
+        SizeClass owner;
+        int index;
+
+        Page(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Entry {
+        final Key key;
+        final SizeClass sizeClass;
+        final int slot;
+        final int length;
+
+        Entry(Key key, SizeClass sizeClass, int slot, int length) {
+            this.key = key;
+            this.sizeClass = sizeClass;
+            this.slot = slot;
+            this.length = length;
+        }
+    }
+
+    public static class Key {
+        final String file;
+        final long lastModified;
+        final long fileSize;
+        final long offset;
+        final int length;
+        final String encoding;
+
+        public Key(String file, long lastModified, long fileSize, long offset, int length, String encoding) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.fileSize = fileSize;
+            this.offset = offset;
+            this.length = length;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return lastModified == key.lastModified && fileSize == key.fileSize && offset == key.offset
+                    && length == key.length && file.equals(key.file) && encoding.equals(key.encoding);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, lastModified, fileSize, offset, length, encoding);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compressao aplicada ao conteudo de um chunk antes do Base64. Quem baixa anuncia no DL os
+ * codecs que aceita ({@code DL <nome> <tam_chunk> <indice> deflate}); quem serve escolhe o
+ * primeiro que conhece e marca o FILE com o nome do codec, ou manda o chunk cru se a
+ * compressao nao compensar. Novos codecs entram com {@link #register}.
+ */
+interface ChunkCodec {
+    /** Nome usado no protocolo; sem espacos nem virgulas. */
+    String getName();
+
+    /**
+     * Comprime {@code src[off, off+len)} no inicio de {@code dst}, sem passar de {@code limit}
+     * bytes. Devolve o tamanho comprimido, ou -1 se o resultado nao coube no limite.
+     */
+    int compress(byte[] src, int off, int len, byte[] dst, int limit);
+
+    /**
+     * Descomprime {@code src[off, off+len)} no inicio de {@code dst}, que deve resultar em
+     * exatamente {@code expected} bytes.
+     */
+    void decompress(byte[] src, int off, int len, byte[] dst, int expected) throws IOException;
+
+    Map<String, ChunkCodec> REGISTRY = new ConcurrentHashMap<>(Map.of(DeflateCodec.NAME, new DeflateCodec()));
+
+    static void register(ChunkCodec codec) {
+        REGISTRY.put(codec.getName(), codec);
+    }
+
+    /** Codec registrado com esse nome, ou null. */
+    static ChunkCodec forName(String name) {
+        return name == null ? null : REGISTRY.get(name);
+    }
+
+    /**
+     * Primeiro codec conhecido de uma lista separada por virgulas (como chega no DL), ou null
+     * se nenhum for conhecido.
+     */
+    static ChunkCodec negotiate(String offered) {
+        if (offered == null || offered.isEmpty()) {
+            return null;
+        }
+        for (String name : offered.split(",")) {
+            ChunkCodec codec = REGISTRY.get(name);
+            if (codec != null) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Valida uma lista de codecs vinda da configuracao ({@code none} ou vazia desativa).
+     * Devolve a lista normalizada ou lanca {@link IllegalArgumentException}.
+     */
+    static String parseAccepted(String value) {
+        if (value == null || value.isEmpty() || value.equals("none")) {
+            return "";
+        }
+        List<String> names = new ArrayList<>();
+        for (String name : value.split(",")) {
+            if (!REGISTRY.containsKey(name)) {
+                throw new IllegalArgumentException("Codec desconhecido: " + name + " (disponiveis: " + REGISTRY.keySet() + ")");
+            }
+            names.add(name);
+        }
+        return String.join(",", names);
+    }
+}
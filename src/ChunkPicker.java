@@ -0,0 +1,142 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongPredicate;
+
+/**
+ * Escolhe o proximo chunk a pedir para uma fonte, preferindo os chunks disponiveis
+ * no menor numero de fontes (rarest-first) e desempatando aleatoriamente. Indices sao
+ * {@code long}; a contagem por chunk so e alocada, em paginas, onde ha fontes parciais.
+ *
+ * <p>Os chunks pendentes ficam em baldes pela contagem de fontes parciais que os tem
+ * ({@code buckets.get(n)}), atualizados a cada HAVE; {@link #next} procura so no balde mais
+ * baixo em que a fonte tem algum chunk, a partir de uma posicao sorteada.
+ */
+class ChunkPicker {
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+    private final long numChunks;
+    private final ChunkBitmap pending;
+    private final ChunkBitmap done;
+    private final int[][] availability;
+    private final List<ChunkBitmap> buckets = new ArrayList<>();
+    private final Map<String, ChunkBitmap> partialSources = new HashMap<>();
+    private final Set<String> completeSources = new HashSet<>();
+
+    ChunkPicker(long numChunks) {
+        this.numChunks = numChunks;
+        this.pending = new ChunkBitmap(numChunks);
+        this.pending.setAll();
+        this.done = new ChunkBitmap(numChunks);
+        this.availability = new int[(int) ((numChunks + PAGE_MASK) >>> PAGE_BITS)][];
+        ChunkBitmap unavailable = new ChunkBitmap(numChunks);
+        unavailable.setAll();
+        buckets.add(unavailable);
+    }
+
+    synchronized void updateSource(String address, ChunkBitmap have, boolean complete) {
+        removeSource(address);
+        if (complete) {
+            completeSources.add(address);
+            return;
+        }
+        partialSources.put(address, have);
+        for (long i = have.nextSetBit(0); i >= 0 && i < numChunks; i = have.nextSetBit(i + 1)) {
+            addAvailability(i, 1);
+        }
+    }
+
+    synchronized void removeSource(String address) {
+        completeSources.remove(address);
+        ChunkBitmap previous = partialSources.remove(address);
+        if (previous != null) {
+            for (long i = previous.nextSetBit(0); i >= 0 && i < numChunks; i = previous.nextSetBit(i + 1)) {
+                addAvailability(i, -1);
+            }
+        }
+    }
+
+    synchronized long next(LongPredicate sourceHas, boolean sourceComplete) {
+        if (pending.isEmpty()) {
+            return -1;
+        }
+        // Uma fonte parcial entra na contagem dos chunks que tem, entao o balde 0 nao serve a ela.
+        for (int count = sourceComplete ? 0 : 1; count < buckets.size(); count++) {
+            long chosen = pick(buckets.get(count), sourceHas, sourceComplete);
+            if (chosen >= 0) {
+                clearPending(chosen);
+                return chosen;
+            }
+        }
+        return -1;
+    }
+
+    synchronized void complete(long chunkIndex) {
+        done.set(chunkIndex);
+        clearPending(chunkIndex);
+    }
+
+    synchronized void release(long chunkIndex) {
+        if (!done.get(chunkIndex) && pending.set(chunkIndex)) {
+            bucket(availabilityOf(chunkIndex)).set(chunkIndex);
+        }
+    }
+
+    synchronized boolean isComplete() {
+        return done.isFull();
+    }
+
+    /** Primeiro chunk de {@code bucket} que a fonte tem, a partir de uma posicao sorteada. */
+    private long pick(ChunkBitmap bucket, LongPredicate sourceHas, boolean sourceComplete) {
+        if (bucket.isEmpty()) {
+            return -1;
+        }
+        long start = ThreadLocalRandom.current().nextLong(numChunks);
+        for (int pass = 0; pass < 2; pass++) {
+            long from = pass == 0 ? start : 0;
+            long until = pass == 0 ? numChunks : start;
+            for (long i = bucket.nextSetBit(from); i >= 0 && i < until; i = bucket.nextSetBit(i + 1)) {
+                if (sourceComplete || sourceHas.test(i)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void clearPending(long chunkIndex) {
+        if (pending.clear(chunkIndex)) {
+            buckets.get(availabilityOf(chunkIndex)).clear(chunkIndex);
+        }
+    }
+
+    private ChunkBitmap bucket(int count) {
+        while (buckets.size() <= count) {
+            buckets.add(new ChunkBitmap(numChunks));
+        }
+        return buckets.get(count);
+    }
+
+    private int availabilityOf(long chunkIndex) {
+        int[] page = availability[(int) (chunkIndex >>> PAGE_BITS)];
+        return page == null ? 0 : page[(int) (chunkIndex & PAGE_MASK)];
+    }
+
+    private void addAvailability(long chunkIndex, int delta) {
+        int p = (int) (chunkIndex >>> PAGE_BITS);
+        if (availability[p] == null) {
+            availability[p] = new int[1 << PAGE_BITS];
+        }
+        int previous = availability[p][(int) (chunkIndex & PAGE_MASK)];
+        availability[p][(int) (chunkIndex & PAGE_MASK)] = previous + delta;
+        if (pending.get(chunkIndex)) {
+            buckets.get(previous).clear(chunkIndex);
+            bucket(previous + delta).set(chunkIndex);
+        }
+    }
+}
@@ -0,0 +1,484 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Armazenamento enderecado por conteudo (opcional, {@code --cas}). Os arquivos compartilhados
+ * viram manifestos, listas dos SHA-256 de seus blocos de tamanho fixo, e cada bloco distinto
+ * fica uma unica vez em disco, nao importa quantos arquivos (ou versoes de um arquivo) o usem.
+ *
+ * <p>Layout em {@code <diretorio_compartilhado>/.estado/cas}: {@code blocos/<2 hex>/<sha256>}
+ * com o conteudo de cada bloco e {@code manifestos/<nome>} com uma linha
+ * {@code <tamanho> <tam_bloco>} seguida de um hash por linha. As contagens de referencia vem
+ * dos manifestos ao carregar; um bloco cuja contagem chega a zero e apagado na hora, e blocos
+ * orfaos de uma queda no meio de uma importacao sao varridos na partida.
+ */
+class ChunkStore {
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    static final int HASH_BYTES = 32;
+    private static final String ROOT_DIR = "cas";
+    private static final String BLOCK_DIR = "blocos";
+    private static final String MANIFEST_DIR = "manifestos";
+    private static final AtomicLong VERSIONS = new AtomicLong(System.currentTimeMillis());
+
+    private final Node node;
+    private final int blockSize;
+    private final Path blockDir;
+    private final Path manifestDir;
+    private final Map<String, Manifest> manifests = new ConcurrentHashMap<>();
+    // Guardadas sob o lock do objeto; hash em hex -> numero de blocos de manifestos que o usam.
+    private final Map<String, Integer> refs = new HashMap<>();
+    private long storedBytes;
+
+    ChunkStore(Node node, int blockSize) {
+        this.node = node;
+        this.blockSize = blockSize;
+        Path root = Paths.get(node.getSharedDir().getAbsolutePath(), PeerTableStore.STATE_DIR, ROOT_DIR);
+        this.blockDir = root.resolve(BLOCK_DIR);
+        this.manifestDir = root.resolve(MANIFEST_DIR);
+        Metrics metrics = node.getMetrics();
+        metrics.registerGauge("cas_files", manifests::size);
+        metrics.registerGauge("cas_blocks", this::blockCount);
+        metrics.registerGauge("cas_stored_bytes", this::getStoredBytes);
+        metrics.registerGauge("cas_logical_bytes", this::getLogicalBytes);
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Le os manifestos, refaz as contagens de referencia, apaga blocos sem referencia e
+     * importa os arquivos soltos do diretorio compartilhado.
+     */
+    void open() throws IOException {
+        Files.createDirectories(blockDir);
+        Files.createDirectories(manifestDir);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(manifestDir)) {
+            for (Path path : entries) {
+                if (path.getFileName().toString().endsWith(".tmp")) {
+                    Files.deleteIfExists(path);
+                    continue;
+                }
+                try {
+                    Manifest manifest = readManifest(path);
+                    manifests.put(manifest.name, manifest);
+                    synchronized (this) {
+                        addRefs(manifest, 1);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Manifesto invalido ignorado " + path + ": " + e.getMessage());
+                }
+            }
+        }
+        int orphans = sweep();
+        System.out.printf("Armazenamento por conteudo: %d arquivos, %d blocos, %d bytes em disco para %d bytes de arquivos (%d blocos orfaos removidos).%n",
+                manifests.size(), blockCount(), getStoredBytes(), getLogicalBytes(), orphans);
+        File[] loose = node.getSharedDir().listFiles(File::isFile);
+        if (loose != null) {
+            for (File file : loose) {
+                ingest(file);
+            }
+        }
+    }
+
+    boolean contains(String fileName) {
+        return manifests.containsKey(fileName);
+    }
+
+    /** Tamanho do arquivo guardado, ou -1 se nao existe. */
+    long getFileSize(String fileName) {
+        Manifest manifest = manifests.get(fileName);
+        return manifest == null ? -1 : manifest.size;
+    }
+
+    /**
+     * Muda sempre que o arquivo e substituido por outra versao; faz o papel da data de
+     * modificacao nas chaves da {@link ChunkCache}.
+     */
+    long getVersion(String fileName) {
+        Manifest manifest = manifests.get(fileName);
+        return manifest == null ? -1 : manifest.version;
+    }
+
+    /** Nome -> tamanho de todos os arquivos guardados. */
+    Map<String, Long> listFiles() {
+        Map<String, Long> files = new TreeMap<>();
+        for (Manifest manifest : manifests.values()) {
+            files.put(manifest.name, manifest.size);
+        }
+        return files;
+    }
+
+    synchronized boolean hasBlock(byte[] hashes, long index) {
+        int offset = hashOffset(hashes, index);
+        return offset >= 0 && refs.containsKey(hex(hashes, offset));
+    }
+
+    /** Posicao do hash do bloco {@code index} em {@code hashes}, ou -1 se o indice esta fora. */
+    static int hashOffset(byte[] hashes, long index) {
+        if (index < 0 || index >= hashes.length / HASH_BYTES) {
+            return -1;
+        }
+        return (int) (index * HASH_BYTES);
+    }
+
+    /**
+     * Hashes concatenados dos blocos de {@code blockSizeWanted} bytes do arquivo, para um
+     * MANIFEST. Se o tamanho de bloco for o do manifesto, sai direto dele; senao o arquivo e
+     * lido e recalculado. Devolve null se o arquivo nao existe aqui.
+     */
+    byte[] hashesFor(String fileName, int blockSizeWanted) throws IOException {
+        Manifest manifest = manifests.get(fileName);
+        if (manifest == null) {
+            return null;
+        }
+        if (manifest.blockSize == blockSizeWanted) {
+            return manifest.hashes.clone();
+        }
+        try (InputStream in = openStream(fileName)) {
+            return hashBlocks(in, manifest.size, blockSizeWanted);
+        }
+    }
+
+    /** SHA-256 de cada bloco de {@code blockSizeWanted} bytes lido de {@code in}. */
+    static byte[] hashBlocks(InputStream in, long size, int blockSizeWanted) throws IOException {
+        long blocks = (size + blockSizeWanted - 1) / blockSizeWanted;
+        if (blocks * HASH_BYTES > Integer.MAX_VALUE - 8) {
+            throw new IOException("Arquivo grande demais para um manifesto com blocos de " + blockSizeWanted + " bytes");
+        }
+        byte[] hashes = new byte[(int) (blocks * HASH_BYTES)];
+        byte[] block = new byte[blockSizeWanted];
+        MessageDigest sha256 = DeltaEncoder.newDigest("SHA-256");
+        for (int i = 0; i < blocks; i++) {
+            int length = (int) Math.min(blockSizeWanted, size - (long) i * blockSizeWanted);
+            readFully(in, block, length);
+            sha256.update(block, 0, length);
+            System.arraycopy(sha256.digest(), 0, hashes, i * HASH_BYTES, HASH_BYTES);
+        }
+        return hashes;
+    }
+
+    /** Le o bloco com o hash {@code hashes[index]} em {@code dst}; devolve o tamanho. */
+    int readBlock(byte[] hashes, long index, byte[] dst) throws IOException {
+        int offset = hashOffset(hashes, index);
+        if (offset < 0) {
+            throw new IOException("Bloco " + index + " fora do manifesto");
+        }
+        Path path = blockPath(hex(hashes, offset));
+        try (InputStream in = Files.newInputStream(path)) {
+            int length = (int) Files.size(path);
+            readFully(in, dst, length);
+            return length;
+        }
+    }
+
+    /** Copia {@code length} bytes do arquivo a partir de {@code offset}, bloco a bloco. */
+    void readRange(String fileName, long offset, byte[] dst, int length) throws IOException {
+        Manifest manifest = manifests.get(fileName);
+        if (manifest == null || offset < 0 || offset + length > manifest.size) {
+            throw new IOException("Faixa fora do arquivo guardado " + fileName);
+        }
+        int copied = 0;
+        while (copied < length) {
+            long position = offset + copied;
+            int block = (int) (position / manifest.blockSize);
+            int within = (int) (position % manifest.blockSize);
+            int n = Math.min(length - copied, manifest.blockLength(block) - within);
+            try (RandomAccessFile raf = new RandomAccessFile(blockPath(manifest.hash(block)).toFile(), "r")) {
+                raf.seek(within);
+                raf.readFully(dst, copied, n);
+            }
+            copied += n;
+        }
+    }
+
+    /** Conteudo do arquivo guardado, em sequencia (para DELTA e exportacao). */
+    InputStream openStream(String fileName) throws IOException {
+        Manifest manifest = manifests.get(fileName);
+        if (manifest == null) {
+            throw new FileNotFoundException(fileName);
+        }
+        return new BlockStream(manifest);
+    }
+
+    /**
+     * Guarda o arquivo solto {@code file} como manifesto (substituindo uma versao anterior com
+     * o mesmo nome) e apaga o original. Blocos ja presentes nao sao gravados de novo.
+     */
+    boolean ingest(File file) {
+        String name = file.getName();
+        long size = file.length();
+        if (size == 0) {
+            return false;
+        }
+        long blocks = (size + blockSize - 1) / blockSize;
+        if (blocks * HASH_BYTES > Integer.MAX_VALUE - 8) {
+            System.err.printf("Arquivo %s grande demais para guardar em blocos de %d bytes; fica solto.%n", name, blockSize);
+            return false;
+        }
+        byte[] hashes = new byte[(int) (blocks * HASH_BYTES)];
+        byte[] block = new byte[blockSize];
+        MessageDigest sha256 = DeltaEncoder.newDigest("SHA-256");
+        long written = 0;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            for (int i = 0; i < blocks; i++) {
+                int length = (int) Math.min(blockSize, size - (long) i * blockSize);
+                readFully(in, block, length);
+                sha256.update(block, 0, length);
+                byte[] digest = sha256.digest();
+                System.arraycopy(digest, 0, hashes, i * HASH_BYTES, HASH_BYTES);
+                if (writeBlock(hex(digest, 0), block, length)) {
+                    written += length;
+                }
+            }
+            Manifest manifest = new Manifest(name, size, blockSize, hashes);
+            writeManifest(manifest);
+            replace(manifest);
+            Files.delete(file.toPath());
+        } catch (IOException e) {
+            System.err.println("Erro ao guardar " + name + " por conteudo: " + e.getMessage());
+            return false;
+        }
+        node.getMetrics().add("cas_ingested_bytes_total", size);
+        node.getMetrics().add("cas_deduplicated_bytes_total", size - written);
+        System.out.printf("Arquivo %s guardado por conteudo: %d blocos, %d bytes novos (%d reaproveitados).%n", name, blocks, written, size - written);
+        return true;
+    }
+
+    /** Apaga o manifesto e os blocos que so ele usava. */
+    boolean remove(String fileName) {
+        Manifest manifest = manifests.get(fileName);
+        if (manifest == null) {
+            return false;
+        }
+        try {
+            Files.deleteIfExists(manifestDir.resolve(fileName));
+        } catch (IOException e) {
+            System.err.println("Erro ao apagar manifesto " + fileName + ": " + e.getMessage());
+            return false;
+        }
+        synchronized (this) {
+            if (manifests.remove(fileName, manifest)) {
+                addRefs(manifest, -1);
+            }
+        }
+        return true;
+    }
+
+    /** Grava o arquivo guardado em {@code destination}. */
+    void export(String fileName, Path destination) throws IOException {
+        try (InputStream in = openStream(fileName)) {
+            Files.copy(in, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private synchronized void replace(Manifest manifest) {
+        addRefs(manifest, 1);
+        Manifest previous = manifests.put(manifest.name, manifest);
+        if (previous != null) {
+            addRefs(previous, -1);
+        }
+    }
+
+    /** Soma {@code delta} as referencias de cada bloco; blocos que chegam a zero sao apagados. */
+    private void addRefs(Manifest manifest, int delta) {
+        for (int i = 0; i < manifest.blockCount(); i++) {
+            String hash = manifest.hash(i);
+            int count = refs.getOrDefault(hash, 0) + delta;
+            if (count > 0) {
+                if (!refs.containsKey(hash)) {
+                    storedBytes += manifest.blockLength(i);
+                }
+                refs.put(hash, count);
+            } else if (refs.remove(hash) != null) {
+                storedBytes -= manifest.blockLength(i);
+                try {
+                    Files.deleteIfExists(blockPath(hash));
+                } catch (IOException e) {
+                    System.err.println("Erro ao apagar bloco " + hash + ": " + e.getMessage());
+                }
+                node.getMetrics().increment("cas_blocks_collected_total");
+            }
+        }
+    }
+
+    /** Grava o bloco se ainda nao existe; devolve true se gravou. */
+    private boolean writeBlock(String hash, byte[] data, int length) throws IOException {
+        Path path = blockPath(hash);
+        if (Files.exists(path)) {
+            return false;
+        }
+        Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling(hash + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            out.write(data, 0, length);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    private void writeManifest(Manifest manifest) throws IOException {
+        Path temp = manifestDir.resolve(manifest.name + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            out.write(manifest.size + " " + manifest.blockSize);
+            out.newLine();
+            for (int i = 0; i < manifest.blockCount(); i++) {
+                out.write(manifest.hash(i));
+                out.newLine();
+            }
+        }
+        Files.move(temp, manifestDir.resolve(manifest.name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Manifest readManifest(Path path) throws IOException {
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        String[] header = lines.get(0).split(" ");
+        long size = Long.parseLong(header[0]);
+        int blockSize = Integer.parseInt(header[1]);
+        int blocks = (int) ((size + blockSize - 1) / blockSize);
+        if (lines.size() != blocks + 1) {
+            throw new IOException("esperados " + blocks + " blocos, encontrados " + (lines.size() - 1));
+        }
+        byte[] hashes = new byte[blocks * HASH_BYTES];
+        for (int i = 0; i < blocks; i++) {
+            String hash = lines.get(i + 1);
+            for (int j = 0; j < HASH_BYTES; j++) {
+                hashes[i * HASH_BYTES + j] = (byte) Integer.parseInt(hash.substring(2 * j, 2 * j + 2), 16);
+            }
+        }
+        return new Manifest(path.getFileName().toString(), size, blockSize, hashes);
+    }
+
+    /** Apaga blocos (e temporarios) que nenhum manifesto referencia. */
+    private int sweep() throws IOException {
+        int removed = 0;
+        try (Stream<Path> files = Files.walk(blockDir, 2)) {
+            for (Path path : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                boolean referenced;
+                synchronized (this) {
+                    referenced = refs.containsKey(path.getFileName().toString());
+                }
+                if (!referenced) {
+                    Files.deleteIfExists(path);
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private Path blockPath(String hash) {
+        return blockDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private synchronized int blockCount() {
+        return refs.size();
+    }
+
+    private synchronized long getStoredBytes() {
+        return storedBytes;
+    }
+
+    private long getLogicalBytes() {
+        long total = 0;
+        for (Manifest manifest : manifests.values()) {
+            total += manifest.size;
+        }
+        return total;
+    }
+
+    private static void readFully(InputStream in, byte[] dst, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(dst, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Fim inesperado ao ler bloco");
+            }
+            read += n;
+        }
+    }
+
+    static String hex(byte[] bytes, int off) {
+        StringBuilder hex = new StringBuilder(HASH_BYTES * 2);
+        for (int i = off; i < off + HASH_BYTES; i++) {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16)).append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /** Le os blocos de um manifesto em sequencia, abrindo um de cada vez. */
+    private class BlockStream extends InputStream {
+        private final Manifest manifest;
+        private int next;
+        private InputStream current;
+
+        BlockStream(Manifest manifest) {
+            this.manifest = manifest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] dst, int off, int len) throws IOException {
+            while (true) {
+                if (current == null) {
+                    if (next >= manifest.blockCount()) {
+                        return -1;
+                    }
+                    current = new BufferedInputStream(Files.newInputStream(blockPath(manifest.hash(next++))));
+                }
+                int n = current.read(dst, off, len);
+                if (n >= 0) {
+                    return n;
+                }
+                current.close();
+                current = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+
+    private static class Manifest {
+        final String name;
+        final long size;
+        final int blockSize;
+        final byte[] hashes;
+        final long version = VERSIONS.incrementAndGet();
+
+        Manifest(String name, long size, int blockSize, byte[] hashes) {
+            this.name = name;
+            this.size = size;
+            this.blockSize = blockSize;
+            this.hashes = hashes;
+        }
+
+        int blockCount() {
+            return hashes.length / HASH_BYTES;
+        }
+
+        String hash(int index) {
+            return hex(hashes, index * HASH_BYTES);
+        }
+
+        int blockLength(int index) {
+            return (int) Math.min(blockSize, size - (long) index * blockSize);
+        }
+    }
+}
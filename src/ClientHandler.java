@@ -3,9 +3,36 @@ import java.net.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class ClientHandler implements Runnable {
+    private static final int SEARCH_BATCH_SIZE = 64;
+    private static final int MAX_HAVE_PEERS = 16;
+    private static final int DELTA_LITERAL_BYTES = 256 * 1024;
+    private static final int DELTA_LINE_BYTES = 1024 * 1024;
+    private static final long DELTA_FLUSH_MS = 1000;
+    // Chunks menores que isso vao crus: o ganho nao paga o cabecalho do deflate.
+    private static final int MIN_COMPRESS_BYTES = 512;
+    private static final int COMPRESS_SAMPLE_BYTES = 4096;
+    // So vale mandar comprimido se economizar pelo menos 10%.
+    private static final double MAX_COMPRESSED_RATIO = 0.9;
+    private static final double[] REQUEST_SECONDS_BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5};
+    private static final Map<MessageType, String> REQUEST_COUNTERS = new EnumMap<>(MessageType.class);
+    private static final Map<MessageType, String> REQUEST_HISTOGRAMS = new EnumMap<>(MessageType.class);
+
+    static {
+        for (MessageType type : MessageType.values()) {
+            REQUEST_COUNTERS.put(type, Metrics.labeled("server_requests_total", "type", type.name()));
+            REQUEST_HISTOGRAMS.put(type, Metrics.labeled("server_request_seconds", "type", type.name()));
+        }
+    }
+
     private final Socket socket;
     private final Node node;
 
@@ -16,12 +43,9 @@ public class ClientHandler implements Runnable {
 
     @Override
     public void run() {
-        try (
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        ) {
-            String message = in.readLine();
-            if (message != null) {
-                processMessage(message.trim());
+        try (MessageBuffer request = new MessageBuffer(node.getBufferPool())) {
+            if (request.readLine(socket.getInputStream())) {
+                processMessage(request);
             } else {
                  System.out.printf("Conexao fechada por %s sem enviar mensagem.%n", socket.getRemoteSocketAddress());
             }
@@ -47,65 +71,91 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private void processMessage(String message) {
-        System.out.printf("Mensagem recebida de %s: \"%s\"%n", socket.getRemoteSocketAddress(), message);
-        String[] parts = message.split(" ", 4);
-
-        if (parts.length < 3) {
-            System.err.println("Formato de mensagem invalido recebido: " + message);
+    private void processMessage(MessageBuffer request) {
+        MessageTokenizer tokens = new MessageTokenizer(request);
+        if (request.length() > Node.LOG_PREVIEW_CHARS) {
+            System.out.printf("Mensagem recebida de %s: \"%s...\"%n", socket.getRemoteSocketAddress(), request.toString(0, Node.LOG_PREVIEW_CHARS));
+        } else {
+            System.out.printf("Mensagem recebida de %s: \"%s\"%n", socket.getRemoteSocketAddress(), tokens.line().trim());
+        }
+        if (!tokens.readHeader()) {
+            System.err.println("Formato de mensagem invalido recebido: " + tokens.line());
             return;
         }
 
-        String originFullAddress = parts[0];
-        int messageClock;
-        try {
-             messageClock = Integer.parseInt(parts[1]);
-        } catch (NumberFormatException e) {
-             System.err.println("Clock invalido na mensagem recebida: " + parts[1]);
-             return;
+        MessageType type = tokens.getType();
+        if (type == null || !type.isRequest()) {
+            System.out.println("Tipo de mensagem desconhecido recebido: " + tokens.getTypeText());
+            return;
         }
 
+        node.getMetrics().increment(REQUEST_COUNTERS.get(type));
+        long start = System.nanoTime();
+        TraceEvents.MessageHandled event = new TraceEvents.MessageHandled();
+        event.begin();
+        int messageClock = tokens.getClock();
         node.updateClockOnReceive(messageClock);
 
-        String type = parts[2];
-        String argsString = (parts.length > 3) ? parts[3] : "";
-
-        String[] originAddrParts = originFullAddress.split(":");
-        if (originAddrParts.length == 2) {
-            try {
-                String originHost = originAddrParts[0];
-                int originPort = Integer.parseInt(originAddrParts[1]);
-                node.updatePeerFromDirectMessage(originHost, originPort, messageClock, type.equals("BYE"));
-            } catch (NumberFormatException ex) {
-                System.err.println("Porta invalida no endereco de origem: " + originFullAddress);
-            }
+        String originFullAddress = tokens.getOriginText();
+        if (tokens.getOriginPort() >= 0) {
+            String originHost = node.knownHost(tokens, tokens.getOriginHostStart(), tokens.getOriginHostEnd());
+            node.updatePeerFromDirectMessage(originHost, tokens.getOriginPort(), messageClock, type == MessageType.BYE);
         } else {
             System.err.println("Endereco de origem invalido: " + originFullAddress);
         }
 
 
         switch (type) {
-            case "HELLO":
+            case HELLO:
                 System.out.printf("Mensagem HELLO de %s processada.%n", originFullAddress);
                 break;
-            case "BYE":
+            case BYE:
                 System.out.printf("Mensagem BYE de %s processada.%n", originFullAddress);
                 break;
-            case "GET_PEERS":
+            case GET_PEERS:
                 handleGetPeers(originFullAddress);
                 break;
-            case "PEER_LIST":
-                handlePeerList(argsString);
+            case PEER_LIST:
+                node.applyPeerList(tokens);
                 break;
-            case "LS":
+            case LS:
                 handleLS(originFullAddress);
                 break;
-            case "DL":
-                handleDL(originFullAddress, argsString);
+            case DL:
+                handleDL(originFullAddress, tokens);
+                break;
+            case SEARCH:
+                handleSearch(tokens);
+                break;
+            case GET_HAVE:
+                handleGetHave(originFullAddress, tokens);
+                break;
+            case DELTA:
+                handleDelta(originFullAddress, tokens);
+                break;
+            case HOT:
+                handleHot(tokens);
+                break;
+            case GET_MANIFEST:
+                handleGetManifest(tokens);
+                break;
+            case DHT_FIND_NODE:
+            case DHT_GET_PROVIDERS:
+            case DHT_ADD_PROVIDER:
+                handleDht(type.name(), originFullAddress, tokens);
                 break;
             default:
                 System.out.println("Tipo de mensagem desconhecido recebido: " + type);
         }
+        node.getMetrics().observe(REQUEST_HISTOGRAMS.get(type), REQUEST_SECONDS_BUCKETS, (System.nanoTime() - start) / 1e9);
+        event.end();
+        if (event.shouldCommit()) {
+            event.origin = originFullAddress;
+            event.type = type.name();
+            event.requestBytes = request.length();
+            event.clock = messageClock;
+            event.commit();
+        }
     }
 
     private void handleGetPeers(String origin) {
@@ -118,54 +168,6 @@ public class ClientHandler implements Runnable {
     }
 }
 
-    private void handlePeerList(String argsString) {
-        String[] parts = argsString.split(" ", 2);
-        if (parts.length < 1) {
-             System.err.println("Argumentos invalidos para PEER_LIST: " + argsString);
-             return;
-        }
-        int totalPeersInList;
-        try {
-            totalPeersInList = Integer.parseInt(parts[0]);
-        } catch (NumberFormatException e) {
-             System.err.println("Contagem invalida em PEER_LIST: " + parts[0]);
-             return;
-        }
-
-        if (totalPeersInList == 0) {
-            return;
-        }
-
-        if (parts.length < 2 || parts[1].trim().isEmpty()) {
-            if(totalPeersInList > 0) System.err.println("PEER_LIST indica " + totalPeersInList + " peers, mas lista esta faltando.");
-            return;
-        }
-
-        String[] peerEntries = parts[1].trim().split(" ");
-        if (peerEntries.length != totalPeersInList) {
-            System.err.printf("PEER_LIST: contagem declarada (%d) difere do numero de entradas recebidas (%d)%n", totalPeersInList, peerEntries.length);
-        }
-
-        for (String peerEntry : peerEntries) {
-            String[] peerData = peerEntry.split(":");
-             if (peerData.length != 4) {
-                 System.err.println("Formato de entrada de peer invalido em PEER_LIST: " + peerEntry);
-                 continue;
-             }
-            String host = peerData[0];
-            try {
-                int port = Integer.parseInt(peerData[1]);
-                PeerStatus status = PeerStatus.valueOf(peerData[2].toUpperCase());
-                int peerClock = Integer.parseInt(peerData[3]);
-                node.updatePeerFromPeerList(host, port, status, peerClock);
-            } catch (NumberFormatException e) {
-                System.err.println("Porta ou clock invalido em PEER_LIST entry: " + peerEntry + " -> " + e.getMessage());
-            } catch (IllegalArgumentException e) {
-                System.err.println("Status invalido em PEER_LIST entry: " + peerData[2]);
-            }
-        }
-    }
-
     private void handleLS(String origin) {
         File[] localFiles;
         try {
@@ -182,32 +184,175 @@ public class ClientHandler implements Runnable {
         }
 
 
+        List<PartialFile> partialFiles = new ArrayList<>();
+        for (PartialFile partial : node.getSwarm().getPartialFiles()) {
+            if (!partial.getFileName().contains(" ") && partial.getChunkCount() > 0) {
+                partialFiles.add(partial);
+            }
+        }
+
+        Map<String, Long> storedFiles = new TreeMap<>();
+        ChunkStore store = node.getChunkStore();
+        if (store != null) {
+            store.listFiles().forEach((name, size) -> {
+                if (!name.contains(" ")) {
+                    storedFiles.put(name, size);
+                }
+            });
+            for (File file : localFiles) {
+                storedFiles.remove(file.getName());
+            }
+        }
+
         StringBuilder fileListArgs = new StringBuilder();
-        fileListArgs.append(localFiles.length);
+        fileListArgs.append(localFiles.length + storedFiles.size() + partialFiles.size());
         for (File file : localFiles) {
             fileListArgs.append(" ").append(file.getName()).append(":").append(file.length());
         }
+        storedFiles.forEach((name, size) -> fileListArgs.append(" ").append(name).append(":").append(size));
+        for (PartialFile partial : partialFiles) {
+            fileListArgs.append(" ").append(partial.getFileName()).append(":").append(partial.getFileSize()).append(":P");
+        }
         sendResponse("LS_LIST", fileListArgs.toString());
     }
 
-    private void handleDL(String origin, String argsString) {
-        String[] dlArgs = argsString.split(" ", 3);
-        if (dlArgs.length < 3) {
-            System.err.println("Argumentos invalidos para o comando DL: " + argsString);
+    private void handleSearch(MessageTokenizer tokens) {
+        SearchQuery query;
+        try {
+            query = SearchQuery.parse(tokens);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            System.err.println("Argumentos invalidos para SEARCH: " + tokens.getArgsText() + " (" + e.getMessage() + ")");
+            sendResponse("SEARCH_END", "0", "ERROR_BAD_REQUEST");
+            return;
+        }
+
+        List<String> batch = new ArrayList<>(SEARCH_BATCH_SIZE);
+        int total = node.getSharedIndex().search(query, (name, size) -> {
+            batch.add(name + ":" + size);
+            if (batch.size() == SEARCH_BATCH_SIZE) {
+                sendSearchBatch(batch);
+            }
+            return !socket.isClosed();
+        });
+        for (PartialFile partial : node.getSwarm().getPartialFiles()) {
+            if (total >= query.getLimit()) break;
+            if (partial.getChunkCount() > 0 && query.matches(partial.getFileName(), partial.getFileSize())) {
+                batch.add(partial.getFileName() + ":" + partial.getFileSize() + ":P");
+                total++;
+            }
+        }
+        if (!batch.isEmpty()) {
+            sendSearchBatch(batch);
+        }
+        sendResponse("SEARCH_END", String.valueOf(total));
+    }
+
+    private void sendSearchBatch(List<String> batch) {
+        String[] args = new String[batch.size() + 1];
+        args[0] = String.valueOf(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            args[i + 1] = batch.get(i);
+        }
+        sendResponse("SEARCH_HIT", args);
+        batch.clear();
+    }
+
+    private void handleDht(String type, String origin, MessageTokenizer tokens) {
+        Dht dht = node.getDht();
+        if (dht == null) {
+            sendResponse("DHT_ERROR", "ERROR_DHT_DISABLED");
+            return;
+        }
+        String[] response = dht.handleRequest(type, origin, tokens).split(" ", 2);
+        if (response.length == 2) {
+            sendResponse(response[0], response[1]);
+        } else {
+            sendResponse(response[0]);
+        }
+    }
+
+    private void handleGetHave(String origin, MessageTokenizer tokens) {
+        String fileName = tokens.nextText();
+        int requestedChunkSize;
+        try {
+            requestedChunkSize = fileName != null ? tokens.nextInt() : -1;
+        } catch (NumberFormatException e) {
+            requestedChunkSize = -1;
+        }
+        if (requestedChunkSize <= 0 || tokens.next()) {
+            System.err.println("Argumentos invalidos para GET_HAVE: " + tokens.getArgsText());
+            sendResponse("HAVE", "UNKNOWN", "0", "0", "NONE", "0");
+            return;
+        }
+        File file = node.resolveShared(fileName);
+        if (file == null) {
+            System.err.println("Nome de arquivo invalido em GET_HAVE: " + fileName);
+            sendResponse("HAVE", "UNKNOWN", "0", "0", "NONE", "0");
+            return;
+        }
+        long fileSize = 0;
+        String bitmap = "NONE";
+        PartialFile partial = node.getSwarm().getPartialFile(fileName);
+        if (partial != null) {
+            fileSize = partial.getFileSize();
+            ChunkBitmap available = partial.availability(requestedChunkSize);
+            if (!available.isEmpty()) {
+                bitmap = Base64.getEncoder().encodeToString(available.toByteArray());
+            }
+        } else if (file.isFile() && file.canRead()) {
+            fileSize = file.length();
+            bitmap = "ALL";
+        } else if (node.getChunkStore() != null && node.getChunkStore().contains(fileName)) {
+            fileSize = node.getChunkStore().getFileSize(fileName);
+            bitmap = "ALL";
+        }
+        // So entra no registro quem pergunta por um arquivo que existe aqui; nomes inventados nao ocupam memoria.
+        if (partial != null || !bitmap.equals("NONE")) {
+            node.getSwarm().recordMember(fileName, origin);
+        }
+
+        List<String> members = node.getSwarm().getMembers(fileName, origin, MAX_HAVE_PEERS);
+        String[] response = new String[5 + members.size()];
+        response[0] = fileName;
+        response[1] = String.valueOf(fileSize);
+        response[2] = String.valueOf(requestedChunkSize);
+        response[3] = bitmap;
+        response[4] = String.valueOf(members.size());
+        for (int i = 0; i < members.size(); i++) {
+            response[5 + i] = members.get(i);
+        }
+        sendResponse("HAVE", response);
+    }
+
+    private void handleDL(String origin, MessageTokenizer tokens) {
+        String fileName = tokens.nextText();
+        if (fileName == null) {
+            System.err.println("Argumentos invalidos para o comando DL: " + tokens.getArgsText());
             sendResponse("FILE", "UNKNOWN", "0", "0", "ERROR_BAD_REQUEST");
             return;
         }
-        String fileName = dlArgs[0];
         int requestedChunkSize;
-        int chunkIndex;
+        long chunkIndex;
+        ChunkCodec codec;
         try {
-            requestedChunkSize = Integer.parseInt(dlArgs[1]);
-            chunkIndex = Integer.parseInt(dlArgs[2]);
+            requestedChunkSize = tokens.nextInt();
+            chunkIndex = tokens.nextLong();
+            codec = ChunkCodec.negotiate(tokens.nextText());
         } catch (NumberFormatException e) {
-            System.err.println("Argumentos de chunk invalidos para DL: " + argsString);
+            System.err.println("Argumentos de chunk invalidos para DL: " + tokens.getArgsText());
             sendResponse("FILE", fileName, "0", "0", "ERROR_BAD_REQUEST");
             return;
         }
+        if (requestedChunkSize <= 0 || requestedChunkSize > Node.MAX_CHUNK_SIZE || chunkIndex < 0) {
+            System.err.println("Chunk fora dos limites para DL: " + tokens.getArgsText());
+            sendResponse("FILE", fileName, "0", String.valueOf(chunkIndex), "ERROR_BAD_REQUEST");
+            return;
+        }
+        if (node.resolveShared(fileName) == null) {
+            System.err.println("Nome de arquivo invalido em DL: " + fileName);
+            sendResponse("FILE", fileName, "0", String.valueOf(chunkIndex), "ERROR_BAD_REQUEST");
+            return;
+        }
 
         try {
             java.lang.reflect.Field sharedDirField = node.getClass().getDeclaredField("sharedDir");
@@ -215,28 +360,57 @@ public class ClientHandler implements Runnable {
             File actualSharedDirFile = (File) sharedDirField.get(node);
             Path filePath = Paths.get(actualSharedDirFile.getAbsolutePath(), fileName);
 
+            PartialFile partial = node.getSwarm().getPartialFile(fileName);
+            if (partial != null) {
+                servePartialChunk(origin, partial, requestedChunkSize, chunkIndex, codec);
+                return;
+            }
+
+            ChunkStore store = node.getChunkStore();
+            if (!Files.isRegularFile(filePath) && store != null && store.contains(fileName)) {
+                serveStoredChunk(origin, store, fileName, requestedChunkSize, chunkIndex, codec);
+                return;
+            }
+
             if (!Files.exists(filePath) || !Files.isReadable(filePath) || Files.isDirectory(filePath)) {
                 System.err.println("Arquivo " + fileName + " nao encontrado ou inacessivel no diretorio compartilhado: " + filePath);
                 sendResponse("FILE", fileName, "0", String.valueOf(chunkIndex), "ERROR_NOT_FOUND");
                 return;
             }
 
-            try (RandomAccessFile raf = new RandomAccessFile(filePath.toFile(), "r")) {
-                long fileSize = raf.length();
-                long offset = (long) chunkIndex * requestedChunkSize;
+            File file = filePath.toFile();
+            long fileSize = file.length();
+            long offset = chunkIndex * requestedChunkSize;
 
-                if (offset >= fileSize) {
-                    sendResponse("FILE", fileName, "0", String.valueOf(chunkIndex), "ERROR_CHUNK_OUT_OF_BOUNDS");
-                    return;
+            if (chunkIndex >= (fileSize + requestedChunkSize - 1) / requestedChunkSize) {
+                sendResponse("FILE", fileName, "0", String.valueOf(chunkIndex), "ERROR_CHUNK_OUT_OF_BOUNDS");
+                return;
+            }
+            long bytesToRead = Math.min(requestedChunkSize, fileSize - offset);
+
+            ChunkCache cache = node.getChunkCache();
+            // A entrada guarda o fim da linha FILE ja pronto (Base64 e, se houver, o codec), entao
+            // um pedido com deflate nao reaproveita o de quem pediu cru e vice-versa.
+            String encoding = codec == null ? "base64" : codec.getName() + "+base64";
+            ChunkCache.Key cacheKey = new ChunkCache.Key(node.chunkCacheFile(fileName), file.lastModified(), fileSize, offset, (int) bytesToRead, encoding);
+            TraceEvents.ChunkServed event = new TraceEvents.ChunkServed();
+            event.begin();
+            try (MessageBuffer response = beginFileResponse(fileName, bytesToRead, chunkIndex)) {
+                int payloadStart = response.length();
+                boolean cached = cache.appendTo(cacheKey, response);
+                if (!cached) {
+                    try (MessageBuffer chunk = new MessageBuffer(node.getBufferPool(), (int) bytesToRead);
+                         RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                        raf.seek(offset);
+                        raf.readFully(chunk.array(), 0, (int) bytesToRead);
+                        appendChunkPayload(response, chunk.array(), (int) bytesToRead, codec);
+                    }
+                    cache.put(cacheKey, response.array(), payloadStart, response.length() - payloadStart);
                 }
-
-                raf.seek(offset);
-                long bytesToRead = Math.min(requestedChunkSize, fileSize - offset);
-                byte[] chunkBytes = new byte[(int) bytesToRead];
-                raf.readFully(chunkBytes);
-
-                String base64Content = Base64.getEncoder().encodeToString(chunkBytes);
-                sendResponse("FILE", fileName, String.valueOf(bytesToRead), String.valueOf(chunkIndex), base64Content);
+                throttleUpload(response.length() - payloadStart);
+                writeResponse(response, "FILE");
+                node.recordServed(fileName);
+                commitChunkServed(event, origin, fileName, chunkIndex, offset, bytesToRead, response.length() - payloadStart, codec, cached, false);
             }
 
         } catch (NoSuchFieldException | IllegalAccessException e) {
@@ -248,29 +422,367 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private void sendResponse(String responseType, String... args) {
+    /**
+     * Como o caminho normal do DL, mas lendo o chunk dos blocos do {@link ChunkStore}. Um chunk
+     * do tamanho do bloco do armazenamento e um unico bloco; outros tamanhos juntam pedacos.
+     */
+    private void serveStoredChunk(String origin, ChunkStore store, String fileName, int requestedChunkSize, long chunkIndex, ChunkCodec codec) throws IOException {
+        long fileSize = store.getFileSize(fileName);
+        long offset = chunkIndex * requestedChunkSize;
+        if (fileSize < 0 || chunkIndex >= (fileSize + requestedChunkSize - 1) / requestedChunkSize) {
+            sendResponse("FILE", fileName, "0", String.valueOf(chunkIndex), "ERROR_CHUNK_OUT_OF_BOUNDS");
+            return;
+        }
+        long bytesToRead = Math.min(requestedChunkSize, fileSize - offset);
+
+        ChunkCache cache = node.getChunkCache();
+        String encoding = codec == null ? "base64" : codec.getName() + "+base64";
+        ChunkCache.Key cacheKey = new ChunkCache.Key("cas:" + fileName, store.getVersion(fileName), fileSize, offset, (int) bytesToRead, encoding);
+        TraceEvents.ChunkServed event = new TraceEvents.ChunkServed();
+        event.begin();
+        try (MessageBuffer response = beginFileResponse(fileName, bytesToRead, chunkIndex)) {
+            int payloadStart = response.length();
+            boolean cached = cache.appendTo(cacheKey, response);
+            if (!cached) {
+                try (MessageBuffer chunk = new MessageBuffer(node.getBufferPool(), (int) bytesToRead)) {
+                    store.readRange(fileName, offset, chunk.array(), (int) bytesToRead);
+                    appendChunkPayload(response, chunk.array(), (int) bytesToRead, codec);
+                }
+                cache.put(cacheKey, response.array(), payloadStart, response.length() - payloadStart);
+            }
+            throttleUpload(response.length() - payloadStart);
+            writeResponse(response, "FILE");
+            node.recordServed(fileName);
+            commitChunkServed(event, origin, fileName, chunkIndex, offset, bytesToRead, response.length() - payloadStart, codec, cached, false);
+        }
+    }
+
+    /**
+     * GET_MANIFEST {@code <nome> <tam_bloco>}: responde MANIFEST
+     * {@code <nome> <tamanho> <tam_bloco> <hashes>}, com o SHA-256 de cada bloco concatenado em
+     * Base64, para quem baixa reaproveitar os blocos que ja tem. Arquivos soltos (ou com outro
+     * tamanho de bloco) sao lidos e calculados na hora; parciais respondem ERROR_NOT_FOUND.
+     */
+    private void handleGetManifest(MessageTokenizer tokens) {
+        String fileName = tokens.nextText();
+        int blockSize;
+        try {
+            blockSize = tokens.nextInt();
+        } catch (NumberFormatException e) {
+            blockSize = -1;
+        }
+        if (fileName == null || blockSize <= 0 || blockSize > Node.MAX_CHUNK_SIZE) {
+            System.err.println("Argumentos invalidos para GET_MANIFEST: " + tokens.getArgsText());
+            sendResponse("MANIFEST", fileName == null ? "UNKNOWN" : fileName, "0", "0", "ERROR_BAD_REQUEST");
+            return;
+        }
+        File file = node.resolveShared(fileName);
+        if (file == null) {
+            System.err.println("Nome de arquivo invalido em GET_MANIFEST: " + fileName);
+            sendResponse("MANIFEST", fileName, "0", String.valueOf(blockSize), "ERROR_BAD_REQUEST");
+            return;
+        }
+        byte[] hashes = null;
+        long fileSize = 0;
+        try {
+            ChunkStore store = node.getChunkStore();
+            if (file.isFile() && file.canRead() && node.getSwarm().getPartialFile(fileName) == null) {
+                fileSize = file.length();
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                    hashes = ChunkStore.hashBlocks(in, fileSize, blockSize);
+                }
+            } else if (store != null && store.contains(fileName)) {
+                fileSize = store.getFileSize(fileName);
+                hashes = store.hashesFor(fileName, blockSize);
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao gerar manifesto de " + fileName + ": " + e.getMessage());
+            sendResponse("MANIFEST", fileName, "0", String.valueOf(blockSize), "ERROR_READ_FAILED");
+            return;
+        }
+        if (hashes == null) {
+            sendResponse("MANIFEST", fileName, "0", String.valueOf(blockSize), "ERROR_NOT_FOUND");
+            return;
+        }
+        sendResponse("MANIFEST", fileName, String.valueOf(fileSize), String.valueOf(blockSize), Base64.getEncoder().encodeToString(hashes));
+    }
+
+    /**
+     * HOT {@code <nome> <tamanho> <req_por_min>}: a origem avisa que o arquivo esta muito
+     * pedido. Nao tem resposta.
+     */
+    private void handleHot(MessageTokenizer tokens) {
+        String fileName = tokens.nextText();
+        String size = tokens.nextText();
+        String rate = tokens.nextText();
+        if (fileName == null || size == null || rate == null || tokens.getOriginPort() < 0) {
+            System.err.println("Argumentos invalidos para HOT: " + tokens.getArgsText());
+            return;
+        }
+        try {
+            String originHost = node.knownHost(tokens, tokens.getOriginHostStart(), tokens.getOriginHostEnd());
+            node.onHot(originHost, tokens.getOriginPort(), fileName, Long.parseLong(size), Double.parseDouble(rate));
+        } catch (NumberFormatException e) {
+            System.err.println("Argumentos invalidos para HOT: " + tokens.getArgsText());
+        }
+    }
+
+    /**
+     * DELTA {@code <nome> <tamBloco> <nBlocos> <assinaturas>}: descreve a versao atual do
+     * arquivo em linhas DELTA_OPS ({@code C<bloco>:<n>} copia blocos da copia de quem pediu,
+     * {@code L<base64>} traz bytes novos) e termina com DELTA_END {@code <nome> <tamanho> <sha256> <literais>}.
+     */
+    private void handleDelta(String origin, MessageTokenizer tokens) {
+        String fileName = tokens.nextText();
+        int blockSize;
+        int numBlocks;
         try {
+            blockSize = tokens.nextInt();
+            numBlocks = tokens.nextInt();
+        } catch (NumberFormatException e) {
+            blockSize = -1;
+            numBlocks = -1;
+        }
+        if (fileName == null || blockSize <= 0 || blockSize > Node.MAX_CHUNK_SIZE || numBlocks < 0 || !tokens.next()) {
+            System.err.println("Argumentos invalidos para DELTA: " + tokens.getArgsText());
+            sendResponse("DELTA_END", fileName == null ? "UNKNOWN" : fileName, "0", "ERROR_BAD_REQUEST");
+            return;
+        }
+        byte[] line = tokens.getBuffer();
+        int sigStart = tokens.tokenStart();
+        int sigLength = tokens.tokenEnd() - sigStart;
+        byte[] signatures = new byte[Math.max(0, Base64Codec.decodedLength(line, sigStart, sigLength))];
+        if ((long) numBlocks * DeltaEncoder.SIGNATURE_BYTES != signatures.length
+                || Base64Codec.decode(line, sigStart, sigLength, signatures, 0) != signatures.length) {
+            System.err.println("Assinaturas invalidas em DELTA para " + fileName);
+            sendResponse("DELTA_END", fileName, "0", "ERROR_BAD_REQUEST");
+            return;
+        }
+        File file = node.resolveShared(fileName);
+        if (file == null) {
+            System.err.println("Nome de arquivo invalido em DELTA: " + fileName);
+            sendResponse("DELTA_END", fileName, "0", "ERROR_BAD_REQUEST");
+            return;
+        }
+        ChunkStore store = node.getChunkStore();
+        boolean stored = !file.isFile() && store != null && store.contains(fileName);
+        if (!stored && (!file.isFile() || !file.canRead())) {
+            sendResponse("DELTA_END", fileName, "0", "ERROR_NOT_FOUND");
+            return;
+        }
+
+        DeltaEncoder encoder = new DeltaEncoder(blockSize, signatures, numBlocks);
+        MessageDigest sha256 = DeltaEncoder.newDigest("SHA-256");
+        long size;
+        try (InputStream in = stored ? store.openStream(fileName) : new FileInputStream(file);
+             DeltaResponse response = new DeltaResponse(origin)) {
+            encoder.encode(in, sha256, DELTA_LITERAL_BYTES, response);
+            size = stored ? store.getFileSize(fileName) : file.length();
+        } catch (IOException e) {
+            System.err.println("Erro ao gerar delta de " + fileName + ": " + e.getMessage());
+            sendResponse("DELTA_END", fileName, "0", "ERROR_READ_FAILED");
+            return;
+        }
+        node.getMetrics().add("delta_literal_bytes_sent_total", encoder.getLiteralBytes());
+        node.getMetrics().add("delta_copied_bytes_total", encoder.getCopiedBytes());
+        sendResponse("DELTA_END", fileName, String.valueOf(size), toHex(sha256.digest()), String.valueOf(encoder.getLiteralBytes()));
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Agrupa as operacoes do delta em linhas DELTA_OPS, enviando cada linha quando ela passa
+     * de {@value #DELTA_LINE_BYTES} bytes ou quando fica {@value #DELTA_FLUSH_MS} ms sem envio.
+     */
+    private class DeltaResponse implements DeltaEncoder.Sink, AutoCloseable {
+        private final String origin;
+        private MessageBuffer line;
+        private long lastFlush = System.currentTimeMillis();
+
+        DeltaResponse(String origin) {
+            this.origin = origin;
+        }
+
+        @Override
+        public void copy(long firstBlock, long blockCount) throws IOException {
+            current().append(" C").append(firstBlock).append(':').append(blockCount);
+            flushIfDue();
+        }
+
+        @Override
+        public void literal(byte[] data, int off, int len) throws IOException {
+            current().append(" L").appendBase64(data, off, len);
+            throttleUpload(len);
+            flushIfDue();
+        }
+
+        private MessageBuffer current() {
+            if (line == null) {
+                line = beginResponse("DELTA_OPS");
+            }
+            return line;
+        }
+
+        private void flushIfDue() throws IOException {
+            if (line.length() >= DELTA_LINE_BYTES || System.currentTimeMillis() - lastFlush >= DELTA_FLUSH_MS) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            try {
+                writeResponse(line, "DELTA_OPS");
+            } finally {
+                line.close();
+                line = null;
+                lastFlush = System.currentTimeMillis();
+            }
             if (socket.isClosed()) {
-                System.err.println("Tentativa de enviar resposta em socket fechado.");
+                throw new IOException("Conexao fechada durante o envio do delta");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (line != null) {
+                flush();
+            }
+        }
+    }
+
+    private void servePartialChunk(String origin, PartialFile partial, int requestedChunkSize, long chunkIndex, ChunkCodec codec) throws IOException {
+        String fileName = partial.getFileName();
+        long offset = chunkIndex * requestedChunkSize;
+        if (chunkIndex >= (partial.getFileSize() + requestedChunkSize - 1) / requestedChunkSize) {
+            sendResponse("FILE", fileName, "0", String.valueOf(chunkIndex), "ERROR_CHUNK_OUT_OF_BOUNDS");
+            return;
+        }
+        long bytesToRead = Math.min(requestedChunkSize, partial.getFileSize() - offset);
+        if (!partial.hasRange(offset, bytesToRead)) {
+            sendResponse("FILE", fileName, "0", String.valueOf(chunkIndex), "ERROR_CHUNK_NOT_AVAILABLE");
+            return;
+        }
+        TraceEvents.ChunkServed event = new TraceEvents.ChunkServed();
+        event.begin();
+        try (MessageBuffer response = beginFileResponse(fileName, bytesToRead, chunkIndex);
+             MessageBuffer chunk = new MessageBuffer(node.getBufferPool(), (int) bytesToRead)) {
+            partial.readRange(offset, chunk.array(), (int) bytesToRead);
+            int payloadStart = response.length();
+            appendChunkPayload(response, chunk.array(), (int) bytesToRead, codec);
+            throttleUpload(response.length() - payloadStart);
+            writeResponse(response, "FILE");
+            commitChunkServed(event, origin, fileName, chunkIndex, offset, bytesToRead, response.length() - payloadStart, codec, false, true);
+        }
+    }
+
+    private static void commitChunkServed(TraceEvents.ChunkServed event, String origin, String fileName, long chunkIndex, long offset,
+                                          long bytes, long payloadBytes, ChunkCodec codec, boolean cached, boolean partial) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.peer = origin;
+            event.file = fileName;
+            event.chunkIndex = chunkIndex;
+            event.offset = offset;
+            event.bytes = bytes;
+            event.payloadBytes = payloadBytes;
+            event.codec = codec == null ? "none" : codec.getName();
+            event.cached = cached;
+            event.partial = partial;
+            event.commit();
+        }
+    }
+
+    /**
+     * Poe o conteudo do chunk em Base64 no fim do FILE. Com um codec negociado, comprime antes
+     * um trecho de amostra; se a amostra ou o chunk inteiro nao encolherem o bastante (midia,
+     * arquivos ja comprimidos), manda cru. Comprimido, o FILE ganha o nome do codec no fim.
+     */
+    private void appendChunkPayload(MessageBuffer response, byte[] data, int length, ChunkCodec codec) {
+        if (codec == null || length < MIN_COMPRESS_BYTES) {
+            response.appendBase64(data, 0, length);
+            return;
+        }
+        try (MessageBuffer packed = new MessageBuffer(node.getBufferPool(), length)) {
+            if (length > COMPRESS_SAMPLE_BYTES * 2) {
+                int sampleOffset = (length - COMPRESS_SAMPLE_BYTES) / 2;
+                if (codec.compress(data, sampleOffset, COMPRESS_SAMPLE_BYTES, packed.array(), (int) (COMPRESS_SAMPLE_BYTES * MAX_COMPRESSED_RATIO)) < 0) {
+                    node.getMetrics().increment("compression_skipped_sample_total");
+                    response.appendBase64(data, 0, length);
+                    return;
+                }
+            }
+            int compressed = codec.compress(data, 0, length, packed.array(), (int) (length * MAX_COMPRESSED_RATIO));
+            if (compressed < 0) {
+                node.getMetrics().increment("compression_skipped_total");
+                response.appendBase64(data, 0, length);
                 return;
             }
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            int responseClock = node.incrementClockForSend();
-            StringBuilder fullResponse = new StringBuilder();
-            fullResponse.append(node.getAddress()).append(" ")
-                        .append(responseClock).append(" ")
-                        .append(responseType);
+            node.getMetrics().add("compression_raw_bytes_total", length);
+            node.getMetrics().add("compression_packed_bytes_total", compressed);
+            response.appendBase64(packed.array(), 0, compressed).append(' ').append(codec.getName());
+        }
+    }
+
+    /**
+     * Cobra {@code bytes} do limite de upload. O balde por peer e o IP da conexao, nao a origem
+     * escrita na mensagem, que o peer pode trocar a cada pedido para ganhar baldes novos.
+     */
+    private void throttleUpload(long bytes) {
+        try {
+            node.getUploadLimiter().acquire(socket.getInetAddress().getHostAddress(), bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendResponse(String responseType, String... args) {
+        try (MessageBuffer response = beginResponse(responseType)) {
             for (String arg : args) {
-                fullResponse.append(" ").append(arg);
+                response.append(' ').append(arg);
             }
+            writeResponse(response, responseType);
+        }
+    }
+
+    private MessageBuffer beginResponse(String responseType) {
+        MessageBuffer response = new MessageBuffer(node.getBufferPool());
+        response.append(node.getAddress()).append(' ')
+                .append(node.incrementClockForSend()).append(' ')
+                .append(responseType);
+        return response;
+    }
+
+    /**
+     * Cabecalho de uma resposta FILE; o conteudo Base64 e anexado depois, direto no buffer.
+     */
+    private MessageBuffer beginFileResponse(String fileName, long size, long chunkIndex) {
+        MessageBuffer response = beginResponse("FILE");
+        response.append(' ').append(fileName)
+                .append(' ').append(size)
+                .append(' ').append(chunkIndex)
+                .append(' ');
+        return response;
+    }
 
-            String responseString = fullResponse.toString();
-            if (responseType.equals("FILE") && responseString.length() > 200) {
-                 System.out.printf("Enviando resposta para %s: \"%s...\"%n", socket.getRemoteSocketAddress(), responseString.substring(0, 200));
+    private void writeResponse(MessageBuffer response, String responseType) {
+        try {
+            if (socket.isClosed()) {
+                System.err.println("Tentativa de enviar resposta em socket fechado.");
+                return;
+            }
+            if ((responseType.equals("FILE") || responseType.equals("DELTA_OPS")) && response.length() > Node.LOG_PREVIEW_CHARS) {
+                 System.out.printf("Enviando resposta para %s: \"%s...\"%n", socket.getRemoteSocketAddress(), response.toString(0, Node.LOG_PREVIEW_CHARS));
             } else {
-                 System.out.printf("Enviando resposta para %s: \"%s\"%n", socket.getRemoteSocketAddress(), responseString.trim());
+                 System.out.printf("Enviando resposta para %s: \"%s\"%n", socket.getRemoteSocketAddress(), response.toString().trim());
             }
-            out.println(responseString);
+            response.writeLine(socket.getOutputStream());
+            node.getMetrics().add("server_bytes_sent_total", response.length() + 1);
         } catch (IOException e) {
             if (node.isRunning()) {
                  System.err.printf("Erro ao enviar resposta '%s' para %s: %s%n", responseType, socket.getRemoteSocketAddress(), e.getMessage());
@@ -0,0 +1,80 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orcamento de requisicoes DL em voo compartilhado por todos os downloads: um limite global
+ * e um limite por peer, para que varios arquivos baixando em paralelo nao sobrecarreguem a
+ * mesma fonte. A permissao do peer e tomada antes da global, e as duas sao devolvidas juntas.
+ */
+class ConnectionBudget {
+    private final int globalLimit;
+    private final int perPeerLimit;
+    private final Semaphore global;
+    private final Map<String, Semaphore> peers = new ConcurrentHashMap<>();
+
+    ConnectionBudget(int globalLimit, int perPeerLimit, Metrics metrics) {
+        this.globalLimit = globalLimit;
+        this.perPeerLimit = perPeerLimit;
+        this.global = new Semaphore(globalLimit, true);
+        metrics.registerGauge("download_inflight_requests", () -> globalLimit - global.availablePermits());
+        metrics.registerGauge("download_inflight_limit", () -> globalLimit);
+        metrics.registerGauge("download_peer_inflight_limit", () -> perPeerLimit);
+    }
+
+    /**
+     * Espera ate {@code timeoutMs} por uma vaga para {@code address}. Devolve false se nao
+     * conseguiu; nesse caso nada fica reservado.
+     */
+    boolean acquire(String address, long timeoutMs) throws InterruptedException {
+        Semaphore peer = peerSemaphore(address);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        if (!peer.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        boolean acquired = false;
+        try {
+            acquired = global.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } finally {
+            if (!acquired) {
+                peer.release();
+            }
+        }
+        return acquired;
+    }
+
+    /** Variante sem espera, usada pelas requisicoes duplicadas (hedge). */
+    boolean tryAcquire(String address) {
+        Semaphore peer = peerSemaphore(address);
+        if (!peer.tryAcquire()) {
+            return false;
+        }
+        if (!global.tryAcquire()) {
+            peer.release();
+            return false;
+        }
+        return true;
+    }
+
+    void release(String address) {
+        global.release();
+        peerSemaphore(address).release();
+    }
+
+    int getInFlight() {
+        return globalLimit - global.availablePermits();
+    }
+
+    int getGlobalLimit() {
+        return globalLimit;
+    }
+
+    int getPerPeerLimit() {
+        return perPeerLimit;
+    }
+
+    private Semaphore peerSemaphore(String address) {
+        return peers.computeIfAbsent(address, k -> new Semaphore(perPeerLimit, true));
+    }
+}
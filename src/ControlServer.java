@@ -0,0 +1,314 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Socket de controle local (somente loopback) para operar um no sem o menu interativo.
+ * Cada linha e um comando; a resposta sao zero ou mais linhas de dados seguidas de uma
+ * linha {@code OK} ou {@code ERRO <motivo>}. Comandos: {@code peers}, {@code hello <host:porta>},
+ * {@code get-peers}, {@code files}, {@code search <padrao> [limite] [min-max]},
+ * {@code download <nome> [tamanho] [p=N]}, {@code mirror [host:porta] [p=N]}, {@code downloads},
+ * {@code wait <id>}, {@code cancel <id>}, {@code stats}, {@code profiles}, {@code popular}, {@code chunk <n>}, {@code shutdown},
+ * {@code quit} e {@code help}.
+ */
+class ControlServer {
+    private static final String[] HELP = {
+            "peers                               lista peers: <host:porta> <status> <clock> [indice=<versao>]",
+            "hello <host:porta>                  envia HELLO",
+            "get-peers                           envia GET_PEERS para os peers conhecidos",
+            "files                               lista arquivos locais: <nome> <tamanho>",
+            "search <padrao> [limite] [min-max]  busca na rede: <nome> <tamanho> <fontes>",
+            "download <nome> [tamanho] [p=N]     poe o arquivo na fila de downloads (prioridade N, padrao 0)",
+            "mirror [host:porta] [p=N]           enfileira todos os arquivos remotos que faltam localmente",
+            "downloads                           progresso: #<id> <nome> <estado> <bytes> <pct> <KB/s> p=<prioridade>",
+            "wait <id>                           espera o download terminar",
+            "cancel <id>                         cancela um download na fila ou em andamento",
+            "stats                               metricas do no: <nome> <valor>",
+            "profiles                            desempenho medido por peer: <host:porta> rtt=<ms> vazao=<KB/s>",
+            "popular                             arquivos mais pedidos: <nome> <req/min> <total> [HOT]; replica <nome> <tamanho> <pedidos>",
+            "chunk <n>                           altera o tamanho de chunk",
+            "shutdown                            encerra o no",
+            "quit                                fecha esta conexao"
+    };
+
+    private final Node node;
+    private final int port;
+    private final AtomicInteger threads = new AtomicInteger();
+    private final ExecutorService sessions = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "control-" + threads.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile ServerSocket serverSocket;
+
+    ControlServer(Node node, int port) {
+        this.node = node;
+        this.port = port;
+    }
+
+    /**
+     * Abre o socket em 127.0.0.1 e passa a aceitar conexoes numa thread daemon.
+     */
+    void start() throws IOException {
+        serverSocket = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptLoop, "control-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.printf("Socket de controle em %s:%d.%n", InetAddress.getLoopbackAddress().getHostAddress(), serverSocket.getLocalPort());
+    }
+
+    void stop() {
+        ServerSocket current = serverSocket;
+        if (current != null && !current.isClosed()) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                System.err.println("Erro ao fechar socket de controle: " + e.getMessage());
+            }
+        }
+        sessions.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                sessions.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Erro no accept do socket de controle: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.equalsIgnoreCase("quit")) {
+                    out.println("OK");
+                    return;
+                }
+                execute(line, out);
+                if (!node.isRunning()) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            if (node.isRunning()) {
+                System.err.println("Erro na sessao de controle: " + e.getMessage());
+            }
+        }
+    }
+
+    private void execute(String line, PrintWriter out) {
+        int space = line.indexOf(' ');
+        String command = (space < 0 ? line : line.substring(0, space)).toLowerCase(Locale.ROOT);
+        String args = space < 0 ? "" : line.substring(space + 1).trim();
+        System.out.println("Comando de controle: " + line);
+        try {
+            switch (command) {
+                case "peers": {
+                    MulticastDiscovery multicast = node.getMulticast();
+                    for (Peer peer : node.getKnownPeers()) {
+                        long version = multicast == null ? -1 : multicast.getIndexVersion(peer.getAddress());
+                        out.printf("%s %s %d%s%n", peer.getAddress(), peer.getStatus(), peer.getPeerClock(), version < 0 ? "" : " indice=" + version);
+                    }
+                    break;
+                }
+                case "hello": {
+                    int colon = args.lastIndexOf(':');
+                    if (colon <= 0) {
+                        throw new IllegalArgumentException("uso: hello <host:porta>");
+                    }
+                    if (!node.sendHello(args.substring(0, colon), Integer.parseInt(args.substring(colon + 1)))) {
+                        out.println("ERRO peer inalcancavel");
+                        return;
+                    }
+                    break;
+                }
+                case "get-peers":
+                    node.getPeers();
+                    break;
+                case "files":
+                    node.localFiles().forEach((name, size) -> out.printf("%s %d%n", name, size));
+                    break;
+                case "search":
+                    for (DiscoveredFileGroup group : node.discoverFiles(SearchQuery.parse(args))) {
+                        out.printf("%s %d %s%n", group.fileName, group.fileSize, sources(group));
+                    }
+                    break;
+                case "download":
+                    download(args, out);
+                    return;
+                case "mirror":
+                    mirror(args, out);
+                    break;
+                case "downloads": {
+                    ConnectionBudget budget = node.getDownloadManager().getBudget();
+                    out.printf("em-voo %d/%d por-peer %d%n", budget.getInFlight(), budget.getGlobalLimit(), budget.getPerPeerLimit());
+                    for (DownloadManager.Job job : node.getDownloadManager().getJobs()) {
+                        out.println(job.describe());
+                    }
+                    break;
+                }
+                case "wait":
+                    waitFor(args, out);
+                    return;
+                case "cancel":
+                    if (!node.getDownloadManager().cancel(Integer.parseInt(args))) {
+                        out.println("ERRO download inexistente ou ja terminado: " + args);
+                        return;
+                    }
+                    break;
+                case "stats":
+                    for (Map.Entry<String, Number> entry : node.getMetrics().snapshot().entrySet()) {
+                        out.printf("%s %s%n", entry.getKey(), entry.getValue());
+                    }
+                    break;
+                case "profiles":
+                    for (String profile : node.getPeerProfiles().describe()) {
+                        out.println(profile);
+                    }
+                    break;
+                case "popular": {
+                    for (String popular : node.getPopularity().describe()) {
+                        out.println(popular);
+                    }
+                    ReplicaCache replicas = node.getReplicaCache();
+                    if (replicas != null) {
+                        for (String replica : replicas.describe()) {
+                            out.println("replica " + replica);
+                        }
+                    }
+                    break;
+                }
+                case "chunk": {
+                    int size = Integer.parseInt(args);
+                    if (size <= 0 || size > Node.MAX_CHUNK_SIZE) {
+                        throw new IllegalArgumentException("tamanho de chunk deve estar entre 1 e " + Node.MAX_CHUNK_SIZE);
+                    }
+                    node.setChunkSize(size);
+                    break;
+                }
+                case "shutdown":
+                    out.println("OK");
+                    node.exit();
+                    return;
+                case "help":
+                    for (String help : HELP) {
+                        out.println(help);
+                    }
+                    break;
+                default:
+                    out.println("ERRO comando desconhecido: " + command);
+                    return;
+            }
+            out.println("OK");
+        } catch (IllegalArgumentException e) {
+            out.println("ERRO " + e.getMessage());
+        }
+    }
+
+    private void download(String args, PrintWriter out) {
+        List<String> fields = new ArrayList<>(Arrays.asList(args.split(" ")));
+        int priority = takePriority(fields);
+        if (fields.isEmpty() || fields.get(0).isEmpty() || fields.size() > 2) {
+            out.println("ERRO uso: download <nome> [tamanho] [p=N]");
+            return;
+        }
+        String fileName = fields.get(0);
+        long fileSize = fields.size() > 1 ? Long.parseLong(fields.get(1)) : -1;
+        List<DiscoveredFileGroup> matches = new ArrayList<>();
+        for (DiscoveredFileGroup group : node.discoverFiles(SearchQuery.parse(fileName))) {
+            if (group.fileName.equals(fileName) && (fileSize < 0 || group.fileSize == fileSize)) {
+                matches.add(group);
+            }
+        }
+        if (matches.isEmpty()) {
+            out.println("ERRO arquivo nao encontrado na rede: " + fileName);
+            return;
+        }
+        if (matches.size() > 1) {
+            for (DiscoveredFileGroup group : matches) {
+                out.printf("%s %d %s%n", group.fileName, group.fileSize, sources(group));
+            }
+            out.println("ERRO mais de uma versao de " + fileName + "; informe o tamanho");
+            return;
+        }
+        DownloadManager.Job job = node.getDownloadManager().enqueue(matches.get(0), priority);
+        out.println(job.describe());
+        out.println("OK");
+    }
+
+    private void mirror(String args, PrintWriter out) {
+        List<String> fields = new ArrayList<>(Arrays.asList(args.split(" ")));
+        int priority = takePriority(fields);
+        fields.removeIf(String::isEmpty);
+        if (fields.size() > 1) {
+            throw new IllegalArgumentException("uso: mirror [host:porta] [p=N]");
+        }
+        String peer = fields.isEmpty() ? null : fields.get(0);
+        List<DiscoveredFileGroup> groups = new ArrayList<>();
+        for (DiscoveredFileGroup group : node.discoverFiles(null)) {
+            if (peer == null || group.peerLocations.stream().anyMatch(loc -> loc.getAddress().equals(peer))) {
+                groups.add(group);
+            }
+        }
+        for (DownloadManager.Job job : node.getDownloadManager().mirror(groups, priority)) {
+            out.println(job.describe());
+        }
+    }
+
+    private void waitFor(String args, PrintWriter out) {
+        DownloadManager.Job job = node.getDownloadManager().getJob(Integer.parseInt(args));
+        if (job == null) {
+            out.println("ERRO download inexistente: " + args);
+            return;
+        }
+        boolean success;
+        try {
+            success = job.getCompletion().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            success = false;
+        }
+        out.println(job.describe());
+        out.println(success ? "OK" : "ERRO download " + job.getState());
+    }
+
+    /** Remove um campo {@code p=N} da lista e devolve N (0 se ausente). */
+    private static int takePriority(List<String> fields) {
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i).startsWith("p=")) {
+                return Integer.parseInt(fields.remove(i).substring(2));
+            }
+        }
+        return 0;
+    }
+
+    private static String sources(DiscoveredFileGroup group) {
+        return group.peerLocations.stream()
+                .map(loc -> loc.getAddress() + (loc.partial ? "(parcial)" : ""))
+                .collect(Collectors.joining(","));
+    }
+}
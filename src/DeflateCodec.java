@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link ChunkCodec} com o Deflate do JDK no nivel mais rapido. Cada thread reaproveita seu
+ * {@link Deflater}/{@link Inflater}, ja que criar um por chunk custa mais que comprimir
+ * chunks pequenos.
+ */
+class DeflateCodec implements ChunkCodec {
+    static final String NAME = "deflate";
+
+    private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int compress(byte[] src, int off, int len, byte[] dst, int limit) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(src, off, len);
+        deflater.finish();
+        int written = 0;
+        while (!deflater.finished()) {
+            if (written >= limit) {
+                return -1;
+            }
+            written += deflater.deflate(dst, written, limit - written);
+        }
+        return written;
+    }
+
+    @Override
+    public void decompress(byte[] src, int off, int len, byte[] dst, int expected) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(src, off, len);
+        int written = 0;
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(dst, written, expected - written);
+                written += n;
+                if (n == 0 && (written == expected || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Conteudo deflate invalido: " + e.getMessage(), e);
+        }
+        if (!inflater.finished() || written != expected) {
+            throw new IOException("Conteudo deflate com tamanho inesperado (" + written + " de " + expected + " bytes)");
+        }
+    }
+}
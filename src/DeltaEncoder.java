@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lado do servidor da sincronizacao por delta (estilo rsync). Recebe as assinaturas dos
+ * blocos da copia antiga de quem pede (checksum rolante fraco + hash forte truncado),
+ * percorre a versao atual do arquivo uma vez e descreve-a como uma sequencia de copias de
+ * blocos antigos e trechos literais.
+ *
+ * <p>Tambem traz as funcoes de checksum usadas pelos dois lados, para que cliente e servidor
+ * calculem as assinaturas do mesmo jeito.
+ */
+class DeltaEncoder {
+    static final int WEAK_BYTES = 4;
+    static final int STRONG_BYTES = 8;
+    static final int SIGNATURE_BYTES = WEAK_BYTES + STRONG_BYTES;
+    private static final int READ_BUFFER_MIN = 1024 * 1024;
+    // Copias longas sao emitidas aos pedacos para que o cliente receba algo antes do timeout.
+    private static final long MAX_COPY_RUN_BYTES = 64L * 1024 * 1024;
+
+    /** Recebe as operacoes na ordem em que reconstroem o arquivo novo. */
+    interface Sink {
+        void copy(long firstBlock, long blockCount) throws IOException;
+        void literal(byte[] data, int off, int len) throws IOException;
+    }
+
+    private final int blockSize;
+    private final long numBlocks;
+    private final byte[] signatures;
+    private final Map<Integer, Integer> firstByWeak = new HashMap<>();
+    private final int[] nextSameWeak;
+    // Filtro de 16 bits (como a tag table do rsync): evita consultar o mapa a cada byte.
+    private final long[] tags = new long[(1 << 16) / Long.SIZE];
+    private final MessageDigest strong = newDigest("MD5");
+    private final byte[] strongOut = new byte[16];
+
+    private long literalBytes;
+    private long copiedBlocks;
+
+    DeltaEncoder(int blockSize, byte[] signatures, int numBlocks) {
+        this.blockSize = blockSize;
+        this.numBlocks = numBlocks;
+        this.signatures = signatures;
+        this.nextSameWeak = new int[numBlocks];
+        for (int i = numBlocks - 1; i >= 0; i--) {
+            int weak = readInt(signatures, i * SIGNATURE_BYTES);
+            int tag = tag(weak);
+            tags[tag >>> 6] |= 1L << tag;
+            Integer previous = firstByWeak.put(weak, i);
+            nextSameWeak[i] = previous == null ? -1 : previous;
+        }
+    }
+
+    /**
+     * Le {@code in} ate o fim e emite as operacoes em {@code sink}. {@code whole} recebe
+     * todos os bytes lidos, para o SHA-256 do arquivo novo. Literais chegam em pedacos de
+     * no maximo {@code maxLiteral} bytes.
+     */
+    void encode(InputStream in, MessageDigest whole, int maxLiteral, Sink sink) throws IOException {
+        byte[] buf = new byte[Math.max(READ_BUFFER_MIN, blockSize * 4)];
+        int start = 0;
+        int end = 0;
+        int literalStart = 0;
+        boolean eof = false;
+        boolean rolling = false;
+        int a = 0;
+        int b = 0;
+        long pendingFirst = -1;
+        long pendingCount = 0;
+
+        while (true) {
+            if (end - start <= blockSize && !eof) {
+                if (start > literalStart) {
+                    literalBytes += start - literalStart;
+                    sink.literal(buf, literalStart, start - literalStart);
+                }
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+                literalStart = 0;
+                while (end < buf.length && !eof) {
+                    int read = in.read(buf, end, buf.length - end);
+                    if (read < 0) {
+                        eof = true;
+                    } else {
+                        whole.update(buf, end, read);
+                        end += read;
+                    }
+                }
+            }
+            if (end - start < blockSize) {
+                break;
+            }
+            if (!rolling) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < blockSize; i++) {
+                    int x = buf[start + i] & 0xff;
+                    a += x;
+                    b += (blockSize - i) * x;
+                }
+                a &= 0xffff;
+                b &= 0xffff;
+                rolling = true;
+            }
+            long match = findBlock(a | (b << 16), buf, start);
+            if (match >= 0) {
+                if (start > literalStart) {
+                    if (pendingCount > 0) {
+                        sink.copy(pendingFirst, pendingCount);
+                        pendingCount = 0;
+                    }
+                    literalBytes += start - literalStart;
+                    sink.literal(buf, literalStart, start - literalStart);
+                }
+                if (pendingCount > 0 && match == pendingFirst + pendingCount && (pendingCount + 1) * blockSize <= MAX_COPY_RUN_BYTES) {
+                    pendingCount++;
+                } else {
+                    if (pendingCount > 0) {
+                        sink.copy(pendingFirst, pendingCount);
+                    }
+                    pendingFirst = match;
+                    pendingCount = 1;
+                }
+                copiedBlocks++;
+                start += blockSize;
+                literalStart = start;
+                rolling = false;
+                continue;
+            }
+            if (pendingCount > 0) {
+                sink.copy(pendingFirst, pendingCount);
+                pendingCount = 0;
+            }
+            if (start + blockSize < end) {
+                int out = buf[start] & 0xff;
+                int in2 = buf[start + blockSize] & 0xff;
+                a = (a - out + in2) & 0xffff;
+                b = (b - blockSize * out + a) & 0xffff;
+            } else {
+                rolling = false;
+            }
+            start++;
+            if (start - literalStart >= maxLiteral) {
+                literalBytes += start - literalStart;
+                sink.literal(buf, literalStart, start - literalStart);
+                literalStart = start;
+            }
+        }
+        if (pendingCount > 0) {
+            sink.copy(pendingFirst, pendingCount);
+        }
+        for (int from = literalStart; from < end; from += maxLiteral) {
+            int len = Math.min(maxLiteral, end - from);
+            literalBytes += len;
+            sink.literal(buf, from, len);
+        }
+    }
+
+    long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    long getCopiedBytes() {
+        return copiedBlocks * blockSize;
+    }
+
+    private long findBlock(int weak, byte[] buf, int off) {
+        int tag = tag(weak);
+        if ((tags[tag >>> 6] & (1L << tag)) == 0) {
+            return -1;
+        }
+        Integer first = firstByWeak.get(weak);
+        if (first == null) {
+            return -1;
+        }
+        strongHash(strong, buf, off, blockSize, strongOut);
+        for (int i = first; i >= 0; i = nextSameWeak[i]) {
+            int sig = i * SIGNATURE_BYTES + WEAK_BYTES;
+            if (Arrays.equals(strongOut, 0, STRONG_BYTES, signatures, sig, sig + STRONG_BYTES)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int tag(int weak) {
+        return (weak ^ (weak >>> 16)) & 0xffff;
+    }
+
+    /** Checksum fraco do rsync: duas somas de 16 bits, a segunda ponderada pela posicao. */
+    static int weakChecksum(byte[] data, int off, int len) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < len; i++) {
+            int x = data[off + i] & 0xff;
+            a += x;
+            b += (len - i) * x;
+        }
+        return (a & 0xffff) | ((b & 0xffff) << 16);
+    }
+
+    /** MD5 do bloco; os primeiros {@value #STRONG_BYTES} bytes vao na assinatura. */
+    static void strongHash(MessageDigest md5, byte[] data, int off, int len, byte[] out) {
+        md5.reset();
+        md5.update(data, off, len);
+        try {
+            md5.digest(out, 0, out.length);
+        } catch (java.security.DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " indisponivel", e);
+        }
+    }
+
+    static int readInt(byte[] src, int off) {
+        return (src[off] & 0xff) << 24 | (src[off + 1] & 0xff) << 16 | (src[off + 2] & 0xff) << 8 | (src[off + 3] & 0xff);
+    }
+
+    static void writeInt(byte[] dst, int off, int value) {
+        dst[off] = (byte) (value >>> 24);
+        dst[off + 1] = (byte) (value >>> 16);
+        dst[off + 2] = (byte) (value >>> 8);
+        dst[off + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+
+/**
+ * Lado de quem pede da sincronizacao por delta. Envia as assinaturas dos blocos da copia
+ * local (antiga) para uma fonte completa, reconstroi a versao nova num arquivo em
+ * {@code .parcial} a partir das copias de blocos e dos literais recebidos, confere o SHA-256
+ * anunciado pela fonte e so entao substitui o arquivo local.
+ */
+class DeltaSync {
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    private static final int COPY_BUFFER = 256 * 1024;
+
+    private final Node node;
+    private final DiscoveredFileGroup group;
+    private final File local;
+    private final int blockSize;
+    private long literalBytes;
+    private long copiedBytes;
+
+    DeltaSync(Node node, DiscoveredFileGroup group, File local) {
+        this.node = node;
+        this.group = group;
+        this.local = local;
+        this.blockSize = chooseBlockSize(Math.max(local.length(), group.fileSize));
+    }
+
+    /**
+     * Bloco perto da raiz quadrada do tamanho (como o rsync), em potencia de 2 entre
+     * {@value #MIN_BLOCK_SIZE} e {@value #MAX_BLOCK_SIZE} bytes.
+     */
+    static int chooseBlockSize(long fileSize) {
+        long root = (long) Math.sqrt((double) fileSize);
+        int size = Integer.highestOneBit((int) Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, root)));
+        return Math.max(MIN_BLOCK_SIZE, size);
+    }
+
+    /**
+     * Tenta a sincronizacao com a primeira fonte completa do grupo. Devolve false (sem tocar
+     * no arquivo local) se nao houver fonte, se a fonte nao entender DELTA ou se o resultado
+     * nao conferir; quem chama entao baixa o arquivo inteiro.
+     */
+    boolean run() {
+        FileLocation source = null;
+        for (FileLocation location : group.peerLocations) {
+            if (!location.partial) {
+                source = location;
+                break;
+            }
+        }
+        long numBlocks = local.length() / blockSize;
+        if (source == null || numBlocks == 0 || numBlocks * DeltaEncoder.SIGNATURE_BYTES > Integer.MAX_VALUE / 2) {
+            return false;
+        }
+
+        Path target = Paths.get(node.getSharedDir().getAbsolutePath(), SwarmRegistry.PARTIAL_DIR, group.fileName + ".delta");
+        long startTime = System.nanoTime();
+        try {
+            Files.createDirectories(target.getParent());
+            boolean verified;
+            try (MessageBuffer request = signatures((int) numBlocks)) {
+                verified = apply(source, request, numBlocks, target);
+            }
+            if (!verified) {
+                Files.deleteIfExists(target);
+                return false;
+            }
+            try {
+                Files.move(target, local.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(target, local.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Falha na sincronizacao por delta de " + group.fileName + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(target);
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+        double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        node.getMetrics().add("delta_literal_bytes_received_total", literalBytes);
+        node.getMetrics().add("delta_reused_bytes_total", copiedBytes);
+        System.out.printf("Delta de %s aplicado em %.4f segundos: %d bytes novos, %d reaproveitados da copia local.%n",
+                group.fileName, seconds, literalBytes, copiedBytes);
+        return true;
+    }
+
+    /** {@code DELTA <nome> <tamBloco> <nBlocos> <base64 das assinaturas>}, montado no buffer. */
+    private MessageBuffer signatures(int numBlocks) throws IOException {
+        byte[] signatures = new byte[numBlocks * DeltaEncoder.SIGNATURE_BYTES];
+        MessageDigest md5 = DeltaEncoder.newDigest("MD5");
+        byte[] strong = new byte[16];
+        try (MessageBuffer block = new MessageBuffer(node.getBufferPool(), blockSize);
+             RandomAccessFile in = new RandomAccessFile(local, "r")) {
+            byte[] data = block.array();
+            for (int i = 0; i < numBlocks; i++) {
+                in.readFully(data, 0, blockSize);
+                int sig = i * DeltaEncoder.SIGNATURE_BYTES;
+                DeltaEncoder.writeInt(signatures, sig, DeltaEncoder.weakChecksum(data, 0, blockSize));
+                DeltaEncoder.strongHash(md5, data, 0, blockSize, strong);
+                System.arraycopy(strong, 0, signatures, sig + DeltaEncoder.WEAK_BYTES, DeltaEncoder.STRONG_BYTES);
+            }
+        }
+        MessageBuffer request = new MessageBuffer(node.getBufferPool(), Base64Codec.encodedLength(signatures.length) + 64);
+        request.append("DELTA ").append(group.fileName).append(' ').append(blockSize).append(' ').append(numBlocks).append(' ')
+                .appendBase64(signatures, 0, signatures.length);
+        return request;
+    }
+
+    private boolean apply(FileLocation source, MessageBuffer request, long numBlocks, Path target) throws IOException {
+        MessageDigest sha256 = DeltaEncoder.newDigest("SHA-256");
+        long[] written = {0};
+        String[] result = {null};
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             RandomAccessFile old = new RandomAccessFile(local, "r");
+             MessageBuffer scratch = new MessageBuffer(node.getBufferPool(), COPY_BUFFER)) {
+            boolean completed = node.stream(source.peerHost, source.peerPort, request, new RequestHandle(), tokens -> {
+                if (tokens.getType() == MessageType.DELTA_OPS) {
+                    while (tokens.next()) {
+                        written[0] += applyOp(tokens, old, out, scratch, sha256, numBlocks, source.getAddress());
+                    }
+                    return true;
+                }
+                if (tokens.getType() == MessageType.DELTA_END) {
+                    result[0] = tokens.getArgsText();
+                }
+                return false;
+            });
+            if (!completed || result[0] == null) {
+                return false;
+            }
+            out.force(false);
+        }
+        String[] end = result[0].split(" ");
+        if (end.length < 3 || !end[0].equals(group.fileName)) {
+            System.err.println("DELTA recusado por " + source.getAddress() + ": " + result[0]);
+            return false;
+        }
+        String expectedHash = end[2];
+        long expectedSize = Long.parseLong(end[1]);
+        if (written[0] != expectedSize || !expectedHash.equals(toHex(sha256.digest()))) {
+            System.err.printf("Delta de %s nao conferiu (%d bytes gerados, %d esperados); descartando.%n", group.fileName, written[0], expectedSize);
+            return false;
+        }
+        if (expectedSize != group.fileSize) {
+            System.out.printf("Aviso: %s mudou na fonte durante a sincronizacao (%d bytes, listado com %d).%n", group.fileName, expectedSize, group.fileSize);
+        }
+        return true;
+    }
+
+    /** Aplica uma operacao {@code C<bloco>:<n>} ou {@code L<base64>}; devolve os bytes escritos. */
+    private long applyOp(MessageTokenizer tokens, RandomAccessFile old, FileChannel out, MessageBuffer scratch,
+                         MessageDigest sha256, long numBlocks, String address) {
+        byte[] line = tokens.getBuffer();
+        int start = tokens.tokenStart();
+        try {
+            if (line[start] == 'C') {
+                if (tokens.split((byte) ':') != 2) {
+                    throw new IOException("Operacao de copia invalida: " + tokens.tokenText());
+                }
+                long first = tokens.parseLong(tokens.partStart(0) + 1, tokens.partEnd(0));
+                long count = tokens.partLong(1);
+                if (first < 0 || count <= 0 || first + count > numBlocks) {
+                    throw new IOException("Copia fora da copia local: " + tokens.tokenText());
+                }
+                long remaining = count * blockSize;
+                old.seek(first * blockSize);
+                byte[] data = scratch.array();
+                while (remaining > 0) {
+                    int len = (int) Math.min(remaining, data.length);
+                    old.readFully(data, 0, len);
+                    write(out, sha256, data, len);
+                    remaining -= len;
+                }
+                copiedBytes += count * blockSize;
+                return count * blockSize;
+            }
+            if (line[start] == 'L') {
+                int length = Base64Codec.decodedLength(line, start + 1, tokens.tokenEnd() - start - 1);
+                if (length < 0) {
+                    throw new IOException("Literal invalido no delta");
+                }
+                node.getDownloadLimiter().acquire(address, tokens.tokenEnd() - start - 1);
+                scratch.setLength(length);
+                if (Base64Codec.decode(line, start + 1, tokens.tokenEnd() - start - 1, scratch.array(), 0) != length) {
+                    throw new IOException("Literal invalido no delta");
+                }
+                write(out, sha256, scratch.array(), length);
+                literalBytes += length;
+                return length;
+            }
+            throw new IOException("Operacao desconhecida no delta: " + tokens.tokenText());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new IOException("Sincronizacao interrompida"));
+        }
+    }
+
+    private static void write(FileChannel out, MessageDigest sha256, byte[] data, int length) throws IOException {
+        sha256.update(data, 0, length);
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
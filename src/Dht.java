@@ -0,0 +1,437 @@
+import java.math.BigInteger;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Dht {
+    private static final int ID_BITS = 160;
+    private static final int K = 8;
+    private static final int ALPHA = 3;
+    private static final long REPUBLISH_INTERVAL_MS = 10 * 60 * 1000L;
+    private static final long PROVIDER_TTL_MS = 30 * 60 * 1000L;
+
+    private final Node node;
+    private final Contact self;
+    private final List<LinkedList<Contact>> buckets = new ArrayList<>(ID_BITS);
+    private final Map<BigInteger, Map<String, ProviderRecord>> providers = new ConcurrentHashMap<>();
+    private final ExecutorService rpcPool;
+    private final ScheduledExecutorService scheduler;
+    // A ultima republicacao nao tinha para quem publicar (no sozinho, como o primeiro da rede).
+    private volatile boolean publishedAlone;
+
+    public Dht(Node node) {
+        this.node = node;
+        this.self = Contact.fromAddress(node.getAddress());
+        for (int i = 0; i < ID_BITS; i++) {
+            buckets.add(new LinkedList<>());
+        }
+        this.rpcPool = Executors.newFixedThreadPool(ALPHA * 2, daemonThreads("dht-rpc"));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("dht-republish"));
+    }
+
+    public void start(Collection<Peer> bootstrapPeers) {
+        for (Peer peer : bootstrapPeers) {
+            addContact(Contact.fromAddress(peer.getAddress()));
+        }
+        scheduler.execute(() -> {
+            List<Contact> found = lookup(self.id, false).closest;
+            System.out.printf("DHT iniciada com ID %s. %d contatos proximos encontrados.%n", shortId(self.id), found.size());
+        });
+        scheduler.scheduleWithFixedDelay(this::republish, 0, REPUBLISH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        rpcPool.shutdownNow();
+    }
+
+    public static BigInteger keyFor(String fileName) {
+        return sha1("file:" + fileName);
+    }
+
+    /** Atende um pedido DHT_*, lendo os argumentos de {@code tokens} (cabecalho ja lido). */
+    public String handleRequest(String type, String originAddress, MessageTokenizer tokens) {
+        Contact origin = Contact.fromAddress(originAddress);
+        if (origin != null) {
+            addContact(origin);
+        }
+        try {
+            String keyHex = tokens.nextText();
+            if (keyHex == null) {
+                throw new IllegalArgumentException("Chave ausente");
+            }
+            BigInteger key = new BigInteger(keyHex, 16);
+            switch (type) {
+                case "DHT_FIND_NODE":
+                    return "DHT_NODES " + encodeContacts(closestContacts(key, K));
+                case "DHT_GET_PROVIDERS": {
+                    List<ProviderRecord> records = liveProviders(key);
+                    StringBuilder sb = new StringBuilder("DHT_PROVIDERS ").append(records.size());
+                    for (ProviderRecord record : records) {
+                        sb.append(" ").append(record.encode());
+                    }
+                    sb.append(" ").append(encodeContacts(closestContacts(key, K)));
+                    return sb.toString();
+                }
+                case "DHT_ADD_PROVIDER": {
+                    // Nome em URL-encoding, entao o unico ':' e o que separa o tamanho.
+                    if (origin == null || !tokens.next() || tokens.split((byte) ':') != 2) {
+                        return "DHT_ERROR ERROR_BAD_REQUEST";
+                    }
+                    String fileName = ProviderRecord.decodeName(tokens.partText(0));
+                    long fileSize = tokens.partLong(1);
+                    storeProvider(key, new ProviderRecord(origin.address, fileName, fileSize));
+                    return "DHT_OK";
+                }
+                default:
+                    return "DHT_ERROR ERROR_BAD_REQUEST";
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            System.err.println("Argumentos invalidos para " + type + ": " + tokens.getArgsText());
+            return "DHT_ERROR ERROR_BAD_REQUEST";
+        }
+    }
+
+    public List<ProviderRecord> findProviders(String fileName) {
+        BigInteger key = keyFor(fileName);
+        LookupResult result = lookup(key, true);
+        System.out.printf("Busca DHT por %s concluida com %d mensagens: %d fontes.%n", fileName, result.messages, result.providers.size());
+        node.getMetrics().increment("dht_lookups_total");
+        node.getMetrics().add("dht_lookup_messages_total", result.messages);
+        List<ProviderRecord> found = new ArrayList<>();
+        for (ProviderRecord record : result.providers.values()) {
+            if (record.fileName.equals(fileName) && !record.address.equals(self.address)) {
+                found.add(record);
+            }
+        }
+        return found;
+    }
+
+    public void publishFile(String fileName, long fileSize) {
+        BigInteger key = keyFor(fileName);
+        String args = key.toString(16) + " " + ProviderRecord.encodeName(fileName) + ":" + fileSize;
+        storeProvider(key, new ProviderRecord(self.address, fileName, fileSize));
+        List<Future<?>> pending = new ArrayList<>();
+        for (Contact contact : lookup(key, false).closest) {
+            pending.add(rpcPool.submit(() -> {
+                if (call(contact, "DHT_ADD_PROVIDER", args, "DHT_OK") == null) {
+                    removeContact(contact);
+                }
+            }));
+        }
+        awaitAll(pending);
+    }
+
+    public int getContactCount() {
+        synchronized (buckets) {
+            return buckets.stream().mapToInt(List::size).sum();
+        }
+    }
+
+    private void republish() {
+        publishedAlone = closestContacts(self.id, 1).isEmpty();
+        long now = System.currentTimeMillis();
+        providers.values().forEach(records -> records.values().removeIf(r -> r.expiresAt < now));
+        providers.values().removeIf(Map::isEmpty);
+        try {
+            for (Map.Entry<String, Long> file : node.getSharedIndex().snapshot().entrySet()) {
+                publishFile(file.getKey(), file.getValue());
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Erro ao republicar registros na DHT: " + e.getMessage());
+        }
+    }
+
+    private LookupResult lookup(BigInteger target, boolean wantProviders) {
+        LookupResult result = new LookupResult();
+        Comparator<Contact> byDistance = Comparator.comparing(c -> c.id.xor(target));
+        TreeSet<Contact> shortlist = new TreeSet<>(byDistance);
+        shortlist.addAll(closestContacts(target, K));
+        Set<String> queried = new HashSet<>();
+        String requestType = wantProviders ? "DHT_GET_PROVIDERS" : "DHT_FIND_NODE";
+        String expectedType = wantProviders ? "DHT_PROVIDERS" : "DHT_NODES";
+
+        while (true) {
+            List<Contact> round = new ArrayList<>();
+            int seen = 0;
+            for (Contact c : shortlist) {
+                if (seen++ >= K) break;
+                if (!queried.contains(c.address)) {
+                    round.add(c);
+                    if (round.size() == ALPHA) break;
+                }
+            }
+            if (round.isEmpty()) break;
+
+            Map<Contact, Future<String>> replies = new LinkedHashMap<>();
+            for (Contact c : round) {
+                queried.add(c.address);
+                replies.put(c, rpcPool.submit(() -> call(c, requestType, target.toString(16), expectedType)));
+            }
+            result.messages += round.size();
+
+            boolean foundProviders = false;
+            for (Map.Entry<Contact, Future<String>> reply : replies.entrySet()) {
+                String args = await(reply.getValue());
+                if (args == null) {
+                    shortlist.remove(reply.getKey());
+                    removeContact(reply.getKey());
+                    continue;
+                }
+                addContact(reply.getKey());
+                String[] tokens = args.trim().split(" ");
+                int pos = 0;
+                try {
+                    if (wantProviders) {
+                        int count = Integer.parseInt(tokens[pos++]);
+                        for (int i = 0; i < count && pos < tokens.length; i++, pos++) {
+                            ProviderRecord record = ProviderRecord.decode(tokens[pos]);
+                            if (record != null) {
+                                result.providers.put(record.address + ":" + record.fileName + ":" + record.fileSize, record);
+                                foundProviders = true;
+                            }
+                        }
+                    }
+                    for (Contact c : decodeContacts(tokens, pos)) {
+                        if (!c.address.equals(self.address) && !queried.contains(c.address)) {
+                            shortlist.add(c);
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("Resposta " + expectedType + " invalida de " + reply.getKey().address + ": " + args);
+                }
+            }
+            if (wantProviders && foundProviders) break;
+        }
+
+        if (wantProviders) {
+            for (ProviderRecord record : liveProviders(target)) {
+                result.providers.putIfAbsent(record.address + ":" + record.fileName + ":" + record.fileSize, record);
+            }
+        }
+        int i = 0;
+        for (Contact c : shortlist) {
+            if (i++ >= K) break;
+            result.closest.add(c);
+        }
+        return result;
+    }
+
+    private String call(Contact contact, String type, String args, String expectedType) {
+        return node.sendRequest(contact.host, contact.port, type + " " + args, expectedType);
+    }
+
+    private void addContact(Contact contact) {
+        if (contact == null || contact.address.equals(self.address)) return;
+        LinkedList<Contact> bucket = buckets.get(bucketIndex(contact.id));
+        synchronized (buckets) {
+            if (bucket.remove(contact)) {
+                bucket.addLast(contact);
+            } else if (bucket.size() < K) {
+                bucket.addLast(contact);
+            }
+        }
+        // O primeiro contato de um no que publicou sozinho: publica de novo sem esperar o ciclo.
+        if (publishedAlone) {
+            publishedAlone = false;
+            try {
+                scheduler.execute(this::republish);
+            } catch (RejectedExecutionException e) {
+                // DHT ja desligada.
+            }
+        }
+    }
+
+    private void removeContact(Contact contact) {
+        synchronized (buckets) {
+            buckets.get(bucketIndex(contact.id)).remove(contact);
+        }
+    }
+
+    private List<Contact> closestContacts(BigInteger target, int count) {
+        List<Contact> all = new ArrayList<>();
+        synchronized (buckets) {
+            for (LinkedList<Contact> bucket : buckets) {
+                all.addAll(bucket);
+            }
+        }
+        all.sort(Comparator.comparing(c -> c.id.xor(target)));
+        return all.size() > count ? new ArrayList<>(all.subList(0, count)) : all;
+    }
+
+    private int bucketIndex(BigInteger id) {
+        int bit = id.xor(self.id).bitLength() - 1;
+        return Math.max(bit, 0);
+    }
+
+    private void storeProvider(BigInteger key, ProviderRecord record) {
+        providers.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).put(record.address + ":" + record.fileSize, record);
+    }
+
+    private List<ProviderRecord> liveProviders(BigInteger key) {
+        Map<String, ProviderRecord> records = providers.get(key);
+        if (records == null) return Collections.emptyList();
+        long now = System.currentTimeMillis();
+        List<ProviderRecord> live = new ArrayList<>();
+        for (ProviderRecord record : records.values()) {
+            if (record.expiresAt >= now) live.add(record);
+        }
+        return live;
+    }
+
+    private static String encodeContacts(List<Contact> contacts) {
+        StringBuilder sb = new StringBuilder().append(contacts.size());
+        for (Contact c : contacts) {
+            sb.append(" ").append(c.address);
+        }
+        return sb.toString();
+    }
+
+    private static List<Contact> decodeContacts(String[] tokens, int pos) {
+        List<Contact> contacts = new ArrayList<>();
+        if (pos >= tokens.length) return contacts;
+        int count = Integer.parseInt(tokens[pos++]);
+        for (int i = 0; i < count && pos < tokens.length; i++, pos++) {
+            Contact c = Contact.fromAddress(tokens[pos]);
+            if (c != null) contacts.add(c);
+        }
+        return contacts;
+    }
+
+    private static String await(Future<String> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static void awaitAll(List<Future<?>> futures) {
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ignored) {
+            }
+        }
+    }
+
+    private static BigInteger sha1(String value) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return new BigInteger(1, md.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 indisponivel", e);
+        }
+    }
+
+    private static String shortId(BigInteger id) {
+        String hex = id.toString(16);
+        return hex.length() > 8 ? hex.substring(0, 8) : hex;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    public static class ProviderRecord {
+        final String address;
+        final String fileName;
+        final long fileSize;
+        final long expiresAt;
+
+        ProviderRecord(String address, String fileName, long fileSize) {
+            this.address = address;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.expiresAt = System.currentTimeMillis() + PROVIDER_TTL_MS;
+        }
+
+        /**
+         * {@code host:porta:nome:tamanho}, com o nome em URL-encoding para que {@code :} e
+         * espacos no nome nao quebrem o registro nem a linha.
+         */
+        String encode() {
+            return address + ":" + encodeName(fileName) + ":" + fileSize;
+        }
+
+        static ProviderRecord decode(String token) {
+            String[] fields = token.split(":");
+            if (fields.length != 4) return null;
+            try {
+                Integer.parseInt(fields[1]);
+                return new ProviderRecord(fields[0] + ":" + fields[1], decodeName(fields[2]), Long.parseLong(fields[3]));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        static String encodeName(String fileName) {
+            return URLEncoder.encode(fileName, StandardCharsets.UTF_8);
+        }
+
+        static String decodeName(String encoded) {
+            return URLDecoder.decode(encoded, StandardCharsets.UTF_8);
+        }
+
+        public String getHost() { return address.substring(0, address.lastIndexOf(':')); }
+        public int getPort() { return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1)); }
+        public String getFileName() { return fileName; }
+        public long getFileSize() { return fileSize; }
+    }
+
+    private static class Contact {
+        final BigInteger id;
+        final String host;
+        final int port;
+        final String address;
+
+        private Contact(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.address = host + ":" + port;
+            this.id = sha1(address);
+        }
+
+        static Contact fromAddress(String address) {
+            String[] parts = address.split(":");
+            if (parts.length != 2) return null;
+            try {
+                return new Contact(parts[0], Integer.parseInt(parts[1]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return address.equals(((Contact) o).address);
+        }
+
+        @Override
+        public int hashCode() {
+            return address.hashCode();
+        }
+    }
+
+    private static class LookupResult {
+        final List<Contact> closest = new ArrayList<>();
+        final Map<String, ProviderRecord> providers = new LinkedHashMap<>();
+        int messages = 0;
+    }
+}
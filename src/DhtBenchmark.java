@@ -0,0 +1,80 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Sobe N nos com DHT no loopback, no mesmo processo, todos com o primeiro como vizinho
+ * inicial. Cada no publica um arquivo do seu diretorio e um nome com {@code :} e espaco; depois
+ * nos sorteados buscam arquivos de outros nos e o programa mostra quantas buscas acharam a fonte
+ * e quantas mensagens cada uma custou, para comparar com log2(N).
+ * Uso: java DhtBenchmark [nos] [porta_base] [buscas]
+ */
+public class DhtBenchmark {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int basePort = args.length > 1 ? Integer.parseInt(args[1]) : 17000;
+        int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        PrintStream report = System.out;
+        // Os nos escrevem bastante no console; so o relatorio interessa aqui.
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+
+        Path base = Files.createTempDirectory("eachare-dht");
+        Path neighbors = base.resolve("vizinhos.txt");
+        Files.write(neighbors, List.of("127.0.0.1:" + basePort));
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Path dir = Files.createDirectories(base.resolve("no" + i));
+            Files.write(dir.resolve(fileName(i)), ("conteudo " + i).getBytes());
+            Node node = new Node("127.0.0.1:" + (basePort + i), neighbors.toString(), dir.toString());
+            nodes.add(node);
+            Thread server = new Thread(node::startServer, "servidor-" + i);
+            server.setDaemon(true);
+            server.start();
+        }
+        Thread.sleep(500);
+        long start = System.nanoTime();
+        for (Node node : nodes) {
+            node.enableDht();
+        }
+        // Tempo para as buscas do proprio ID e a primeira republicacao de cada no.
+        Thread.sleep(Math.max(3000, count * 20L));
+        for (int i = 0; i < count; i++) {
+            nodes.get(i).getDht().publishFile(specialName(i), 1);
+        }
+        report.printf("%d nos prontos em %.1f s.%n", count, (System.nanoTime() - start) / 1e9);
+
+        Random random = new Random(42);
+        int found = 0;
+        long totalMessages = 0;
+        long maxMessages = 0;
+        for (int t = 0; t < lookups; t++) {
+            int owner = random.nextInt(count);
+            Node asker = nodes.get((owner + 1 + random.nextInt(count - 1)) % count);
+            String name = t % 2 == 0 ? fileName(owner) : specialName(owner);
+            long before = asker.getMetrics().getCounter("dht_lookup_messages_total");
+            List<Dht.ProviderRecord> providers = asker.getDht().findProviders(name);
+            long messages = asker.getMetrics().getCounter("dht_lookup_messages_total") - before;
+            totalMessages += messages;
+            maxMessages = Math.max(maxMessages, messages);
+            if (providers.stream().anyMatch(p -> p.getPort() == basePort + owner && p.getFileName().equals(name))) {
+                found++;
+            }
+        }
+        report.printf(Locale.ROOT, "buscas: %d, fonte encontrada: %d, mensagens por busca: media %.1f, max %d (log2(N) = %.1f)%n",
+                lookups, found, (double) totalMessages / lookups, maxMessages, Math.log(count) / Math.log(2));
+        System.exit(found == lookups ? 0 : 1);
+    }
+
+    private static String fileName(int i) {
+        return "arquivo_" + i + ".bin";
+    }
+
+    private static String specialName(int i) {
+        return "relatorio " + i + ":final.txt";
+    }
+}
@@ -0,0 +1,21 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+class DiscoveredFileGroup {
+    final String fileName;
+    final long fileSize;
+    final List<FileLocation> peerLocations = new CopyOnWriteArrayList<>();
+
+    DiscoveredFileGroup(String fileName, long fileSize) {
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+    }
+
+    void addPeerLocation(String host, int port) {
+        addPeerLocation(host, port, false);
+    }
+
+    void addPeerLocation(String host, int port, boolean partial) {
+        this.peerLocations.add(new FileLocation(host, port, partial));
+    }
+}
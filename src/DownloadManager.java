@@ -0,0 +1,226 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fila de downloads do no. Ate {@code maxFiles} arquivos baixam ao mesmo tempo (os demais
+ * esperam por prioridade e ordem de chegada), e todos dividem o mesmo pool de workers e o
+ * mesmo {@link ConnectionBudget} de requisicoes em voo.
+ */
+class DownloadManager {
+    static final int DEFAULT_MAX_FILES = 4;
+    static final int DEFAULT_MAX_INFLIGHT = 32;
+    static final int DEFAULT_PEER_INFLIGHT = 4;
+
+    enum State { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+    private final Node node;
+    private final ConnectionBudget budget;
+    private final ThreadPoolExecutor files;
+    private final ExecutorService workers;
+    private final Map<Integer, Job> jobs = new ConcurrentSkipListMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+
+    DownloadManager(Node node, int maxFiles, int maxInFlight, int perPeerInFlight) {
+        this.node = node;
+        this.budget = new ConnectionBudget(maxInFlight, perPeerInFlight, node.getMetrics());
+        this.files = new ThreadPoolExecutor(maxFiles, maxFiles, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), daemonThreads("download-file-"));
+        this.files.allowCoreThreadTimeOut(true);
+        this.workers = Executors.newCachedThreadPool(daemonThreads("download-worker-"));
+        node.getMetrics().registerGauge("download_files_running", files::getActiveCount);
+        node.getMetrics().registerGauge("download_files_queued", () -> files.getQueue().size());
+    }
+
+    /**
+     * Poe o arquivo na fila. Se o mesmo arquivo ja estiver na fila ou baixando, devolve o
+     * job existente em vez de comecar outro.
+     */
+    synchronized Job enqueue(DiscoveredFileGroup group, int priority) {
+        for (Job job : jobs.values()) {
+            if (job.group.fileName.equals(group.fileName) && !job.isFinished()) {
+                return job;
+            }
+        }
+        Job job = new Job(ids.incrementAndGet(), group, priority, sequence.incrementAndGet());
+        jobs.put(job.id, job);
+        if (!node.isValidRemoteName(group.fileName)) {
+            System.err.println("Nome de arquivo remoto invalido, download #" + job.id + " recusado: " + group.fileName);
+            node.getMetrics().increment("remote_rejected_name_total");
+            job.finish(State.FAILED);
+            return job;
+        }
+        try {
+            files.execute(job);
+        } catch (RejectedExecutionException e) {
+            job.finish(State.CANCELLED);
+        }
+        return job;
+    }
+
+    /**
+     * Enfileira todos os arquivos que ainda nao existem localmente com o mesmo tamanho.
+     */
+    List<Job> mirror(List<DiscoveredFileGroup> groups, int priority) {
+        List<Job> queued = new ArrayList<>();
+        for (DiscoveredFileGroup group : groups) {
+            if (node.localFileSize(group.fileName) == group.fileSize) {
+                continue;
+            }
+            queued.add(enqueue(group, priority));
+        }
+        return queued;
+    }
+
+    boolean cancel(int id) {
+        Job job = jobs.get(id);
+        if (job == null || job.isFinished()) {
+            return false;
+        }
+        if (files.remove(job)) {
+            job.finish(State.CANCELLED);
+            return true;
+        }
+        job.cancelled = true;
+        Thread runner = job.runner;
+        if (runner != null) {
+            runner.interrupt();
+        }
+        return true;
+    }
+
+    Job getJob(int id) {
+        return jobs.get(id);
+    }
+
+    List<Job> getJobs() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    ConnectionBudget getBudget() {
+        return budget;
+    }
+
+    ExecutorService getWorkers() {
+        return workers;
+    }
+
+    void printStatus() {
+        System.out.printf("Downloads (em voo: %d/%d, por peer: %d):%n", budget.getInFlight(), budget.getGlobalLimit(), budget.getPerPeerLimit());
+        if (jobs.isEmpty()) {
+            System.out.println("(Nenhum download)");
+            return;
+        }
+        for (Job job : jobs.values()) {
+            System.out.println(job.describe());
+        }
+    }
+
+    void shutdown() {
+        files.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    class Job implements Runnable, Comparable<Job> {
+        final int id;
+        final DiscoveredFileGroup group;
+        final int priority;
+        private final long order;
+        private final CompletableFuture<Boolean> done = new CompletableFuture<>();
+        private volatile State state = State.QUEUED;
+        private volatile FileDownload download;
+        private volatile Thread runner;
+        private volatile boolean cancelled;
+        private volatile long startNanos;
+        private volatile long endNanos;
+
+        private Job(int id, DiscoveredFileGroup group, int priority, long order) {
+            this.id = id;
+            this.group = group;
+            this.priority = priority;
+            this.order = order;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                finish(State.CANCELLED);
+                return;
+            }
+            runner = Thread.currentThread();
+            startNanos = System.nanoTime();
+            state = State.RUNNING;
+            System.out.printf("Iniciando download #%d: %s (%d bytes).%n", id, group.fileName, group.fileSize);
+            boolean success = false;
+            try {
+                success = node.downloadFile(group, started -> download = started);
+            } finally {
+                runner = null;
+                Thread.interrupted();
+                finish(success ? State.DONE : cancelled ? State.CANCELLED : State.FAILED);
+            }
+        }
+
+        private void finish(State finalState) {
+            endNanos = System.nanoTime();
+            state = finalState;
+            done.complete(finalState == State.DONE);
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Long.compare(order, other.order);
+        }
+
+        State getState() {
+            return state;
+        }
+
+        boolean isFinished() {
+            return done.isDone();
+        }
+
+        /** Completa com true se o arquivo foi baixado. */
+        CompletableFuture<Boolean> getCompletion() {
+            return done;
+        }
+
+        long getReceivedBytes() {
+            FileDownload current = download;
+            if (state == State.DONE) {
+                return group.fileSize;
+            }
+            if (current == null) {
+                return 0;
+            }
+            return Math.min(group.fileSize, current.getReceivedChunks() * current.getChunkSize());
+        }
+
+        /** Linha de progresso: {@code #<id> <nome> <estado> <recebidos>/<total> bytes <pct>% <KB/s> p=<prioridade>}. */
+        String describe() {
+            long received = getReceivedBytes();
+            double percent = group.fileSize == 0 ? 100.0 : received * 100.0 / group.fileSize;
+            long end = isFinished() ? endNanos : System.nanoTime();
+            double seconds = startNanos == 0 ? 0 : (end - startNanos) / 1_000_000_000.0;
+            double rate = seconds > 0 ? received / 1024.0 / seconds : 0;
+            return String.format("#%d %s %s %d/%d bytes %.1f%% %.1f KB/s p=%d",
+                    id, group.fileName, state, received, group.fileSize, percent, rate, priority);
+        }
+    }
+}
@@ -0,0 +1,529 @@
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+class FileDownload {
+    private static final int MAX_SOURCES = 10;
+    private static final int MAX_FAILURES_PER_SOURCE = 3;
+    private static final long HAVE_REFRESH_MS = 1000;
+    private static final long IDLE_WAIT_MS = 100;
+    private static final long DOWNLOAD_TIMEOUT_MS = 5 * 60 * 1000L;
+    private static final double HEDGE_BUDGET_FRACTION = 0.10;
+    private static final long REBALANCE_MS = 1000;
+    // Sem progresso por esse tempo, as fontes lentas que estavam de reserva entram.
+    private static final long STALL_MS = 3000;
+    // Uma fonte e lenta se o chunk dela deve demorar mais que SLOW_FACTOR vezes o da melhor.
+    private static final double SLOW_FACTOR = 4.0;
+    private static final int MAX_SLOW_SOURCES = 2;
+    // Diferencas de poucos ms sao ruido (mesma rede local), nao motivo para preferir um peer.
+    private static final double RANK_FLOOR_MS = 5.0;
+
+    private final Node node;
+    private final DiscoveredFileGroup group;
+    private final PartialFile target;
+    private final String fileName;
+    private final long fileSize;
+    private final int chunkSize;
+    private final ChunkPicker picker;
+    private final Map<String, Source> sources = new ConcurrentHashMap<>();
+    private final ConnectionBudget budget;
+    private final List<Future<?>> workerTasks = new CopyOnWriteArrayList<>();
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicLong hedgedBytes = new AtomicLong();
+    private final AtomicInteger hedgedRequests = new AtomicInteger();
+    private final long hedgeBudget;
+    private volatile boolean finished = false;
+    private volatile boolean reservesReleased = false;
+    private volatile byte[] expectedHashes;
+
+    FileDownload(Node node, DiscoveredFileGroup group, PartialFile target) {
+        this.node = node;
+        this.group = group;
+        this.target = target;
+        this.fileName = target.getFileName();
+        this.fileSize = target.getFileSize();
+        this.chunkSize = target.getChunkSize();
+        this.picker = new ChunkPicker(target.getNumChunks());
+        this.budget = node.getDownloadManager().getBudget();
+        this.hedgeBudget = Math.max(chunkSize, (long) (fileSize * HEDGE_BUDGET_FRACTION));
+    }
+
+    /**
+     * SHA-256 concatenados de cada chunk, vindos do manifesto ({@code --cas}); chunks que nao
+     * batem sao descartados e pedidos de novo. null desliga a verificacao.
+     */
+    void setExpectedHashes(byte[] hashes) {
+        this.expectedHashes = hashes;
+    }
+
+    boolean run() throws InterruptedException {
+        // Chunks que ja estao no arquivo parcial (retomado ou reaproveitado) nao sao pedidos.
+        for (long i = 0; i < target.getNumChunks(); i++) {
+            if (target.hasChunk(i)) {
+                picker.complete(i);
+            }
+        }
+        // As fontes ja medidas em downloads anteriores vem primeiro, entao o limite de
+        // MAX_SOURCES fica com as mais proximas e rapidas.
+        List<FileLocation> locations = new ArrayList<>(group.peerLocations);
+        double unknownRank = medianExpectedMs(locations);
+        locations.sort(Comparator.comparingDouble(location -> {
+            double expected = node.getPeerProfiles().expectedMs(location.getAddress(), chunkSize);
+            return expected < 0 ? unknownRank : expected;
+        }));
+        for (FileLocation location : locations) {
+            addSource(location.peerHost, location.peerPort, location.partial);
+        }
+        long deadline = System.currentTimeMillis() + DOWNLOAD_TIMEOUT_MS;
+        long lastRebalance = System.currentTimeMillis();
+        long lastProgress = lastRebalance;
+        long lastChunkCount = target.getChunkCount();
+        try {
+            while (!picker.isComplete()) {
+                long now = System.currentTimeMillis();
+                if (target.getChunkCount() != lastChunkCount) {
+                    lastChunkCount = target.getChunkCount();
+                    lastProgress = now;
+                } else if (!reservesReleased && now - lastProgress > STALL_MS) {
+                    reservesReleased = true;
+                    rebalance();
+                }
+                if (activeWorkers.get() == 0) {
+                    reservesReleased = true;
+                    rebalance();
+                    if (activeWorkers.get() == 0) {
+                        System.err.println("Nenhuma fonte restante para " + fileName + ".");
+                        return false;
+                    }
+                }
+                if (now > deadline) {
+                    System.err.println("Tempo limite excedido no download de " + fileName + ".");
+                    return false;
+                }
+                if (now - lastRebalance >= REBALANCE_MS) {
+                    lastRebalance = now;
+                    rebalance();
+                }
+                Thread.sleep(IDLE_WAIT_MS);
+            }
+            return true;
+        } finally {
+            finished = true;
+            for (Future<?> task : workerTasks) {
+                task.cancel(true);
+            }
+            long stopDeadline = System.currentTimeMillis() + 1000;
+            while (activeWorkers.get() > 0 && System.currentTimeMillis() < stopDeadline) {
+                Thread.sleep(10);
+            }
+            if (hedgedRequests.get() > 0) {
+                System.out.printf("Requisicoes duplicadas (hedge) em %s: %d (%d bytes de orcamento %d).%n", fileName, hedgedRequests.get(), hedgedBytes.get(), hedgeBudget);
+            }
+        }
+    }
+
+    int getSourceCount() {
+        return sources.size();
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    long getReceivedChunks() {
+        return target.getChunkCount();
+    }
+
+    private void addSource(String host, int port, boolean partial) {
+        String address = host + ":" + port;
+        if (finished || address.equals(node.getAddress()) || sources.size() >= MAX_SOURCES) {
+            return;
+        }
+        Source source = new Source(host, port, partial);
+        if (sources.putIfAbsent(address, source) == null) {
+            if (partial) {
+                System.out.printf("Nova fonte parcial para %s: %s%n", fileName, address);
+            }
+            startWorkers(source);
+        }
+    }
+
+    /**
+     * Redistribui as conexoes entre as fontes pelo perfil de cada peer
+     * ({@link PeerProfiles#expectedMs}): a mais rapida recebe o limite por peer do
+     * {@link ConnectionBudget}, as demais uma fracao proporcional, e das fontes lentas (mais de
+     * {@value #SLOW_FACTOR} vezes a melhor) so {@value #MAX_SLOW_SOURCES} ficam ativas, com uma
+     * conexao. As outras ficam de reserva ate o download parar de progredir. Fontes ainda sem
+     * medida ficam com uma conexao.
+     */
+    private void rebalance() {
+        int maxLanes = Math.max(1, budget.getPerPeerLimit());
+        List<Source> ranked = new ArrayList<>();
+        double best = -1;
+        for (Source source : sources.values()) {
+            if (source.failures >= MAX_FAILURES_PER_SOURCE) {
+                continue;
+            }
+            source.expectedMs = node.getPeerProfiles().expectedMs(source.address, chunkSize);
+            if (source.expectedMs >= 0 && (best < 0 || source.expectedMs < best)) {
+                best = source.expectedMs;
+            }
+            ranked.add(source);
+        }
+        ranked.sort(Comparator.comparingDouble(source -> source.expectedMs < 0 ? Double.MAX_VALUE : source.expectedMs));
+        int slowActive = 0;
+        for (Source source : ranked) {
+            int lanes = 1;
+            if (source.expectedMs >= 0) {
+                double ratio = (source.expectedMs + RANK_FLOOR_MS) / (best + RANK_FLOOR_MS);
+                if (ratio > SLOW_FACTOR) {
+                    lanes = reservesReleased || slowActive < MAX_SLOW_SOURCES ? 1 : 0;
+                    slowActive += lanes;
+                } else {
+                    lanes = Math.max(1, (int) Math.round(maxLanes / ratio));
+                }
+            }
+            if (lanes != source.lanes) {
+                System.out.printf("Fonte %s para %s: %d conexao(oes) (%.1f ms/chunk esperados).%n", source.address, fileName, lanes, source.expectedMs);
+                source.lanes = lanes;
+            }
+            startWorkers(source);
+        }
+    }
+
+    private double medianExpectedMs(List<FileLocation> locations) {
+        List<Double> known = new ArrayList<>();
+        for (FileLocation location : locations) {
+            double expected = node.getPeerProfiles().expectedMs(location.getAddress(), chunkSize);
+            if (expected >= 0) {
+                known.add(expected);
+            }
+        }
+        if (known.isEmpty()) {
+            return 0;
+        }
+        known.sort(null);
+        return known.get(known.size() / 2);
+    }
+
+    /** Sobe workers ate o numero de conexoes ({@code lanes}) da fonte; os que sobram saem sozinhos. */
+    private void startWorkers(Source source) {
+        synchronized (source) {
+            while (!finished && source.failures < MAX_FAILURES_PER_SOURCE && source.workers < source.lanes) {
+                int lane = source.workers++;
+                activeWorkers.incrementAndGet();
+                try {
+                    workerTasks.add(node.getDownloadManager().getWorkers().submit(() -> runWorker(source, lane)));
+                } catch (RejectedExecutionException e) {
+                    source.workers--;
+                    activeWorkers.decrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void runWorker(Source source, int lane) {
+        try {
+            while (!finished && !picker.isComplete() && source.failures < MAX_FAILURES_PER_SOURCE && lane < source.lanes) {
+                long busyFor = source.busyUntil - System.currentTimeMillis();
+                if (busyFor > 0) {
+                    Thread.sleep(busyFor);
+                    continue;
+                }
+                if (source.needsRefresh()) {
+                    refreshHave(source);
+                    continue;
+                }
+                if (!budget.acquire(source.address, IDLE_WAIT_MS)) {
+                    continue;
+                }
+                long chunkIndex = -1;
+                try {
+                    chunkIndex = picker.next(source::has, source.complete);
+                    if (chunkIndex >= 0) {
+                        traceScheduled(chunkIndex, source, "pick", lane);
+                        if (fetchChunk(source, chunkIndex)) {
+                            picker.complete(chunkIndex);
+                        } else {
+                            picker.release(chunkIndex);
+                        }
+                    }
+                } finally {
+                    budget.release(source.address);
+                }
+                if (chunkIndex < 0) {
+                    Thread.sleep(IDLE_WAIT_MS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            boolean last;
+            synchronized (source) {
+                last = --source.workers == 0;
+            }
+            // Uma fonte so de reserva continua contando na disponibilidade dos chunks.
+            if (last && (finished || source.failures >= MAX_FAILURES_PER_SOURCE)) {
+                picker.removeSource(source.address);
+            }
+            if (last && source.failures >= MAX_FAILURES_PER_SOURCE) {
+                System.err.printf("Fonte %s descartada para %s apos %d falhas.%n", source.address, fileName, source.failures);
+            }
+            activeWorkers.decrementAndGet();
+        }
+    }
+
+    private void traceScheduled(long chunkIndex, Source source, String decision, int lane) {
+        TraceEvents.ChunkScheduled event = new TraceEvents.ChunkScheduled();
+        if (event.shouldCommit()) {
+            event.file = fileName;
+            event.chunkIndex = chunkIndex;
+            event.source = source.address;
+            event.decision = decision;
+            event.lane = lane;
+            event.expectedMs = source.expectedMs;
+            event.commit();
+        }
+    }
+
+    private void refreshHave(Source source) {
+        RequestHandle handle = new RequestHandle();
+        try (MessageBuffer response = node.exchange(source.host, source.port, String.format("GET_HAVE %s %d", fileName, chunkSize), "HAVE", handle)) {
+            source.lastRefresh = System.currentTimeMillis();
+            if (handle.getBusyRetryAfterMs() > 0) {
+                source.busyUntil = source.lastRefresh + handle.getBusyRetryAfterMs();
+                return;
+            }
+            if (response == null) {
+                if (!source.partial && source.have == null) {
+                    source.complete = true;
+                    picker.updateSource(source.address, null, true);
+                } else {
+                    source.failures++;
+                }
+                return;
+            }
+            MessageTokenizer tokens = new MessageTokenizer(response);
+            tokens.readHeader();
+            try {
+                applyHave(source, tokens);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                System.err.println("Resposta HAVE invalida de " + source.address + ": " + tokens.getArgsText());
+                source.failures++;
+            }
+        }
+    }
+
+    /** {@code HAVE <nome> <tamanho> <tam_chunk> <ALL|NONE|bitmap> [n host:porta...]}. */
+    private void applyHave(Source source, MessageTokenizer tokens) {
+        String name = tokens.nextText();
+        long size = tokens.nextLong();
+        if (!fileName.equals(name) || tokens.nextInt() != chunkSize || !tokens.next()) {
+            source.failures++;
+            return;
+        }
+        if (size != fileSize) {
+            System.err.printf("Fonte %s possui outra versao de %s; descartando.%n", source.address, fileName);
+            source.failures = MAX_FAILURES_PER_SOURCE;
+            return;
+        }
+        if (tokens.tokenEquals("ALL")) {
+            source.complete = true;
+        } else if (tokens.tokenEquals("NONE")) {
+            source.have = new ChunkBitmap(target.getNumChunks());
+        } else {
+            int start = tokens.tokenStart();
+            int length = tokens.tokenEnd() - start;
+            byte[] bits = new byte[Math.max(0, Base64Codec.decodedLength(tokens.getBuffer(), start, length))];
+            if (Base64Codec.decode(tokens.getBuffer(), start, length, bits, 0) != bits.length) {
+                throw new IllegalArgumentException("Mapa de chunks invalido");
+            }
+            source.have = ChunkBitmap.valueOf(bits, target.getNumChunks());
+        }
+        picker.updateSource(source.address, source.have, source.complete);
+        if (tokens.next()) {
+            int count = tokens.parseInt(tokens.tokenStart(), tokens.tokenEnd());
+            for (int i = 0; i < count && tokens.next(); i++) {
+                if (tokens.split((byte) ':') == 2) {
+                    addSource(tokens.partText(0), tokens.partInt(1), true);
+                }
+            }
+        }
+    }
+
+    private boolean fetchChunk(Source source, long chunkIndex) throws InterruptedException {
+        long chunkLength = Math.min(chunkSize, fileSize - chunkIndex * chunkSize);
+        CompletableFuture<PeerClient.Chunk> winner = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(1);
+        CompletableFuture<PeerClient.Chunk> primary = startAttempt(source, chunkIndex, winner, outstanding);
+
+        PeerClient.Chunk chunk;
+        CompletableFuture<PeerClient.Chunk> hedge = null;
+        try {
+            try {
+                chunk = winner.get(node.getLatencyTracker().hedgeThreshold(source.address), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                Source backup = pickHedgeSource(source, chunkIndex, chunkLength);
+                if (backup != null) {
+                    System.out.printf("Chunk %d de %s atrasado em %s; duplicando requisicao para %s.%n", chunkIndex, fileName, source.address, backup.address);
+                    traceScheduled(chunkIndex, backup, "hedge", -1);
+                    outstanding.incrementAndGet();
+                    hedge = startAttempt(backup, chunkIndex, winner, outstanding);
+                    hedge.whenComplete((ignored, error) -> budget.release(backup.address));
+                }
+                chunk = winner.get();
+            }
+        } catch (ExecutionException e) {
+            chunk = null;
+        } finally {
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        }
+
+        if (chunk == null) {
+            return false;
+        }
+        try {
+            if (!matchesExpectedHash(chunkIndex, chunk)) {
+                System.err.printf("Chunk %d de %s nao confere com o manifesto; descartando.%n", chunkIndex, fileName);
+                node.getMetrics().increment("cas_hash_mismatches_total");
+                source.failures++;
+                return false;
+            }
+            target.writeChunk(chunkIndex, chunk.array(), chunk.length());
+            return true;
+        } catch (IOException e) {
+            System.err.println("Erro ao gravar chunk " + chunkIndex + ": " + e.getMessage());
+            return false;
+        } finally {
+            chunk.close();
+        }
+    }
+
+    private boolean matchesExpectedHash(long chunkIndex, PeerClient.Chunk chunk) {
+        byte[] hashes = expectedHashes;
+        if (hashes == null) {
+            return true;
+        }
+        MessageDigest sha256 = DeltaEncoder.newDigest("SHA-256");
+        sha256.update(chunk.array(), 0, chunk.length());
+        byte[] digest = sha256.digest();
+        int offset = ChunkStore.hashOffset(hashes, chunkIndex);
+        return offset >= 0 && Arrays.equals(digest, 0, digest.length, hashes, offset, offset + ChunkStore.HASH_BYTES);
+    }
+
+    /**
+     * Pede o chunk a {@code source} pelo {@link PeerClient}. O primeiro resultado completa
+     * {@code winner}; se todas as tentativas falharem, {@code winner} recebe null.
+     */
+    private CompletableFuture<PeerClient.Chunk> startAttempt(Source source, long chunkIndex, CompletableFuture<PeerClient.Chunk> winner, AtomicInteger outstanding) {
+        CompletableFuture<PeerClient.Chunk> attempt = node.getPeerClient().downloadChunk(source.host, source.port, fileName, chunkSize, chunkIndex);
+        attempt.whenComplete((chunk, error) -> {
+            if (chunk != null) {
+                source.failures = 0;
+                if (!winner.complete(chunk)) {
+                    chunk.close();
+                }
+                return;
+            }
+            recordFailure(source, chunkIndex, error);
+            if (outstanding.decrementAndGet() == 0) {
+                winner.complete(null);
+            }
+        });
+        return attempt;
+    }
+
+    private void recordFailure(Source source, long chunkIndex, Throwable error) {
+        if (error instanceof CancellationException || error.getCause() instanceof CancellationException) {
+            return;
+        }
+        PeerClient.PeerException failure = PeerClient.PeerException.from(error);
+        if (failure != null && failure.getReason() == PeerClient.PeerException.Reason.BUSY) {
+            source.busyUntil = System.currentTimeMillis() + failure.getRetryAfterMs();
+            return;
+        }
+        if (failure != null && "ERROR_CHUNK_NOT_AVAILABLE".equals(failure.getErrorCode())) {
+            source.lastRefresh = 0;
+            return;
+        }
+        source.failures++;
+        System.err.println("Falha ao baixar chunk " + chunkIndex + " de " + source.address);
+    }
+
+    private Source pickHedgeSource(Source primary, long chunkIndex, long chunkLength) {
+        if (hedgedBytes.get() + chunkLength > hedgeBudget) {
+            return null;
+        }
+        Source best = null;
+        long bestThreshold = Long.MAX_VALUE;
+        for (Source candidate : sources.values()) {
+            if (candidate == primary || candidate.lanes == 0 || candidate.failures >= MAX_FAILURES_PER_SOURCE || candidate.isBusy() || !candidate.has(chunkIndex)) {
+                continue;
+            }
+            long threshold = node.getLatencyTracker().hedgeThreshold(candidate.address);
+            if (threshold < bestThreshold) {
+                best = candidate;
+                bestThreshold = threshold;
+            }
+        }
+        if (best != null && hedgedBytes.addAndGet(chunkLength) > hedgeBudget) {
+            hedgedBytes.addAndGet(-chunkLength);
+            return null;
+        }
+        if (best != null && !budget.tryAcquire(best.address)) {
+            hedgedBytes.addAndGet(-chunkLength);
+            return null;
+        }
+        if (best != null) {
+            hedgedRequests.incrementAndGet();
+        }
+        return best;
+    }
+
+    private static class Source {
+        final String host;
+        final int port;
+        final String address;
+        final boolean partial;
+        volatile boolean complete;
+        volatile ChunkBitmap have;
+        volatile long lastRefresh;
+        volatile int failures;
+        volatile long busyUntil;
+        volatile int lanes = 1;
+        volatile double expectedMs = -1;
+        int workers;
+
+        Source(String host, int port, boolean partial) {
+            this.host = host;
+            this.port = port;
+            this.address = host + ":" + port;
+            this.partial = partial;
+        }
+
+        boolean has(long chunkIndex) {
+            ChunkBitmap current = have;
+            return complete || (current != null && current.get(chunkIndex));
+        }
+
+        boolean isBusy() {
+            return busyUntil > System.currentTimeMillis();
+        }
+
+        boolean needsRefresh() {
+            if (complete) return false;
+            return have == null || System.currentTimeMillis() - lastRefresh > HAVE_REFRESH_MS;
+        }
+    }
+}
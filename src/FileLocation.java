@@ -0,0 +1,15 @@
+class FileLocation {
+    final String peerHost;
+    final int peerPort;
+    final boolean partial;
+
+    FileLocation(String peerHost, int peerPort, boolean partial) {
+        this.peerHost = peerHost;
+        this.peerPort = peerPort;
+        this.partial = partial;
+    }
+
+    String getAddress() {
+        return peerHost + ":" + peerPort;
+    }
+}
@@ -0,0 +1,54 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class LatencyTracker {
+    private static final int WINDOW = 64;
+    private static final int MIN_SAMPLES = 8;
+    private static final long DEFAULT_THRESHOLD_MS = 1000;
+    private static final long MIN_THRESHOLD_MS = 20;
+
+    private final long maxThresholdMs;
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+    public LatencyTracker(long maxThresholdMs) {
+        this.maxThresholdMs = maxThresholdMs;
+    }
+
+    public void record(String peerAddress, long latencyMs) {
+        windows.computeIfAbsent(peerAddress, k -> new Window()).add(latencyMs);
+    }
+
+    public long percentile(String peerAddress, double p) {
+        Window window = windows.get(peerAddress);
+        return window == null ? -1 : window.percentile(p);
+    }
+
+    public long hedgeThreshold(String peerAddress) {
+        long p95 = percentile(peerAddress, 0.95);
+        if (p95 < 0) {
+            return Math.min(DEFAULT_THRESHOLD_MS, maxThresholdMs);
+        }
+        return Math.max(MIN_THRESHOLD_MS, Math.min(p95, maxThresholdMs));
+    }
+
+    private static class Window {
+        private final long[] samples = new long[WINDOW];
+        private int count;
+        private int next;
+
+        synchronized void add(long value) {
+            samples[next] = value;
+            next = (next + 1) % WINDOW;
+            if (count < WINDOW) count++;
+        }
+
+        synchronized long percentile(double p) {
+            if (count < MIN_SAMPLES) return -1;
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(p * count) - 1;
+            return sorted[Math.max(0, Math.min(index, count - 1))];
+        }
+    }
+}
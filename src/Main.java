@@ -1,14 +1,57 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.InputMismatchException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
 
 public class Main {
+    private static final Set<String> KNOWN_OPTIONS = new HashSet<>(Arrays.asList(
+            "dht", "upload-limit", "peer-upload-limit", "download-limit", "peer-download-limit",
+            "upload-slots", "upload-queue", "cache-size", "daemon", "control-port", "gossip-interval",
+            "max-downloads", "max-inflight", "peer-inflight", "compress", "multicast", "multicast-interval",
+            "snapshot-interval", "jfr", "metrics-port", "metrics-snapshot",
+            "replica-cache", "hot-threshold", "cas", "metrics-bind"));
+    /** Opcoes em segundos, portas, contagens e bytes, conferidas antes de o no subir. */
+    private static final Set<String> SECONDS_OPTIONS = new HashSet<>(Arrays.asList(
+            "gossip-interval", "multicast-interval", "snapshot-interval", "metrics-snapshot"));
+    private static final Set<String> PORT_OPTIONS = new HashSet<>(Arrays.asList("control-port", "metrics-port"));
+    private static final Set<String> COUNT_OPTIONS = new HashSet<>(Arrays.asList(
+            "max-downloads", "max-inflight", "peer-inflight", "upload-slots"));
+    private static final Set<String> BYTE_OPTIONS = new HashSet<>(Arrays.asList(
+            "upload-limit", "peer-upload-limit", "download-limit", "peer-download-limit", "cache-size", "replica-cache"));
+    private static final int CONTROL_PORT_OFFSET = 1000;
+    private static final long DEFAULT_GOSSIP_INTERVAL_SECONDS = 30;
+    private static final long DEFAULT_MULTICAST_INTERVAL_SECONDS = 5;
+    private static final long DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 60;
+    private static final long BOOTSTRAP_DEADLINE_MS = 3000;
+
     public static void main(String[] args) {
         if (args.length < 3) {
-            System.out.println("Uso: java Main <endereco:porta> <arquivo_vizinhos.txt> <diretorio_compartilhado>");
-            System.out.println("Exemplo: java Main 127.0.0.1:5000 peers.txt shared_files");
+            printUsage();
             return;
         }
 
+        Map<String, String> options = parseOptions(args, 3);
+        try {
+            validateOptions(options);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Valor de opcao invalido: " + e.getMessage());
+            printUsage();
+            System.exit(1);
+        }
+        if (options.containsKey("jfr")) {
+            String destination = options.get("jfr").equals("true")
+                    ? "eachare-" + args[0].substring(args[0].lastIndexOf(':') + 1) + ".jfr" : options.get("jfr");
+            startFlightRecording(destination);
+        }
+
         Node node = null;
         try {
             node = new Node(args[0], args[1], args[2]);
@@ -17,6 +60,13 @@ public class Main {
             System.exit(1);
         }
 
+        try {
+            applyOptions(node, options);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Valor de opcao invalido: " + e.getMessage());
+            System.exit(1);
+        }
+
         Thread serverThread = new Thread(node::startServer);
         serverThread.start();
 
@@ -24,7 +74,87 @@ public class Main {
             Thread.sleep(200);
         } catch (InterruptedException ignored) { Thread.currentThread().interrupt(); }
 
+        node.bootstrap(BOOTSTRAP_DEADLINE_MS);
+        long snapshotSeconds = Long.parseLong(options.getOrDefault("snapshot-interval", String.valueOf(DEFAULT_SNAPSHOT_INTERVAL_SECONDS)));
+        node.startPeerSnapshots(snapshotSeconds * 1000);
 
+        if (options.containsKey("dht")) {
+            node.enableDht();
+        }
+        if (options.containsKey("multicast")) {
+            String group = options.get("multicast").equals("true") ? MulticastDiscovery.DEFAULT_GROUP : options.get("multicast");
+            try {
+                long seconds = Long.parseLong(options.getOrDefault("multicast-interval", String.valueOf(DEFAULT_MULTICAST_INTERVAL_SECONDS)));
+                node.enableMulticast(group, Math.max(1, seconds) * 1000);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Erro ao iniciar descoberta multicast: " + e.getMessage());
+            }
+        }
+
+        if (options.containsKey("metrics-port")) {
+            try {
+                String bind = options.get("metrics-bind");
+                node.enableMetricsHttp(Integer.parseInt(options.get("metrics-port")),
+                        bind == null ? null : bind.equals("true") ? args[0].substring(0, args[0].lastIndexOf(':')) : bind);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Erro ao abrir endpoint de metricas: " + e.getMessage());
+            }
+        }
+        if (options.containsKey("metrics-snapshot")) {
+            node.enableMetricsSnapshots(Long.parseLong(options.get("metrics-snapshot")) * 1000);
+        }
+
+        ControlServer control = null;
+        boolean daemon = options.containsKey("daemon");
+        if (daemon || options.containsKey("control-port")) {
+            int nodePort = Integer.parseInt(args[0].substring(args[0].lastIndexOf(':') + 1));
+            try {
+                control = new ControlServer(node, Integer.parseInt(options.getOrDefault("control-port", String.valueOf(nodePort + CONTROL_PORT_OFFSET))));
+                control.start();
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Erro ao abrir socket de controle: " + e.getMessage());
+                node.exit();
+                System.exit(1);
+            }
+        }
+
+        if (daemon) {
+            long gossipSeconds = Long.parseLong(options.getOrDefault("gossip-interval", String.valueOf(DEFAULT_GOSSIP_INTERVAL_SECONDS)));
+            Runtime.getRuntime().addShutdownHook(new Thread(node::exit, "shutdown"));
+            node.startGossip(Math.max(1, gossipSeconds) * 1000);
+            System.out.println("Modo daemon: sem menu interativo. Use o socket de controle (comando help).");
+        } else {
+            runInteractive(node);
+        }
+
+         try {
+             if (daemon) {
+                 serverThread.join();
+             } else if (serverThread.isAlive()) {
+                serverThread.join(1000);
+             }
+         } catch (InterruptedException e) {
+             Thread.currentThread().interrupt();
+             System.err.println("Interrompido ao aguardar thread do servidor.");
+         }
+         if (control != null) {
+             control.stop();
+         }
+
+         if (serverThread.isAlive()){
+             System.err.println("Thread do servidor nao terminou, pode haver recursos presos.");
+         }
+
+        System.out.println("Aplicacao principal encerrada.");
+    }
+
+    private static void printUsage() {
+        System.out.println("Uso: java Main <endereco:porta> <arquivo_vizinhos.txt> <diretorio_compartilhado> [--dht] [--upload-limit=N[K|M|G]] [--peer-upload-limit=N] [--download-limit=N] [--peer-download-limit=N] [--upload-slots=N] [--upload-queue=N] [--cache-size=N[K|M|G]] [--daemon] [--control-port=N] [--gossip-interval=S] [--max-downloads=N] [--max-inflight=N] [--peer-inflight=N] [--compress=deflate|none] [--multicast[=grupo:porta]] [--multicast-interval=S] [--snapshot-interval=S] [--jfr[=arquivo.jfr]] [--metrics-port=N] [--metrics-bind[=endereco]] [--metrics-snapshot=S] [--replica-cache=N[K|M|G]] [--hot-threshold=N] [--cas[=N[K|M]]]");
+        System.out.println("Exemplo: java Main 127.0.0.1:5000 peers.txt shared_files");
+        System.out.println("Sem menu: java Main 127.0.0.1:5000 peers.txt shared_files --daemon (controle em 127.0.0.1:6000)");
+    }
+
+    private static void runInteractive(Node node) {
         Scanner scanner = new Scanner(System.in);
         boolean keepRunning = true;
 
@@ -97,10 +227,29 @@ public class Main {
                         scanner.nextLine();
                     }
                     break;
+                case 7:
+                    System.out.print("Digite o padrao de busca [limite] [min-max] (ex: relatorio*.csv 20 1000-): ");
+                    String searchLine = scanner.nextLine().trim();
+                    try {
+                        node.searchFiles(SearchQuery.parse(searchLine), scanner);
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Busca invalida: " + e.getMessage());
+                    }
+                    break;
+                case 8:
+                    System.out.print("Digite o nome exato do arquivo: ");
+                    String dhtFileName = scanner.nextLine().trim();
+                    if (!dhtFileName.isEmpty()) {
+                        node.searchDht(dhtFileName, scanner);
+                    }
+                    break;
                 case 9:
                     node.exit();
                     keepRunning = false;
                     break;
+                case 10:
+                    node.displayDownloads();
+                    break;
                 default:
                     if (choice != -1) {
                         System.out.println("Opcao invalida. Tente novamente.");
@@ -110,20 +259,159 @@ public class Main {
 
         System.out.println("Fechando scanner e terminando a aplicacao.");
         scanner.close();
+    }
 
-         try {
-             if (serverThread.isAlive()) {
-                serverThread.join(1000);
-             }
-         } catch (InterruptedException e) {
-             Thread.currentThread().interrupt();
-             System.err.println("Interrompido ao aguardar thread do servidor.");
-         }
-         if (serverThread.isAlive()){
-             System.err.println("Thread do servidor nao terminou, pode haver recursos presos.");
-         }
+    private static Map<String, String> parseOptions(String[] args, int first) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = first; i < args.length; i++) {
+            String option = args[i];
+            if (!option.startsWith("--")) {
+                System.out.println("Opcao desconhecida ignorada: " + option);
+                continue;
+            }
+            int eq = option.indexOf('=');
+            if (eq < 0) {
+                options.put(option.substring(2), "true");
+            } else {
+                options.put(option.substring(2, eq), option.substring(eq + 1));
+            }
+        }
+        return options;
+    }
 
-        System.out.println("Aplicacao principal encerrada.");
+    /**
+     * Grava um JFR com a configuracao "default" do JDK (baixo overhead) mais os eventos de
+     * {@link TraceEvents}; o arquivo e escrito quando a JVM termina.
+     */
+    private static void startFlightRecording(String destination) {
+        try {
+            Recording recording = new Recording(Configuration.getConfiguration("default"));
+            recording.setName("eachare");
+            recording.setToDisk(true);
+            recording.setDestination(Paths.get(destination));
+            recording.start();
+            System.out.println("Gravando Flight Recorder em " + Paths.get(destination).toAbsolutePath());
+        } catch (IOException | ParseException | IllegalStateException | SecurityException e) {
+            System.err.println("Erro ao iniciar gravacao JFR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Confere os valores numericos de todas as opcoes, para que um erro de digitacao pare a
+     * inicializacao com a mensagem de uso em vez de derrubar o no ja no ar.
+     */
+    private static void validateOptions(Map<String, String> options) {
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            String key = option.getKey();
+            String value = option.getValue();
+            long min;
+            long max;
+            long parsed;
+            try {
+                if (SECONDS_OPTIONS.contains(key)) {
+                    parsed = Long.parseLong(value);
+                    min = 0;
+                    max = Long.MAX_VALUE / 1000;
+                } else if (PORT_OPTIONS.contains(key)) {
+                    parsed = Integer.parseInt(value);
+                    min = 0;
+                    max = 65535;
+                } else if (COUNT_OPTIONS.contains(key)) {
+                    parsed = Integer.parseInt(value);
+                    min = 1;
+                    max = Integer.MAX_VALUE;
+                } else if (key.equals("upload-queue")) {
+                    parsed = Integer.parseInt(value);
+                    min = 0;
+                    max = Integer.MAX_VALUE;
+                } else if (BYTE_OPTIONS.contains(key)) {
+                    parsed = parseBytes(value);
+                    min = 0;
+                    max = Long.MAX_VALUE;
+                } else if (key.equals("cas")) {
+                    parsed = value.equals("true") ? ChunkStore.DEFAULT_BLOCK_SIZE : parseBytes(value);
+                    min = 1;
+                    max = Node.MAX_CHUNK_SIZE;
+                } else if (key.equals("hot-threshold")) {
+                    double threshold = Double.parseDouble(value);
+                    if (!(threshold >= 0) || Double.isInfinite(threshold)) {
+                        throw new IllegalArgumentException("--" + key + " deve ser um numero nao negativo: " + value);
+                    }
+                    continue;
+                } else {
+                    continue;
+                }
+            } catch (NumberFormatException | ArithmeticException e) {
+                throw new IllegalArgumentException("--" + key + " nao e um numero valido: " + value);
+            }
+            if (parsed < min || parsed > max) {
+                throw new IllegalArgumentException("--" + key + " fora de " + min + ".." + max + ": " + value);
+            }
+        }
+    }
+
+    private static void applyOptions(Node node, Map<String, String> options) {
+        for (String key : options.keySet()) {
+            if (!KNOWN_OPTIONS.contains(key)) {
+                System.out.println("Opcao desconhecida ignorada: --" + key);
+            }
+        }
+        long uploadLimit = parseBytes(options.getOrDefault("upload-limit", "0"));
+        long peerUploadLimit = parseBytes(options.getOrDefault("peer-upload-limit", "0"));
+        if (uploadLimit > 0 || peerUploadLimit > 0) {
+            node.getUploadLimiter().setLimits(uploadLimit, peerUploadLimit);
+        }
+        long downloadLimit = parseBytes(options.getOrDefault("download-limit", "0"));
+        long peerDownloadLimit = parseBytes(options.getOrDefault("peer-download-limit", "0"));
+        if (downloadLimit > 0 || peerDownloadLimit > 0) {
+            node.getDownloadLimiter().setLimits(downloadLimit, peerDownloadLimit);
+        }
+        if (options.containsKey("compress")) {
+            node.setAcceptedCodecs(options.get("compress"));
+        }
+        if (options.containsKey("cache-size")) {
+            node.setChunkCacheSize(parseBytes(options.get("cache-size")));
+        }
+        if (options.containsKey("max-downloads") || options.containsKey("max-inflight") || options.containsKey("peer-inflight")) {
+            node.configureDownloads(Integer.parseInt(options.getOrDefault("max-downloads", String.valueOf(DownloadManager.DEFAULT_MAX_FILES))),
+                    Integer.parseInt(options.getOrDefault("max-inflight", String.valueOf(DownloadManager.DEFAULT_MAX_INFLIGHT))),
+                    Integer.parseInt(options.getOrDefault("peer-inflight", String.valueOf(DownloadManager.DEFAULT_PEER_INFLIGHT))));
+        }
+        if (options.containsKey("hot-threshold")) {
+            node.getPopularity().setHotThreshold(Double.parseDouble(options.get("hot-threshold")));
+        }
+        if (options.containsKey("cas")) {
+            long blockSize = options.get("cas").equals("true") ? ChunkStore.DEFAULT_BLOCK_SIZE : parseBytes(options.get("cas"));
+            try {
+                node.enableChunkStore((int) blockSize);
+            } catch (IOException e) {
+                System.err.println("Erro ao abrir armazenamento por conteudo: " + e.getMessage());
+            }
+        }
+        // Depois do --cas: as replicas guardadas por conteudo precisam estar visiveis.
+        if (options.containsKey("replica-cache")) {
+            node.enableReplicaCache(parseBytes(options.get("replica-cache")));
+        }
+        if (options.containsKey("upload-slots") || options.containsKey("upload-queue")) {
+            node.configureAdmission(Integer.parseInt(options.getOrDefault("upload-slots", "32")),
+                    Integer.parseInt(options.getOrDefault("upload-queue", "64")));
+        }
+    }
+
+    private static long parseBytes(String value) {
+        String v = value.trim().toUpperCase();
+        long multiplier = 1;
+        if (v.endsWith("K")) {
+            multiplier = 1024;
+        } else if (v.endsWith("M")) {
+            multiplier = 1024 * 1024;
+        } else if (v.endsWith("G")) {
+            multiplier = 1024L * 1024 * 1024;
+        }
+        if (multiplier > 1) {
+            v = v.substring(0, v.length() - 1);
+        }
+        return Math.multiplyExact(Long.parseLong(v), multiplier);
     }
 
     private static void printMenu() {
@@ -134,7 +422,10 @@ public class Main {
         System.out.println("[4] Buscar arquivos");
         System.out.println("[5] Exibir estatisticas");
         System.out.println("[6] Alterar tamanho de chunk");
+        System.out.println("[7] Buscar arquivos por padrao (SEARCH)");
+        System.out.println("[8] Buscar arquivo na DHT");
         System.out.println("[9] Sair");
+        System.out.println("[10] Downloads em andamento");
         System.out.print("> ");
     }
 }
\ No newline at end of file
@@ -0,0 +1,172 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Linha do protocolo montada ou lida diretamente em um array emprestado do {@link BufferPool}.
+ * Bytes lidos alem do fim da linha ficam guardados para a proxima chamada de {@link #readLine}.
+ */
+class MessageBuffer implements AutoCloseable {
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int READ_LIMIT = 64 * 1024 * 1024;
+
+    private final BufferPool pool;
+    private byte[] buf;
+    private int length;
+    private int filled;
+    private int nextLine;
+
+    MessageBuffer(BufferPool pool) {
+        this(pool, DEFAULT_CAPACITY);
+    }
+
+    MessageBuffer(BufferPool pool, int initialCapacity) {
+        this.pool = pool;
+        this.buf = pool.acquire(initialCapacity);
+    }
+
+    byte[] array() {
+        return buf;
+    }
+
+    int length() {
+        return length;
+    }
+
+    void clear() {
+        length = 0;
+        filled = 0;
+        nextLine = 0;
+    }
+
+    void setLength(int length) {
+        ensureCapacity(length);
+        this.length = length;
+    }
+
+    MessageBuffer append(char c) {
+        ensureCapacity(length + 1);
+        buf[length++] = (byte) c;
+        return this;
+    }
+
+    MessageBuffer append(String s) {
+        int n = s.length();
+        ensureCapacity(length + n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                return append(utf8, 0, utf8.length);
+            }
+            buf[length + i] = (byte) c;
+        }
+        length += n;
+        return this;
+    }
+
+    MessageBuffer append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append(String.valueOf(value));
+        }
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) digits++;
+        ensureCapacity(length + digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    MessageBuffer append(byte[] src, int off, int len) {
+        ensureCapacity(length + len);
+        System.arraycopy(src, off, buf, length, len);
+        length += len;
+        return this;
+    }
+
+    MessageBuffer appendBase64(byte[] src, int off, int len) {
+        ensureCapacity(length + Base64Codec.encodedLength(len));
+        length += Base64Codec.encode(src, off, len, buf, length);
+        return this;
+    }
+
+    void writeLine(OutputStream out) throws IOException {
+        append('\n');
+        out.write(buf, 0, length);
+        out.flush();
+        length--;
+    }
+
+    /**
+     * Le uma linha inteira (sem o terminador) para o buffer. Devolve false se a conexao
+     * foi fechada antes de qualquer byte da linha chegar.
+     */
+    boolean readLine(InputStream in) throws IOException {
+        int carried = filled - nextLine;
+        if (carried > 0) {
+            System.arraycopy(buf, nextLine, buf, 0, carried);
+        }
+        filled = carried;
+        nextLine = 0;
+        length = 0;
+        int scanFrom = 0;
+        while (true) {
+            for (int i = scanFrom; i < filled; i++) {
+                if (buf[i] == '\n') {
+                    length = (i > 0 && buf[i - 1] == '\r') ? i - 1 : i;
+                    nextLine = i + 1;
+                    return true;
+                }
+            }
+            scanFrom = filled;
+            if (filled == buf.length) {
+                if (filled >= READ_LIMIT) {
+                    throw new IOException("Linha excede o limite de " + READ_LIMIT + " bytes");
+                }
+                ensureCapacity(filled + 1);
+            }
+            int read = in.read(buf, filled, buf.length - filled);
+            if (read < 0) {
+                if (filled == 0) return false;
+                throw new EOFException("Conexao fechada no meio da linha");
+            }
+            filled += read;
+        }
+    }
+
+    String toString(int from, int to) {
+        return new String(buf, from, Math.max(0, Math.min(to, length) - from), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return toString(0, length);
+    }
+
+    @Override
+    public void close() {
+        if (buf != null) {
+            pool.release(buf);
+            buf = null;
+        }
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= buf.length) {
+            return;
+        }
+        byte[] bigger = pool.acquire(Math.max(required, buf.length * 2));
+        System.arraycopy(buf, 0, bigger, 0, Math.max(length, filled));
+        pool.release(buf);
+        buf = bigger;
+    }
+}
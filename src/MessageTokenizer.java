@@ -0,0 +1,266 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Leitura incremental de uma linha do protocolo ({@code <host:porta> <clock> <TIPO> [args]})
+ * direto sobre os bytes de um {@link MessageBuffer}. Campos sao expostos como fatias
+ * [inicio, fim) e numeros sao lidos no lugar; so se cria String quando quem chama pede.
+ *
+ * <p>Depois de {@link #readHeader()}, {@link #next()} avanca pelos argumentos separados por
+ * espaco e {@link #split(byte)} divide o campo atual em partes (ex.: {@code host:porta:status:clock}).
+ */
+class MessageTokenizer {
+    private static final int MAX_PARTS = 8;
+
+    private byte[] buf;
+    private int limit;
+    private int pos;
+    private int start;
+    private int end;
+    private final int[] partStarts = new int[MAX_PARTS];
+    private final int[] partEnds = new int[MAX_PARTS];
+    private int parts;
+
+    private int originStart;
+    private int originEnd;
+    private int originHostEnd;
+    private int originPort;
+    private int clock;
+    private int typeStart;
+    private int typeEnd;
+    private MessageType type;
+    private int argsStart;
+
+    MessageTokenizer() {
+    }
+
+    MessageTokenizer(MessageBuffer line) {
+        reset(line);
+    }
+
+    MessageTokenizer reset(MessageBuffer line) {
+        buf = line.array();
+        limit = line.length();
+        pos = 0;
+        start = end = 0;
+        parts = 0;
+        type = null;
+        originPort = -1;
+        return this;
+    }
+
+    /**
+     * Le origem, clock e tipo. Devolve false se algum deles faltar ou o clock nao for
+     * numerico; um tipo desconhecido nao e erro aqui, mas {@link #getType()} devolve null.
+     */
+    boolean readHeader() {
+        if (!next()) return false;
+        originStart = start;
+        originEnd = end;
+        originHostEnd = lastIndexOf((byte) ':', start, end);
+        originPort = -1;
+        if (originHostEnd > start) {
+            try {
+                originPort = parseInt(originHostEnd + 1, end);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        if (!next()) return false;
+        try {
+            clock = parseInt(start, end);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (!next()) return false;
+        typeStart = start;
+        typeEnd = end;
+        type = MessageType.lookup(buf, start, end);
+        argsStart = skipSpaces(pos);
+        return true;
+    }
+
+    MessageType getType() { return type; }
+    int getClock() { return clock; }
+    int getOriginPort() { return originPort; }
+    int getOriginHostStart() { return originStart; }
+    int getOriginHostEnd() { return originPort < 0 ? originEnd : originHostEnd; }
+    String getOriginText() { return text(originStart, originEnd); }
+    String getTypeText() { return text(typeStart, typeEnd); }
+
+    /** Argumentos apos o tipo, como texto (para handlers que ainda trabalham com String). */
+    String getArgsText() {
+        return text(argsStart, trimmedLimit());
+    }
+
+    int getArgsStart() {
+        return argsStart;
+    }
+
+    boolean hasArgs() {
+        return argsStart < limit;
+    }
+
+    /** Avanca para o proximo campo separado por espaco; false quando a linha acabou. */
+    boolean next() {
+        int i = skipSpaces(pos);
+        if (i >= limit) {
+            start = end = pos = limit;
+            parts = 0;
+            return false;
+        }
+        int j = i;
+        while (j < limit && buf[j] != ' ') j++;
+        start = i;
+        end = j;
+        pos = j;
+        parts = 0;
+        return true;
+    }
+
+    int nextInt() {
+        if (!next()) throw new NumberFormatException("Campo numerico ausente");
+        return parseInt(start, end);
+    }
+
+    long nextLong() {
+        if (!next()) throw new NumberFormatException("Campo numerico ausente");
+        return parseLong(start, end);
+    }
+
+    String nextText() {
+        return next() ? text(start, end) : null;
+    }
+
+    int tokenStart() { return start; }
+    int tokenEnd() { return end; }
+    String tokenText() { return text(start, end); }
+
+    boolean tokenEquals(String expected) {
+        return regionEquals(start, end, expected);
+    }
+
+    /** Array da linha, para quem le um campo inteiro sem copia (o Base64 de FILE, por exemplo). */
+    byte[] getBuffer() { return buf; }
+
+    /**
+     * Divide o campo atual em partes separadas por {@code separator}. Devolve o numero de
+     * partes, ou -1 se houver mais do que {@value #MAX_PARTS}.
+     */
+    int split(byte separator) {
+        parts = 0;
+        int from = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || buf[i] == separator) {
+                if (parts == MAX_PARTS) {
+                    parts = 0;
+                    return -1;
+                }
+                partStarts[parts] = from;
+                partEnds[parts] = i;
+                parts++;
+                from = i + 1;
+            }
+        }
+        return parts;
+    }
+
+    int partStart(int part) { return partStarts[checkPart(part)]; }
+    int partEnd(int part) { return partEnds[checkPart(part)]; }
+    String partText(int part) { return text(partStart(part), partEnd(part)); }
+    int partInt(int part) { return parseInt(partStart(part), partEnd(part)); }
+    long partLong(int part) { return parseLong(partStart(part), partEnd(part)); }
+
+    boolean partEquals(int part, String expected) {
+        return regionEquals(partStart(part), partEnd(part), expected);
+    }
+
+    /** Constante de {@code values} cujo nome casa com a parte, ignorando caixa; null se nenhuma. */
+    <E extends Enum<E>> E partEnum(int part, E[] values) {
+        int from = partStart(part);
+        int to = partEnd(part);
+        for (E value : values) {
+            if (regionEqualsIgnoreCase(from, to, value.name())) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    boolean regionEquals(int from, int to, String expected) {
+        if (to - from != expected.length()) return false;
+        for (int i = 0; i < expected.length(); i++) {
+            if (buf[from + i] != expected.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    boolean regionEqualsIgnoreCase(int from, int to, String expected) {
+        if (to - from != expected.length()) return false;
+        for (int i = 0; i < expected.length(); i++) {
+            char c = (char) (buf[from + i] & 0xff);
+            if (Character.toUpperCase(c) != Character.toUpperCase(expected.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    String text(int from, int to) {
+        return new String(buf, from, Math.max(0, to - from), StandardCharsets.UTF_8);
+    }
+
+    /** A linha inteira, para mensagens de erro. */
+    String line() {
+        return text(0, limit);
+    }
+
+    int parseInt(int from, int to) {
+        long value = parseLong(from, to);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Numero fora do intervalo: " + text(from, to));
+        }
+        return (int) value;
+    }
+
+    long parseLong(int from, int to) {
+        if (from >= to) {
+            throw new NumberFormatException("Numero vazio");
+        }
+        boolean negative = buf[from] == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to || to - i > 18) {
+            throw new NumberFormatException("Numero invalido: " + text(from, to));
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Numero invalido: " + text(from, to));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private int checkPart(int part) {
+        if (part >= parts) {
+            throw new IndexOutOfBoundsException("Parte " + part + " ausente em " + text(start, end));
+        }
+        return part;
+    }
+
+    private int skipSpaces(int i) {
+        while (i < limit && buf[i] == ' ') i++;
+        return i;
+    }
+
+    private int trimmedLimit() {
+        int to = limit;
+        while (to > argsStart && buf[to - 1] == ' ') to--;
+        return to;
+    }
+
+    private int lastIndexOf(byte b, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buf[i] == b) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,45 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tipos de mensagem do protocolo. {@link #lookup} reconhece o tipo direto nos bytes da
+ * linha, para que tipos desconhecidos sejam descartados antes de qualquer outra analise.
+ */
+public enum MessageType {
+    HELLO(true), BYE(true), GET_PEERS(true), PEER_LIST(true), LS(true), DL(true), SEARCH(true), GET_HAVE(true), DELTA(true), HOT(true), GET_MANIFEST(true),
+    DHT_FIND_NODE(true), DHT_GET_PROVIDERS(true), DHT_ADD_PROVIDER(true),
+    LS_LIST(false), FILE(false), SEARCH_HIT(false), SEARCH_END(false), HAVE(false), BUSY(false), DELTA_OPS(false), DELTA_END(false), MANIFEST(false),
+    DHT_NODES(false), DHT_PROVIDERS(false), DHT_OK(false), DHT_ERROR(false);
+
+    private static final MessageType[] VALUES = values();
+
+    private final boolean request;
+    private final byte[] wire;
+
+    MessageType(boolean request) {
+        this.request = request;
+        this.wire = name().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Indica se o tipo chega como requisicao ao servidor (e nao apenas como resposta).
+     */
+    public boolean isRequest() {
+        return request;
+    }
+
+    static MessageType lookup(byte[] buf, int from, int to) {
+        int length = to - from;
+        for (MessageType type : VALUES) {
+            byte[] wire = type.wire;
+            if (wire.length != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && buf[from + i] == wire[i]) i++;
+            if (i == length) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
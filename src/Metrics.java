@@ -0,0 +1,212 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Contadores, gauges e histogramas do no. Nomes podem levar rotulos no formato do Prometheus
+ * ({@code server_requests_total{type="DL"}}, ver {@link #labeled}). O tipo exportado vem de
+ * como a metrica foi registrada, nao do nome: {@link #add} e {@link #registerCounter} viram
+ * counter, {@link #registerGauge} vira gauge.
+ */
+public class Metrics {
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Supplier<Number>> counterSuppliers = new ConcurrentHashMap<>();
+    private final Map<String, Supplier<Number>> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    public long getCounter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    public void registerGauge(String name, Supplier<Number> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /** Contador mantido por outra classe; {@code supplier} so pode crescer. */
+    public void registerCounter(String name, Supplier<Number> supplier) {
+        counterSuppliers.put(name, supplier);
+    }
+
+    /**
+     * Registra {@code value} no histograma {@code name}, criado na primeira vez com os limites
+     * superiores {@code buckets} (crescentes; o +Inf e implicito).
+     */
+    public void observe(String name, double[] buckets, double value) {
+        histograms.computeIfAbsent(name, k -> new Histogram(buckets)).observe(value);
+    }
+
+    /** {@code name{k1="v1",k2="v2"}} a partir de pares chave/valor. */
+    public static String labeled(String name, String... labels) {
+        StringBuilder sb = new StringBuilder(name).append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            escapeLabel(sb, labels[i + 1]);
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    /** Valores atuais; de cada histograma entram so {@code _count} e {@code _sum}. */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        counterSuppliers.forEach((name, supplier) -> values.put(name, supplier.get()));
+        gauges.forEach((name, supplier) -> values.put(name, supplier.get()));
+        histograms.forEach((name, histogram) -> {
+            values.put(suffixed(name, "_count"), histogram.count.sum());
+            values.put(suffixed(name, "_sum"), histogram.sum.sum());
+        });
+        return values;
+    }
+
+    /**
+     * Escreve todas as metricas no formato texto do Prometheus (versao 0.0.4), com
+     * {@code prefix} antes de cada nome.
+     */
+    public void writePrometheus(StringBuilder out, String prefix) {
+        Map<String, Number> counterValues = new TreeMap<>();
+        counters.forEach((name, counter) -> counterValues.put(name, counter.sum()));
+        counterSuppliers.forEach((name, supplier) -> counterValues.put(name, supplier.get()));
+        writeValues(out, prefix, counterValues, "counter");
+        Map<String, Number> gaugeValues = new TreeMap<>();
+        gauges.forEach((name, supplier) -> gaugeValues.put(name, supplier.get()));
+        writeValues(out, prefix, gaugeValues, "gauge");
+        String lastFamily = null;
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            String name = entry.getKey();
+            String family = familyOf(name);
+            if (!family.equals(lastFamily)) {
+                out.append("# TYPE ").append(prefix).append(family).append(" histogram\n");
+                lastFamily = family;
+            }
+            Histogram histogram = entry.getValue();
+            long cumulative = 0;
+            for (int i = 0; i <= histogram.bounds.length; i++) {
+                cumulative += histogram.buckets[i].sum();
+                String le = i < histogram.bounds.length ? formatDouble(histogram.bounds[i]) : "+Inf";
+                out.append(prefix).append(withLabel(suffixed(name, "_bucket"), "le", le)).append(' ').append(cumulative).append('\n');
+            }
+            out.append(prefix).append(suffixed(name, "_sum")).append(' ').append(formatDouble(histogram.sum.sum())).append('\n');
+            out.append(prefix).append(suffixed(name, "_count")).append(' ').append(histogram.count.sum()).append('\n');
+        }
+    }
+
+    private static void writeValues(StringBuilder out, String prefix, Map<String, Number> values, String type) {
+        String lastFamily = null;
+        for (Map.Entry<String, Number> entry : values.entrySet()) {
+            String family = familyOf(entry.getKey());
+            if (!family.equals(lastFamily)) {
+                out.append("# TYPE ").append(prefix).append(family).append(' ').append(type).append('\n');
+                lastFamily = family;
+            }
+            out.append(prefix).append(entry.getKey()).append(' ');
+            appendValue(out, entry.getValue());
+            out.append('\n');
+        }
+    }
+
+    public void print() {
+        Map<String, Number> values = snapshot();
+        if (values.isEmpty()) {
+            System.out.println("(Nenhuma metrica registrada)");
+            return;
+        }
+        values.forEach((name, value) -> {
+            if (value instanceof Double) {
+                System.out.printf("%-44s %.4f%n", name, value.doubleValue());
+            } else {
+                System.out.printf("%-44s %d%n", name, value.longValue());
+            }
+        });
+    }
+
+    private static String familyOf(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? name : name.substring(0, brace);
+    }
+
+    /** {@code x{...}} + {@code _sum} vira {@code x_sum{...}}. */
+    private static String suffixed(String name, String suffix) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? name + suffix : name.substring(0, brace) + suffix + name.substring(brace);
+    }
+
+    private static String withLabel(String name, String key, String value) {
+        if (name.endsWith("}")) {
+            return name.substring(0, name.length() - 1) + "," + key + "=\"" + value + "\"}";
+        }
+        return name + "{" + key + "=\"" + value + "\"}";
+    }
+
+    private static void escapeLabel(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private static void appendValue(StringBuilder out, Number value) {
+        if (value instanceof Double || value instanceof Float) {
+            out.append(formatDouble(value.doubleValue()));
+        } else {
+            out.append(value.longValue());
+        }
+    }
+
+    private static String formatDouble(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+    private static class Histogram {
+        private final double[] bounds;
+        // buckets[i] conta as amostras em (bounds[i-1], bounds[i]]; o ultimo e o +Inf.
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds.clone();
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(double value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            count.increment();
+            sum.add(value);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Exporta as {@link Metrics} do no. {@link #startHttp} abre {@code GET /metrics} no formato
+ * texto do Prometheus, com o {@link HttpServer} do proprio JDK, no endereco que o {@link Node}
+ * escolher (loopback, a menos que {@code --metrics-bind} exponha). {@link #startSnapshots} acrescenta periodicamente uma
+ * linha {@code <epoch_ms> nome=valor ...} em {@code <diretorio_compartilhado>/.estado/metricas.log},
+ * que e rodado para {@code metricas.log.1} ao passar de {@value #MAX_SNAPSHOT_BYTES} bytes.
+ */
+class MetricsExporter {
+    static final String PREFIX = "eachare_";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String SNAPSHOT_FILE = "metricas.log";
+    private static final long MAX_SNAPSHOT_BYTES = 16L * 1024 * 1024;
+
+    private final Node node;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "metrics");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile HttpServer http;
+    private volatile Path snapshotPath;
+
+    MetricsExporter(Node node) {
+        this.node = node;
+    }
+
+    void startHttp(String host, int port) throws IOException {
+        if (http != null) {
+            return;
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", this::handle);
+        server.setExecutor(scheduler);
+        server.start();
+        http = server;
+        System.out.printf("Metricas Prometheus em http://%s:%d/metrics%n", host, server.getAddress().getPort());
+    }
+
+    void startSnapshots(long intervalMs) {
+        if (snapshotPath != null || intervalMs <= 0) {
+            return;
+        }
+        snapshotPath = Paths.get(node.getSharedDir().getAbsolutePath(), PeerTableStore.STATE_DIR, SNAPSHOT_FILE);
+        scheduler.scheduleWithFixedDelay(this::appendSnapshot, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        System.out.printf("Snapshots de metricas em %s a cada %d ms.%n", snapshotPath, intervalMs);
+    }
+
+    void shutdown() {
+        if (http != null) {
+            http.stop(0);
+        }
+        if (snapshotPath != null) {
+            appendSnapshot();
+        }
+        scheduler.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder text = new StringBuilder(8192);
+            node.getMetrics().writePrometheus(text, PREFIX);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    private synchronized void appendSnapshot() {
+        StringBuilder line = new StringBuilder(4096).append(System.currentTimeMillis());
+        for (Map.Entry<String, Number> entry : node.getMetrics().snapshot().entrySet()) {
+            // Sem espacos dentro dos rotulos, para a linha continuar separavel por espaco.
+            line.append(' ').append(entry.getKey().replace(' ', '_')).append('=');
+            Number value = entry.getValue();
+            if (value instanceof Double) {
+                line.append(String.format(java.util.Locale.ROOT, "%.4f", value.doubleValue()));
+            } else {
+                line.append(value.longValue());
+            }
+        }
+        line.append('\n');
+        try {
+            Files.createDirectories(snapshotPath.getParent());
+            if (Files.exists(snapshotPath) && Files.size(snapshotPath) > MAX_SNAPSHOT_BYTES) {
+                Files.move(snapshotPath, snapshotPath.resolveSibling(SNAPSHOT_FILE + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.write(snapshotPath, line.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Erro ao gravar snapshot de metricas: " + e.getMessage());
+        }
+    }
+}
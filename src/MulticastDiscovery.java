@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Descoberta de peers por UDP multicast no segmento local. Cada no anuncia periodicamente
+ * {@code EACHARE1 ANNOUNCE <host:porta> <clock> <versao_indice>} no grupo (TTL 1) e junta os
+ * anuncios recebidos na tabela de peers com as mesmas regras de Lamport do PEER_LIST
+ * ({@link Node#updatePeerFromPeerList}).
+ *
+ * <p>Para que um no recem-iniciado veja todos os vizinhos rapido, quem ouve um anuncio de um
+ * peer novo responde com o proprio anuncio apos um atraso aleatorio curto, em vez de esperar
+ * o proximo ciclo. Varios peers novos ao mesmo tempo geram uma resposta so.
+ */
+class MulticastDiscovery {
+    static final String DEFAULT_GROUP = "239.255.42.99:4446";
+    private static final String MAGIC = "EACHARE1";
+    private static final int MAX_DATAGRAM = 512;
+    private static final long REPLY_MAX_DELAY_MS = 100;
+
+    private final Node node;
+    private final InetSocketAddress group;
+    private final long intervalMs;
+    private final Map<String, Long> indexVersions = new ConcurrentHashMap<>();
+    private final AtomicLong lastAnnounce = new AtomicLong();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "multicast-announce");
+        t.setDaemon(true);
+        return t;
+    });
+    private MulticastSocket socket;
+    private volatile boolean running;
+
+    MulticastDiscovery(Node node, String groupAndPort, long intervalMs) {
+        int colon = groupAndPort.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Grupo multicast invalido (use <grupo>:<porta>): " + groupAndPort);
+        }
+        this.group = new InetSocketAddress(groupAndPort.substring(0, colon), Integer.parseInt(groupAndPort.substring(colon + 1)));
+        if (group.isUnresolved() || !group.getAddress().isMulticastAddress()) {
+            throw new IllegalArgumentException("Endereco nao e de multicast: " + groupAndPort);
+        }
+        this.node = node;
+        this.intervalMs = intervalMs;
+    }
+
+    void start() throws IOException {
+        socket = new MulticastSocket(group.getPort());
+        socket.setTimeToLive(1);
+        socket.joinGroup(group, null);
+        running = true;
+        Thread listener = new Thread(this::listen, "multicast-listen");
+        listener.setDaemon(true);
+        listener.start();
+        scheduler.scheduleWithFixedDelay(this::announce, 0, intervalMs, TimeUnit.MILLISECONDS);
+        System.out.printf("Descoberta multicast em %s:%d a cada %d ms.%n", group.getHostString(), group.getPort(), intervalMs);
+    }
+
+    void shutdown() {
+        running = false;
+        scheduler.shutdownNow();
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    /** Ultima versao de indice anunciada pelo peer, ou -1 se nunca anunciou. */
+    long getIndexVersion(String peerAddress) {
+        return indexVersions.getOrDefault(peerAddress, -1L);
+    }
+
+    private void announce() {
+        if (!running) {
+            return;
+        }
+        lastAnnounce.set(System.currentTimeMillis());
+        String message = String.format("%s ANNOUNCE %s %d %d", MAGIC, node.getAddress(), node.incrementClockForSend(), node.getSharedIndex().getVersion());
+        byte[] data = message.getBytes(StandardCharsets.US_ASCII);
+        try {
+            socket.send(new DatagramPacket(data, data.length, group));
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Erro ao enviar anuncio multicast: " + e.getMessage());
+            }
+        }
+    }
+
+    private void listen() {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (running) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                handle(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.US_ASCII).trim());
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Erro ao receber anuncio multicast: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handle(String message) {
+        String[] fields = message.split(" ");
+        if (fields.length != 5 || !fields[0].equals(MAGIC) || !fields[1].equals("ANNOUNCE")) {
+            return;
+        }
+        String address = fields[2];
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0 || address.equals(node.getAddress())) {
+            return;
+        }
+        int port;
+        int clock;
+        long version;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+            clock = Integer.parseInt(fields[3]);
+            version = Long.parseLong(fields[4]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        Long previous = indexVersions.put(address, version);
+        node.updatePeerFromPeerList(address.substring(0, colon), port, PeerStatus.ONLINE, clock);
+        if (previous == null) {
+            scheduleReply(System.currentTimeMillis());
+        } else if (previous != version) {
+            System.out.printf("Indice de %s mudou (versao %d).%n", address, version);
+        }
+    }
+
+    /** Anuncia de novo, a menos que um anuncio ja tenha saido depois de {@code seenAt}. */
+    private void scheduleReply(long seenAt) {
+        try {
+            scheduler.schedule(() -> {
+                if (lastAnnounce.get() < seenAt) {
+                    announce();
+                }
+            }, ThreadLocalRandom.current().nextLong(REPLY_MAX_DELAY_MS + 1), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+}
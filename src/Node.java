@@ -1,11 +1,16 @@
 import java.io.*;
 import java.net.*;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public class Node {
@@ -16,11 +21,45 @@ public class Node {
     private ServerSocket serverSocket;
     private volatile boolean running = true;
     private final File sharedDir;
+    private final SharedIndex sharedIndex;
+    private final SwarmRegistry swarm;
+    private volatile Dht dht;
+    private volatile MulticastDiscovery multicast;
+    private final PeerTableStore peerTable;
     private static final int CONNECT_TIMEOUT = 2000;
     private static final int READ_TIMEOUT = 5000;
+    private static final int DEFAULT_UPLOAD_SLOTS = 32;
+    private static final int DEFAULT_UPLOAD_QUEUE = 64;
+    private static final long MIN_RETRY_AFTER_MS = 50;
+    private static final int MAX_BUSY_RETRIES = 3;
+    private static final long DEFAULT_CHUNK_CACHE_BYTES = 32L * 1024 * 1024;
+    static final int LOG_PREVIEW_CHARS = 200;
+    /** Maior chunk aceito: o FILE em Base64 precisa caber no limite de linha do {@link MessageBuffer}. */
+    static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final PeerStatus[] PEER_STATUSES = PeerStatus.values();
+    private static final double[] DOWNLOAD_SECONDS_BUCKETS = {0.1, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300};
 
     private volatile int chunkSize = 256;
+    private volatile ScheduledExecutorService gossip;
+    private final AtomicBoolean exited = new AtomicBoolean();
     private final Map<StatKey, StatData> statistics = new ConcurrentHashMap<>();
+    private final LatencyTracker latencyTracker = new LatencyTracker(READ_TIMEOUT);
+    private final PeerProfiles peerProfiles = new PeerProfiles();
+    private final Metrics metrics = new Metrics();
+    private final MetricsExporter metricsExporter = new MetricsExporter(this);
+    private final PopularityTracker popularity = new PopularityTracker(this);
+    private volatile ReplicaCache replicaCache;
+    private volatile ChunkStore chunkStore;
+    private final BufferPool bufferPool = new BufferPool();
+    private final PeerClient peerClient = new PeerClient(this);
+    private volatile ThreadPoolExecutor handlerPool = createHandlerPool(DEFAULT_UPLOAD_SLOTS, DEFAULT_UPLOAD_QUEUE);
+    private volatile double avgServiceMs = 10.0;
+    private volatile ChunkCache chunkCache = new ChunkCache(DEFAULT_CHUNK_CACHE_BYTES, metrics);
+    private volatile String acceptedCodecs = DeflateCodec.NAME;
+    private final BandwidthLimiter uploadLimiter = new BandwidthLimiter("upload", 0, 0, metrics);
+    private final BandwidthLimiter downloadLimiter = new BandwidthLimiter("download", 0, 0, metrics);
+    private volatile DownloadManager downloadManager = new DownloadManager(this, DownloadManager.DEFAULT_MAX_FILES,
+            DownloadManager.DEFAULT_MAX_INFLIGHT, DownloadManager.DEFAULT_PEER_INFLIGHT);
 
     public Node(String address, String neighborsFile, String sharedDirPath) {
         String[] parts = address.split(":");
@@ -41,10 +80,24 @@ public class Node {
             System.err.println("Diretorio compartilhado invalido ou inacessivel: " + sharedDirPath);
             System.exit(1);
         }
+        this.sharedIndex = new SharedIndex(sharedDir);
+        this.swarm = new SwarmRegistry(sharedDir);
         System.out.println("Diretorio compartilhado: " + sharedDir.getAbsolutePath());
         System.out.println("Tamanho de chunk padrao: " + this.chunkSize);
 
+        metrics.registerGauge("server_active_handlers", () -> handlerPool.getActiveCount());
+        metrics.registerGauge("server_queued_connections", () -> handlerPool.getQueue().size());
+        metrics.registerGauge("server_avg_service_ms", () -> avgServiceMs);
+        metrics.registerGauge("lamport_clock", this::getClock);
+        for (PeerStatus status : PEER_STATUSES) {
+            metrics.registerGauge(Metrics.labeled("peers", "status", status.name()), () -> countPeers(status));
+        }
+        bufferPool.registerMetrics(metrics, "buffer_pool");
+
         loadPeersFromFile(neighborsFile);
+        this.peerTable = new PeerTableStore(this, sharedDir);
+        peerTable.load();
+        popularity.start();
     }
 
     private void loadPeersFromFile(String filename) {
@@ -97,6 +150,42 @@ public class Node {
         System.out.printf("Adicionando novo peer %s:%d status %s, Clock: %d (do arquivo)%n", host, port, status, peerClock);
     }
 
+    /**
+     * Entrada vinda do snapshot da tabela de peers: fica OFFLINE ate responder, mas guarda o
+     * maior clock e a ultima vez visto. Devolve false se o endereco e o do proprio no.
+     */
+    synchronized boolean restorePeer(String host, int port, int peerClock, long lastSeen) {
+        if (host.equals(this.host) && port == this.port) {
+            return false;
+        }
+        Peer peer = findPeer(host, port);
+        if (peer == null) {
+            peer = new Peer(host, port, PeerStatus.OFFLINE, peerClock);
+            knownPeers.add(peer);
+        } else if (peerClock > peer.getPeerClock()) {
+            peer.setPeerClock(peerClock);
+        }
+        peer.setLastSeen(Math.max(peer.getLastSeen(), lastSeen));
+        return true;
+    }
+
+    /**
+     * Sonda todos os peers conhecidos em paralelo (HELLO), esperando no maximo
+     * {@code deadlineMs}. Chamado na partida, depois que o servidor ja esta aceitando conexoes.
+     */
+    public void bootstrap(long deadlineMs) {
+        try {
+            peerTable.probeAll(deadlineMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Salva a tabela de peers em disco a cada {@code intervalMs} (e sempre no exit). */
+    public void startPeerSnapshots(long intervalMs) {
+        peerTable.startPeriodic(intervalMs);
+    }
+
     public String buildPeerListResponse(String senderAddress) {
         List<Peer> peersToSend = new ArrayList<>();
         for (Peer peer : knownPeers) {
@@ -128,7 +217,8 @@ public class Node {
                 try {
                     Socket clientSocket = serverSocket.accept();
                     clientSocket.setSoTimeout(READ_TIMEOUT);
-                    new Thread(new ClientHandler(clientSocket, this)).start();
+                    metrics.increment("server_connections_total");
+                    admitConnection(clientSocket);
                 } catch (SocketException e) {
                     if (!running) {
                         System.out.println("Servidor socket fechado.");
@@ -151,10 +241,56 @@ public class Node {
                     System.err.println("Erro ao fechar server socket: " + e.getMessage());
                 }
             }
+            handlerPool.shutdownNow();
             System.out.println("Thread do servidor terminada.");
         }
     }
 
+    public void configureAdmission(int slots, int queueCapacity) {
+        if (slots <= 0 || queueCapacity < 0) {
+            System.out.println("Configuracao de slots de upload invalida.");
+            return;
+        }
+        ThreadPoolExecutor previous = handlerPool;
+        this.handlerPool = createHandlerPool(slots, queueCapacity);
+        previous.shutdown();
+        System.out.printf("Admissao de conexoes: %d slots, fila de %d%n", slots, queueCapacity);
+    }
+
+    private ThreadPoolExecutor createHandlerPool(int slots, int queueCapacity) {
+        BlockingQueue<Runnable> queue = queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : new SynchronousQueue<>();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(slots, slots, 30, TimeUnit.SECONDS, queue);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private void admitConnection(Socket clientSocket) {
+        ThreadPoolExecutor pool = handlerPool;
+        try {
+            pool.execute(() -> {
+                long start = System.nanoTime();
+                new ClientHandler(clientSocket, this).run();
+                double elapsedMs = (System.nanoTime() - start) / 1_000_000.0;
+                avgServiceMs = avgServiceMs * 0.9 + elapsedMs * 0.1;
+            });
+        } catch (RejectedExecutionException e) {
+            metrics.increment("server_busy_rejections_total");
+            long retryAfterMs = estimateRetryAfterMs(pool);
+            try (Socket socket = clientSocket) {
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                out.println(String.format("%s %d BUSY %d", getAddress(), incrementClockForSend(), retryAfterMs));
+                System.out.printf("No saturado: respondendo BUSY %d ms para %s%n", retryAfterMs, socket.getRemoteSocketAddress());
+            } catch (IOException ex) {
+                System.err.println("Erro ao enviar BUSY: " + ex.getMessage());
+            }
+        }
+    }
+
+    private long estimateRetryAfterMs(ThreadPoolExecutor pool) {
+        double waves = 1.0 + (double) pool.getQueue().size() / Math.max(1, pool.getMaximumPoolSize());
+        return Math.max(MIN_RETRY_AFTER_MS, Math.min(READ_TIMEOUT, (long) (avgServiceMs * waves)));
+    }
+
     public synchronized int incrementClockForSend() {
         clock++;
         System.out.printf("=> Atualizando relogio para %d%n", clock);
@@ -176,14 +312,30 @@ public class Node {
             return;
         }
         Peer peer = knownPeers.get(index);
+        sendHello(peer.getHost(), peer.getPort());
+    }
+
+    /**
+     * Envia HELLO e atualiza o status do peer, se conhecido. Devolve se a mensagem foi entregue.
+     */
+    boolean sendHello(String targetHost, int targetPort) {
+        return sendHello(targetHost, targetPort, null);
+    }
 
+    /** Como {@link #sendHello(String, int)}; um HELLO cancelado por {@code handle} nao muda o status do peer. */
+    boolean sendHello(String targetHost, int targetPort, RequestHandle handle) {
         int currentClock = incrementClockForSend();
         String message = String.format("%s %d HELLO", getAddress(), currentClock);
 
-        boolean success = sendRawMessage(peer.getHost(), peer.getPort(), message);
+        boolean success = sendRawMessage(targetHost, targetPort, message, handle);
+        Peer peer = findPeer(targetHost, targetPort);
+        if (peer == null || (handle != null && handle.isCancelled())) {
+            return success;
+        }
 
         if (success) {
             System.out.printf("HELLO enviado para %s:%d.%n", peer.getHost(), peer.getPort());
+            peer.setLastSeen(System.currentTimeMillis());
             if (peer.getStatus() != PeerStatus.ONLINE) {
                 peer.setStatus(PeerStatus.ONLINE);
                 System.out.printf("Atualizando peer (send_HELLO_ok) %s:%d status ONLINE, Clock: %d%n", peer.getHost(), peer.getPort(), peer.getPeerClock());
@@ -195,6 +347,16 @@ public class Node {
                 System.out.printf("Atualizando peer (send_HELLO_fail) %s:%d status OFFLINE, Clock: %d%n", peer.getHost(), peer.getPort(), peer.getPeerClock());
             }
         }
+        return success;
+    }
+
+    private Peer findPeer(String targetHost, int targetPort) {
+        for (Peer peer : knownPeers) {
+            if (peer.getHost().equals(targetHost) && peer.getPort() == targetPort) {
+                return peer;
+            }
+        }
+        return null;
     }
 
     public void getPeers() {
@@ -208,12 +370,17 @@ public class Node {
                 continue;
             }
 
-            int currentClock = incrementClockForSend();
-            String message = String.format("%s %d GET_PEERS", getAddress(), currentClock);
-            String response = sendAndReceive(peer.getHost(), peer.getPort(), message);
-
-            if (response != null) {
-                processPeerListMessage(response);
+            RequestHandle handle = new RequestHandle();
+            try (MessageBuffer response = exchange(peer.getHost(), peer.getPort(), "GET_PEERS", "PEER_LIST", handle)) {
+                if (response != null) {
+                    MessageTokenizer tokens = new MessageTokenizer(response);
+                    tokens.readHeader();
+                    applyPeerList(tokens);
+                    continue;
+                }
+            }
+            if (handle.getBusyRetryAfterMs() > 0) {
+                System.out.printf("Peer %s:%d ocupado; GET_PEERS ignorado.%n", peer.getHost(), peer.getPort());
             } else {
                 System.out.printf("Falha ao comunicar com %s:%d para GET_PEERS. Marcando como OFFLINE.%n", peer.getHost(), peer.getPort());
                  if (peer.getStatus() != PeerStatus.OFFLINE) {
@@ -224,76 +391,91 @@ public class Node {
         }
     }
 
-    private void processPeerListMessage(String message) {
-        String[] parts = message.split(" ", 4);
-        if (parts.length < 3 || !parts[2].equals("PEER_LIST")) {
-            System.err.println("Resposta PEER_LIST invalida recebida: " + message);
-            return;
-        }
-
-        String originFullAddress = parts[0];
-        int messageClock;
+    /**
+     * Aplica os argumentos de um PEER_LIST ({@code <n> host:porta:status:clock ...}) a tabela
+     * de peers. Usado tanto na resposta a GET_PEERS quanto num PEER_LIST recebido pelo servidor.
+     */
+    void applyPeerList(MessageTokenizer tokens) {
+        int totalPeersInList;
         try {
-            messageClock = Integer.parseInt(parts[1]);
+            totalPeersInList = tokens.nextInt();
         } catch (NumberFormatException e) {
-            System.err.println("Clock invalido na resposta PEER_LIST: " + parts[1]);
+            System.err.println("Contagem invalida em PEER_LIST: " + tokens.tokenText());
             return;
         }
 
-        updateClockOnReceive(messageClock);
+        if (totalPeersInList == 0) return;
 
-        String[] originAddrParts = originFullAddress.split(":");
-        if (originAddrParts.length == 2) {
+        int received = 0;
+        while (tokens.next()) {
+            received++;
+            if (tokens.split((byte) ':') != 4) {
+                System.err.println("Formato de entrada de peer invalido em PEER_LIST: " + tokens.tokenText());
+                continue;
+            }
             try {
-                String originHost = originAddrParts[0];
-                int originPort = Integer.parseInt(originAddrParts[1]);
-                updatePeerFromDirectMessage(originHost, originPort, messageClock, false);
+                int port = tokens.partInt(1);
+                PeerStatus status = tokens.partEnum(2, PEER_STATUSES);
+                if (status == null) {
+                    System.err.println("Status invalido em PEER_LIST entry: " + tokens.partText(2));
+                    continue;
+                }
+                int peerClock = tokens.partInt(3);
+                updatePeerFromPeerList(knownHost(tokens, tokens.partStart(0), tokens.partEnd(0)), port, status, peerClock);
             } catch (NumberFormatException e) {
-                 System.err.println("Porta invalida no endereco de origem da PEER_LIST: " + originFullAddress);
+                System.err.println("Porta ou clock invalido em PEER_LIST entry: " + tokens.tokenText() + " -> " + e.getMessage());
             }
         }
-
-        if (parts.length < 4) {
-            System.out.println("PEER_LIST recebido sem corpo da lista.");
-            return;
+        if (received == 0) {
+            System.err.println("PEER_LIST indica " + totalPeersInList + " peers, mas lista esta faltando.");
+        } else if (received != totalPeersInList) {
+            System.err.printf("PEER_LIST: contagem declarada (%d) difere do numero de entradas recebidas (%d)%n", totalPeersInList, received);
         }
-        String argsString = parts[3];
-        String[] listParts = argsString.split(" ", 2);
-        int totalPeersInList;
-        try {
-            totalPeersInList = Integer.parseInt(listParts[0]);
-        } catch (NumberFormatException e) {
-            System.err.println("Contagem invalida em PEER_LIST: " + listParts[0]);
-            return;
+    }
+
+    /**
+     * Host da fatia {@code [from, to)} reaproveitando a String de um peer ja conhecido, para
+     * que mensagens de peers conhecidos nao aloquem uma nova a cada vez.
+     */
+    String knownHost(MessageTokenizer tokens, int from, int to) {
+        for (Peer peer : knownPeers) {
+            if (tokens.regionEquals(from, to, peer.getHost())) {
+                return peer.getHost();
+            }
         }
+        return tokens.text(from, to);
+    }
 
-        if (totalPeersInList == 0) return;
 
-        if (listParts.length < 2 || listParts[1].trim().isEmpty()) {
-            if (totalPeersInList > 0) System.err.println("PEER_LIST indica " + totalPeersInList + " peers, mas lista esta faltando.");
+    /**
+     * Copia da tabela de peers, na ordem em que foram conhecidos.
+     */
+    public List<Peer> getKnownPeers() {
+        return new ArrayList<>(knownPeers);
+    }
+
+    /**
+     * Passa a repetir GET_PEERS a cada {@code intervalMs} em segundo plano. Usado no modo
+     * daemon, onde nao ha menu; o HELLO inicial fica com {@link #bootstrap}.
+     */
+    public void startGossip(long intervalMs) {
+        if (gossip != null) {
             return;
         }
-
-        String[] peerEntries = listParts[1].trim().split(" ");
-        for (String peerEntry : peerEntries) {
-            String[] peerData = peerEntry.split(":");
-            if (peerData.length != 4) {
-                System.err.println("Formato de entrada de peer invalido em PEER_LIST: " + peerEntry);
-                continue;
-            }
-            try {
-                String host = peerData[0];
-                int port = Integer.parseInt(peerData[1]);
-                PeerStatus status = PeerStatus.valueOf(peerData[2].toUpperCase());
-                int peerClock = Integer.parseInt(peerData[3]);
-                updatePeerFromPeerList(host, port, status, peerClock);
-            } catch (Exception e) {
-                System.err.println("Erro ao processar entrada de PEER_LIST: " + peerEntry + " - " + e.getMessage());
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "gossip");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (running && !knownPeers.isEmpty()) {
+                getPeers();
             }
-        }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        gossip = scheduler;
+        System.out.printf("Gossip em segundo plano a cada %d ms.%n", intervalMs);
     }
 
-
     public void listPeers() {
         System.out.println("\nLista de peers conhecidos:");
         if (knownPeers.isEmpty()) {
@@ -309,22 +491,66 @@ public class Node {
 
     public void listLocalFiles() {
         System.out.println("\nArquivos locais no diretorio compartilhado (" + sharedDir.getName() + "):");
-        File[] files = sharedDir.listFiles();
-        if (files == null || files.length == 0) {
+        Map<String, Long> files = localFiles();
+        if (files.isEmpty()) {
             System.out.println("(Nenhum arquivo encontrado)");
             return;
         }
-        for (File file : files) {
-            if (file.isFile()) {
-                System.out.printf("- %s (%d bytes)%n", file.getName(), file.length());
+        files.forEach((name, size) -> System.out.printf("- %s (%d bytes)%n", name, size));
+    }
+
+    /** Arquivos completos deste no (soltos no diretorio e, com {@code --cas}, guardados por conteudo). */
+    Map<String, Long> localFiles() {
+        Map<String, Long> files = new TreeMap<>();
+        ChunkStore store = chunkStore;
+        if (store != null) {
+            files.putAll(store.listFiles());
+        }
+        File[] loose = sharedDir.listFiles(File::isFile);
+        if (loose != null) {
+            for (File file : loose) {
+                files.put(file.getName(), file.length());
             }
         }
+        return files;
+    }
+
+    /** Tamanho do arquivo completo {@code fileName} deste no, ou -1 se nao existe. */
+    long localFileSize(String fileName) {
+        File file = new File(sharedDir, fileName);
+        if (file.isFile()) {
+            return file.length();
+        }
+        ChunkStore store = chunkStore;
+        return store == null ? -1 : store.getFileSize(fileName);
+    }
+
+    /** Apaga o arquivo completo {@code fileName}, solto ou guardado por conteudo. */
+    boolean deleteLocalFile(String fileName) throws IOException {
+        File file = resolveShared(fileName);
+        if (file == null) {
+            return false;
+        }
+        boolean deleted = Files.deleteIfExists(file.toPath());
+        ChunkStore store = chunkStore;
+        if (store != null && store.remove(fileName)) {
+            deleted = true;
+        }
+        sharedIndex.invalidate();
+        chunkCache.invalidate(chunkCacheFile(fileName));
+        return deleted;
     }
 
     public void exit() {
+        if (exited.getAndSet(true)) {
+            return;
+        }
         System.out.println("Iniciando processo de saida...");
         running = false;
 
+        peerTable.stopPeriodic();
+        peerTable.save();
+
         System.out.println("Enviando BYE para peers ONLINE...");
         int currentClock = incrementClockForSend();
         String byeMessage = String.format("%s %d BYE", getAddress(), currentClock);
@@ -335,6 +561,23 @@ public class Node {
             }
         }
 
+        if (dht != null) {
+            dht.shutdown();
+        }
+        if (multicast != null) {
+            multicast.shutdown();
+        }
+        metricsExporter.shutdown();
+        popularity.shutdown();
+        downloadManager.shutdown();
+        if (replicaCache != null) {
+            replicaCache.save();
+        }
+        peerClient.close();
+        if (gossip != null) {
+            gossip.shutdownNow();
+        }
+
         if (serverSocket != null && !serverSocket.isClosed()) {
             try {
                 System.out.println("Fechando socket do servidor...");
@@ -352,6 +595,9 @@ public class Node {
         for (Peer peer : knownPeers) {
             if (peer.getHost().equals(host) && peer.getPort() == port) {
                 PeerStatus newStatus = isByeMessage ? PeerStatus.OFFLINE : PeerStatus.ONLINE;
+                if (!isByeMessage) {
+                    peer.setLastSeen(System.currentTimeMillis());
+                }
                 if (messageClockFromOrigin > peer.getPeerClock()) {
                     peer.setPeerClock(messageClockFromOrigin);
                     peer.setStatus(newStatus);
@@ -365,6 +611,9 @@ public class Node {
         }
         PeerStatus initialStatus = isByeMessage ? PeerStatus.OFFLINE : PeerStatus.ONLINE;
         Peer newPeer = new Peer(host, port, initialStatus, messageClockFromOrigin);
+        if (!isByeMessage) {
+            newPeer.setLastSeen(System.currentTimeMillis());
+        }
         knownPeers.add(newPeer);
         System.out.printf("Adicionando novo peer (direct) %s:%d status %s, Clock: %d%n", host, port, newPeer.getStatus(), newPeer.getPeerClock());
     }
@@ -387,38 +636,242 @@ public class Node {
         System.out.printf("Adicionando novo peer (PEER_LIST) %s:%d status %s, Clock: %d%n", listedHost, listedPort, newPeer.getStatus(), newPeer.getPeerClock());
     }
 
-    private String sendAndReceive(String targetHost, int targetPort, String message) {
-        System.out.printf("Encaminhando mensagem \"%s\" para %s:%d%n", message.trim(), targetHost, targetPort);
+    String sendRequest(String targetHost, int targetPort, String typeAndArgs, String expectedType) {
+        return sendRequest(targetHost, targetPort, typeAndArgs, expectedType, null);
+    }
+
+    String sendRequest(String targetHost, int targetPort, String typeAndArgs, String expectedType, RequestHandle handle) {
+        try (MessageBuffer response = exchange(targetHost, targetPort, typeAndArgs, expectedType, handle)) {
+            if (response == null) {
+                return null;
+            }
+            MessageTokenizer tokens = new MessageTokenizer(response);
+            tokens.readHeader();
+            return tokens.getArgsText();
+        }
+    }
+
+    /**
+     * Como {@link #sendRequest}, mas devolve a linha de resposta inteira em um buffer do pool
+     * em vez de uma String; quem chama deve fechar o buffer. O cabecalho ja foi validado.
+     */
+    MessageBuffer exchange(String targetHost, int targetPort, String typeAndArgs, String expectedType, RequestHandle handle) {
+        int localClock = incrementClockForSend();
+        MessageBuffer response = new MessageBuffer(bufferPool);
+        boolean keep = false;
+        try {
+            response.append(getAddress()).append(' ').append(localClock).append(' ').append(typeAndArgs);
+            if (!sendAndReceive(targetHost, targetPort, response, handle)) {
+                return null;
+            }
+            MessageTokenizer tokens = new MessageTokenizer(response);
+            if (!tokens.readHeader()) {
+                System.err.println("Resposta invalida recebida de " + targetHost + ":" + targetPort + ": " + tokens.line());
+                return null;
+            }
+            updateClockOnReceive(tokens.getClock());
+            updatePeerFromDirectMessage(targetHost, targetPort, tokens.getClock(), false);
+            if (tokens.getType() == MessageType.BUSY && !expectedType.equals("BUSY")) {
+                long retryAfterMs = MIN_RETRY_AFTER_MS;
+                try {
+                    retryAfterMs = tokens.nextLong();
+                } catch (NumberFormatException ignored) {
+                }
+                System.out.printf("Peer %s:%d ocupado; nova tentativa em %d ms.%n", targetHost, targetPort, retryAfterMs);
+                if (handle != null) {
+                    handle.markBusy(retryAfterMs);
+                }
+                return null;
+            }
+            if (tokens.getType() == null || !tokens.getType().name().equals(expectedType)) {
+                System.err.printf("Resposta inesperada de %s:%d (esperado %s): %s%n", targetHost, targetPort, expectedType, response.toString(0, LOG_PREVIEW_CHARS));
+                return null;
+            }
+            keep = true;
+            return response;
+        } finally {
+            if (!keep) {
+                response.close();
+            }
+        }
+    }
+
+    public PeerClient getPeerClient() {
+        return peerClient;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /** Conecta e registra o tempo do handshake como amostra de RTT do peer; devolve esse tempo em ns. */
+    private long connect(Socket socket, String targetHost, int targetPort) throws IOException {
+        long start = System.nanoTime();
+        socket.connect(new InetSocketAddress(targetHost, targetPort), CONNECT_TIMEOUT);
+        long elapsed = System.nanoTime() - start;
+        peerProfiles.recordRtt(targetHost + ":" + targetPort, elapsed);
+        return elapsed;
+    }
+
+    private static void commitPeerRequest(TraceEvents.PeerRequest event, String type, String targetHost, int targetPort,
+                                          long connectNanos, long sentAt, long responseBytes, boolean success) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.peer = targetHost + ":" + targetPort;
+            event.type = type;
+            event.connectTime = connectNanos;
+            event.waitTime = sentAt > 0 ? System.nanoTime() - sentAt : 0;
+            event.responseBytes = responseBytes;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    /**
+     * Envia a linha contida em {@code buffer} e le a resposta para o mesmo buffer.
+     */
+    private boolean sendAndReceive(String targetHost, int targetPort, MessageBuffer buffer, RequestHandle handle) {
+        System.out.printf("Encaminhando mensagem \"%s\" para %s:%d%n", buffer.toString().trim(), targetHost, targetPort);
+        TraceEvents.PeerRequest event = new TraceEvents.PeerRequest();
+        // O buffer passa a guardar a resposta, entao o tipo e lido antes do envio.
+        String type = event.isEnabled() ? TraceEvents.typeOf(buffer) : null;
+        event.begin();
+        long connectNanos = 0;
+        long sentAt = 0;
+        boolean success = false;
         try (Socket socket = new Socket()) {
-            socket.connect(new InetSocketAddress(targetHost, targetPort), CONNECT_TIMEOUT);
+            if (handle != null) {
+                handle.attach(socket);
+            }
+            connectNanos = connect(socket, targetHost, targetPort);
             socket.setSoTimeout(READ_TIMEOUT);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out.println(message);
-            String response = in.readLine();
-            if (response != null) {
-                 if (response.contains("FILE") && response.length() > 200) {
-                     System.out.printf("Resposta recebida de %s:%d: \"%s...\"%n", targetHost, targetPort, response.substring(0, 200));
+            buffer.writeLine(socket.getOutputStream());
+            sentAt = System.nanoTime();
+            if (buffer.readLine(socket.getInputStream())) {
+                 if (buffer.length() > LOG_PREVIEW_CHARS) {
+                     System.out.printf("Resposta recebida de %s:%d: \"%s...\"%n", targetHost, targetPort, buffer.toString(0, LOG_PREVIEW_CHARS));
                  } else {
-                     System.out.printf("Resposta recebida de %s:%d: \"%s\"%n", targetHost, targetPort, response.trim());
+                     System.out.printf("Resposta recebida de %s:%d: \"%s\"%n", targetHost, targetPort, buffer.toString().trim());
                  }
+                 success = true;
+                 return true;
+            }
+            System.out.printf("Nenhuma resposta recebida de %s:%d (timeout ou conexao fechada)%n", targetHost, targetPort);
+            return false;
+        } catch (SocketTimeoutException e) {
+            System.err.printf("Timeout ao comunicar com %s:%d%n", targetHost, targetPort);
+            return false;
+        } catch (IOException e) {
+            if (handle != null && handle.isCancelled()) {
+                System.out.printf("Requisicao para %s:%d cancelada.%n", targetHost, targetPort);
             } else {
-                 System.out.printf("Nenhuma resposta recebida de %s:%d (timeout ou conexao fechada)%n", targetHost, targetPort);
+                System.err.printf("Erro de I/O ao comunicar com %s:%d: %s%n", targetHost, targetPort, e.getMessage());
             }
-            return response;
+            return false;
+        } finally {
+            if (success) {
+                metrics.add("client_bytes_received_total", buffer.length() + 1);
+            }
+            commitPeerRequest(event, type, targetHost, targetPort, connectNanos, sentAt, success ? buffer.length() : 0, success);
+        }
+    }
+
+    /**
+     * Envia uma requisicao cuja resposta chega em varias linhas (SEARCH). Cada linha tem o
+     * cabecalho ja lido e o clock aplicado antes de ir para {@code onLine}, que devolve false
+     * para parar. Devolve false se a conexao falhar ou fechar antes disso.
+     */
+    boolean stream(String targetHost, int targetPort, String typeAndArgs, RequestHandle handle, Predicate<MessageTokenizer> onLine) {
+        try (MessageBuffer args = new MessageBuffer(bufferPool)) {
+            args.append(typeAndArgs);
+            return stream(targetHost, targetPort, args, handle, onLine);
+        }
+    }
+
+    /**
+     * Como {@link #stream(String, int, String, RequestHandle, Predicate)}, com tipo e argumentos
+     * ja montados num buffer (para pedidos grandes, como as assinaturas de DELTA).
+     */
+    boolean stream(String targetHost, int targetPort, MessageBuffer typeAndArgs, RequestHandle handle, Predicate<MessageTokenizer> onLine) {
+        int localClock = incrementClockForSend();
+        try (MessageBuffer message = new MessageBuffer(bufferPool, typeAndArgs.length() + 64)) {
+            message.append(getAddress()).append(' ').append(localClock).append(' ')
+                    .append(typeAndArgs.array(), 0, typeAndArgs.length());
+            return sendAndStream(targetHost, targetPort, message, handle, tokens -> {
+            if (!tokens.readHeader()) {
+                System.err.println("Resposta invalida recebida de " + targetHost + ":" + targetPort + ": " + tokens.line());
+                return false;
+            }
+            updateClockOnReceive(tokens.getClock());
+                updatePeerFromDirectMessage(targetHost, targetPort, tokens.getClock(), false);
+                return onLine.test(tokens);
+            });
+        }
+    }
+
+    /**
+     * Envia {@code message} (que e reaproveitado para ler as respostas) e entrega cada linha
+     * recebida a {@code onLine} ate que ela devolva false.
+     */
+    private boolean sendAndStream(String targetHost, int targetPort, MessageBuffer buffer, RequestHandle handle, Predicate<MessageTokenizer> onLine) {
+        if (buffer.length() > LOG_PREVIEW_CHARS) {
+            System.out.printf("Encaminhando mensagem \"%s...\" para %s:%d%n", buffer.toString(0, LOG_PREVIEW_CHARS), targetHost, targetPort);
+        } else {
+            System.out.printf("Encaminhando mensagem \"%s\" para %s:%d%n", buffer.toString().trim(), targetHost, targetPort);
+        }
+        TraceEvents.PeerRequest event = new TraceEvents.PeerRequest();
+        String type = event.isEnabled() ? TraceEvents.typeOf(buffer) : null;
+        event.begin();
+        long connectNanos = 0;
+        long sentAt = 0;
+        long received = 0;
+        boolean success = false;
+        try (Socket socket = new Socket()) {
+            if (handle != null) {
+                handle.attach(socket);
+            }
+            connectNanos = connect(socket, targetHost, targetPort);
+            socket.setSoTimeout(READ_TIMEOUT);
+            buffer.writeLine(socket.getOutputStream());
+            sentAt = System.nanoTime();
+            buffer.clear();
+            MessageTokenizer tokens = new MessageTokenizer();
+            while (buffer.readLine(socket.getInputStream())) {
+                received += buffer.length() + 1;
+                if (!onLine.test(tokens.reset(buffer))) {
+                    success = true;
+                    return true;
+                }
+            }
+            System.out.printf("Conexao fechada por %s:%d antes do fim da resposta%n", targetHost, targetPort);
+            return false;
         } catch (SocketTimeoutException e) {
             System.err.printf("Timeout ao comunicar com %s:%d%n", targetHost, targetPort);
-            return null;
+            return false;
         } catch (IOException e) {
-            System.err.printf("Erro de I/O ao comunicar com %s:%d: %s%n", targetHost, targetPort, e.getMessage());
-            return null;
+            if (handle != null && handle.isCancelled()) {
+                System.out.printf("Requisicao para %s:%d cancelada.%n", targetHost, targetPort);
+            } else {
+                System.err.printf("Erro de I/O ao comunicar com %s:%d: %s%n", targetHost, targetPort, e.getMessage());
+            }
+            return false;
+        } finally {
+            metrics.add("client_bytes_received_total", received);
+            commitPeerRequest(event, type, targetHost, targetPort, connectNanos, sentAt, received, success);
         }
     }
 
     private boolean sendRawMessage(String targetHost, int targetPort, String message) {
+        return sendRawMessage(targetHost, targetPort, message, null);
+    }
+
+    private boolean sendRawMessage(String targetHost, int targetPort, String message, RequestHandle handle) {
         System.out.printf("Encaminhando mensagem \"%s\" para %s:%d%n", message.trim(), targetHost, targetPort);
         try (Socket socket = new Socket()) {
-            socket.connect(new InetSocketAddress(targetHost, targetPort), CONNECT_TIMEOUT);
+            if (handle != null) {
+                handle.attach(socket);
+            }
+            connect(socket, targetHost, targetPort);
             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
             out.println(message);
             out.flush();
@@ -427,45 +880,262 @@ public class Node {
             System.err.printf("Timeout ao conectar com %s:%d%n", targetHost, targetPort);
             return false;
         } catch (IOException e) {
-            System.err.printf("Erro de I/O ao enviar para %s:%d: %s%n", targetHost, targetPort, e.getMessage());
+            if (handle != null && handle.isCancelled()) {
+                System.out.printf("Envio para %s:%d cancelado.%n", targetHost, targetPort);
+            } else {
+                System.err.printf("Erro de I/O ao enviar para %s:%d: %s%n", targetHost, targetPort, e.getMessage());
+            }
             return false;
         }
     }
 
     public void searchAndDownloadFiles(Scanner scanner) {
         System.out.println("Buscando arquivos na rede...");
-        Map<String, DiscoveredFileGroup> discoveredFileGroups = new HashMap<>();
+        List<DiscoveredFileGroup> found = discoverFiles(null);
+        if (!found.isEmpty()) {
+            chooseAndDownload(scanner, found);
+        }
+    }
+
+    public void searchFiles(SearchQuery query, Scanner scanner) {
+        System.out.println("Buscando arquivos na rede com SEARCH " + query + "...");
+        List<DiscoveredFileGroup> found = discoverFiles(query);
+        if (!found.isEmpty()) {
+            chooseAndDownload(scanner, found);
+        }
+    }
 
+    /**
+     * Consulta os peers ONLINE com SEARCH (ou LS, se {@code query} for null) e devolve os
+     * arquivos agrupados por nome e tamanho, sem interagir com o usuario.
+     */
+    List<DiscoveredFileGroup> discoverFiles(SearchQuery query) {
         List<Peer> onlinePeers = knownPeers.stream()
                 .filter(p -> p.getStatus() == PeerStatus.ONLINE && !getAddress().equals(p.getHost() + ":" + p.getPort()))
                 .collect(Collectors.toList());
 
         if (onlinePeers.isEmpty()) {
             System.out.println("Nenhum peer ONLINE conhecido para buscar arquivos.");
-            return;
+            return new ArrayList<>();
         }
 
-        for (Peer peer : onlinePeers) {
-            int localClock = incrementClockForSend();
-            String lsMessage = String.format("%s %d LS", getAddress(), localClock);
-            String response = sendAndReceive(peer.getHost(), peer.getPort(), lsMessage);
+        Map<String, DiscoveredFileGroup> discoveredFileGroups = new ConcurrentHashMap<>();
+        if (query == null) {
+            collectFiles(onlinePeers, "LS", peer -> peerClient.ls(peer.getHost(), peer.getPort())
+                    .thenAccept(files -> files.forEach(file -> addDiscovered(discoveredFileGroups, file))));
+        } else {
+            // Cada SEARCH_HIT aparece assim que chega; o agrupamento sai depois do SEARCH_END.
+            collectFiles(onlinePeers, "SEARCH", peer -> searchWithRetry(peer, query, 0, file -> {
+                addDiscovered(discoveredFileGroups, file);
+                System.out.printf("  + %s (%d bytes) em %s%n", file.getName(), file.getSize(), peer.getAddress());
+            }));
+        }
 
-            if (response != null) {
-                processLsListResponse(response, peer, discoveredFileGroups);
-            } else {
-                if (peer.getStatus() != PeerStatus.OFFLINE) {
+        if (discoveredFileGroups.isEmpty()) {
+            System.out.println("Nenhum arquivo encontrado na rede.");
+        }
+        List<DiscoveredFileGroup> found = new ArrayList<>(discoveredFileGroups.values());
+        found.sort(Comparator.comparing((DiscoveredFileGroup g) -> g.fileName).thenComparingLong(g -> g.fileSize));
+        return found;
+    }
+
+    /** Agrupa {@code file} por nome e tamanho. */
+    private static void addDiscovered(Map<String, DiscoveredFileGroup> groups, PeerClient.FileEntry file) {
+        String fileKey = file.getName() + ":" + file.getSize(); // Group by name and size
+        groups.computeIfAbsent(fileKey, k -> new DiscoveredFileGroup(file.getName(), file.getSize()))
+              .addPeerLocation(file.getHost(), file.getPort(), file.isPartial());
+    }
+
+    /**
+     * Dispara {@code request} para todos os peers em paralelo e espera todos terminarem; os
+     * arquivos sao agrupados pelo proprio {@code request}. Peers que falham (e nao apenas estao
+     * ocupados) sao marcados OFFLINE.
+     */
+    private void collectFiles(List<Peer> peers, String operation, Function<Peer, CompletableFuture<?>> request) {
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (Peer peer : peers) {
+            pending.add(request.apply(peer).handle((result, error) -> {
+                if (error == null) {
+                    return null;
+                }
+                PeerClient.PeerException failure = PeerClient.PeerException.from(error);
+                if (failure != null && failure.getReason() == PeerClient.PeerException.Reason.BUSY) {
+                    System.out.printf("Peer %s ocupado; %s ignorado nesta busca.%n", peer.getAddress(), operation);
+                } else if (peer.getStatus() != PeerStatus.OFFLINE) {
                     peer.setStatus(PeerStatus.OFFLINE);
-                    System.out.printf("Atualizando peer (LS_send_fail) %s:%d status OFFLINE, Clock: %d%n", peer.getHost(), peer.getPort(), peer.getPeerClock());
+                    System.out.printf("Atualizando peer (%s_fail) %s:%d status OFFLINE, Clock: %d%n", operation, peer.getHost(), peer.getPort(), peer.getPeerClock());
                 }
+                return null;
+            }));
+        }
+        try {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).get(READ_TIMEOUT * 2L, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            System.err.println("Alguns peers nao responderam a " + operation + " a tempo.");
+        } catch (ExecutionException e) {
+            System.err.println("Erro inesperado na busca: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Busca interrompida.");
+        }
+    }
+
+    private CompletableFuture<Integer> searchWithRetry(Peer peer, SearchQuery query, int attempt, Consumer<PeerClient.FileEntry> onHit) {
+        return peerClient.search(peer.getHost(), peer.getPort(), query, onHit).handle((total, error) -> {
+            PeerClient.PeerException failure = PeerClient.PeerException.from(error);
+            if (error == null || failure == null || failure.getReason() != PeerClient.PeerException.Reason.BUSY || attempt + 1 >= MAX_BUSY_RETRIES) {
+                return error == null ? CompletableFuture.completedFuture(total) : CompletableFuture.<Integer>failedFuture(error);
+            }
+            long delay = Math.max(MIN_RETRY_AFTER_MS, failure.getRetryAfterMs());
+            System.out.printf("Peer %s ocupado; repetindo SEARCH em %d ms.%n", peer.getAddress(), delay);
+            return CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                    .thenCompose(ignored -> searchWithRetry(peer, query, attempt + 1, onHit));
+        }).thenCompose(Function.identity());
+    }
+
+    public void enableDht() {
+        if (dht != null) {
+            return;
+        }
+        dht = new Dht(this);
+        dht.start(new ArrayList<>(knownPeers));
+        System.out.println("Camada DHT habilitada.");
+    }
+
+    /**
+     * Liga a descoberta por multicast no grupo {@code groupAndPort}, anunciando a cada
+     * {@code intervalMs}.
+     */
+    public void enableMulticast(String groupAndPort, long intervalMs) throws IOException {
+        if (multicast != null) {
+            return;
+        }
+        MulticastDiscovery discovery = new MulticastDiscovery(this, groupAndPort, intervalMs);
+        discovery.start();
+        multicast = discovery;
+    }
+
+    /**
+     * Abre o endpoint {@code /metrics} (Prometheus) na porta {@code metricsPort}. Sem
+     * {@code bindHost} fica so no loopback, como o socket de controle.
+     */
+    public void enableMetricsHttp(int metricsPort, String bindHost) throws IOException {
+        metricsExporter.startHttp(bindHost == null ? InetAddress.getLoopbackAddress().getHostAddress() : bindHost, metricsPort);
+    }
+
+    /** Acrescenta um snapshot das metricas em disco a cada {@code intervalMs}. */
+    public void enableMetricsSnapshots(long intervalMs) {
+        metricsExporter.startSnapshots(intervalMs);
+    }
+
+    /**
+     * Passa a aceitar replicas de arquivos populares anunciados por outros peers, ate
+     * {@code quotaBytes} no diretorio compartilhado.
+     */
+    public void enableReplicaCache(long quotaBytes) {
+        if (replicaCache == null && quotaBytes > 0) {
+            replicaCache = new ReplicaCache(this, quotaBytes);
+        }
+    }
+
+    /**
+     * Passa a guardar os arquivos por conteudo ({@link ChunkStore}) em blocos de
+     * {@code blockSize} bytes, importando os arquivos que ja estao no diretorio. Downloads
+     * passam a usar esse tamanho de chunk, para que cada chunk baixado seja um bloco.
+     */
+    public void enableChunkStore(int blockSize) throws IOException {
+        if (chunkStore != null) {
+            return;
+        }
+        ChunkStore store = new ChunkStore(this, blockSize);
+        store.open();
+        chunkStore = store;
+        sharedIndex.setChunkStore(store);
+    }
+
+    ChunkStore getChunkStore() {
+        return chunkStore;
+    }
+
+    ReplicaCache getReplicaCache() {
+        return replicaCache;
+    }
+
+    PopularityTracker getPopularity() {
+        return popularity;
+    }
+
+    /** Um DL de arquivo completo atendido: conta para a popularidade e para o LFU das replicas. */
+    void recordServed(String fileName) {
+        popularity.record(fileName);
+        ReplicaCache cache = replicaCache;
+        if (cache != null) {
+            cache.recordHit(fileName);
+        }
+    }
+
+    /**
+     * Avisa os peers ONLINE que {@code fileName} esta muito pedido aqui:
+     * {@code HOT <nome> <tamanho> <req_por_min>}. Quem tem cota de replicas sobrando pode
+     * baixar uma copia e dividir a carga.
+     */
+    void advertiseHot(String fileName, long fileSize, double requestsPerMinute) {
+        System.out.printf("Arquivo %s popular (%.1f req/min); anunciando HOT.%n", fileName, requestsPerMinute);
+        String message = String.format(Locale.ROOT, "%s %d HOT %s %d %.1f", getAddress(), incrementClockForSend(), fileName, fileSize, requestsPerMinute);
+        for (Peer peer : knownPeers) {
+            if (peer.getStatus() == PeerStatus.ONLINE) {
+                sendRawMessage(peer.getHost(), peer.getPort(), message);
             }
         }
+        metrics.increment("hot_advertisements_total");
+    }
 
+    /** HOT recebido de {@code host:port}; so tem efeito com a cache de replicas ligada. */
+    void onHot(String host, int port, String fileName, long fileSize, double requestsPerMinute) {
+        ReplicaCache cache = replicaCache;
+        if (cache != null) {
+            cache.onHot(host, port, fileName, fileSize, requestsPerMinute);
+        }
+    }
+
+    private int countPeers(PeerStatus status) {
+        int count = 0;
+        for (Peer peer : knownPeers) {
+            if (peer.getStatus() == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    MulticastDiscovery getMulticast() {
+        return multicast;
+    }
+
+    public Dht getDht() {
+        return dht;
+    }
+
+    public void searchDht(String fileName, Scanner scanner) {
+        if (dht == null) {
+            System.out.println("DHT desabilitada. Inicie o no com --dht.");
+            return;
+        }
+        Map<String, DiscoveredFileGroup> discoveredFileGroups = new HashMap<>();
+        for (Dht.ProviderRecord record : dht.findProviders(fileName)) {
+            DiscoveredFileGroup group = discoveredFileGroups.computeIfAbsent(record.getFileName() + ":" + record.getFileSize(),
+                    k -> new DiscoveredFileGroup(record.getFileName(), record.getFileSize()));
+            group.addPeerLocation(record.getHost(), record.getPort());
+        }
         if (discoveredFileGroups.isEmpty()) {
-            System.out.println("Nenhum arquivo encontrado na rede.");
+            System.out.println("Nenhuma fonte encontrada na DHT para " + fileName + ".");
             return;
         }
+        chooseAndDownload(scanner, new ArrayList<>(discoveredFileGroups.values()));
+    }
 
-        List<DiscoveredFileGroup> displayList = new ArrayList<>(discoveredFileGroups.values());
+    private void chooseAndDownload(Scanner scanner, List<DiscoveredFileGroup> displayList) {
+        displayList.sort(Comparator.comparing((DiscoveredFileGroup g) -> g.fileName).thenComparingLong(g -> g.fileSize));
         displayGroupedFiles(displayList);
 
         System.out.print("Digite o numero do arquivo para fazer o download: ");
@@ -488,41 +1158,8 @@ public class Node {
         System.out.printf("arquivo escolhido %s de %s%n", chosenGroup.fileName,
                 chosenGroup.peerLocations.stream().map(loc -> loc.peerHost + ":" + loc.peerPort).collect(Collectors.joining(", ")));
 
-        downloadFileInChunks(chosenGroup);
-    }
-
-    private void processLsListResponse(String response, Peer peer, Map<String, DiscoveredFileGroup> fileGroups) {
-        String[] parts = response.split(" ", 4);
-        if (parts.length >= 4 && parts[2].equals("LS_LIST")) {
-            try {
-                int responseClock = Integer.parseInt(parts[1]);
-                updateClockOnReceive(responseClock);
-                updatePeerFromDirectMessage(peer.getHost(), peer.getPort(), responseClock, false);
-
-                int count = Integer.parseInt(parts[3].split(" ")[0]);
-                if (count > 0 && parts[3].split(" ").length > 1) {
-                    String[] fileEntries = parts[3].substring(parts[3].indexOf(" ") + 1).trim().split(" ");
-                    for (String entry : fileEntries) {
-                        String[] fileInfo = entry.split(":");
-                        if (fileInfo.length == 2) {
-                            String fileName = fileInfo[0];
-                            long fileSize = Long.parseLong(fileInfo[1]);
-                            String fileKey = fileName + ":" + fileSize; // Group by name and size
-                            DiscoveredFileGroup group = fileGroups.computeIfAbsent(fileKey, k -> new DiscoveredFileGroup(fileName, fileSize));
-                            group.addPeerLocation(peer.getHost(), peer.getPort());
-                        }
-                    }
-                }
-            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
-                System.err.println("Formato invalido de LS_LIST recebido de " + peer.getAddress() + ": " + response + " Erro: " + e.getMessage());
-            }
-        } else {
-            System.err.println("Resposta inesperada para LS de " + peer.getAddress() + ": " + response);
-            if (peer.getStatus() != PeerStatus.OFFLINE) {
-                peer.setStatus(PeerStatus.OFFLINE);
-                System.out.printf("Atualizando peer (LS_response_invalid) %s:%d status OFFLINE, Clock: %d%n", peer.getHost(), peer.getPort(), peer.getPeerClock());
-            }
-        }
+        DownloadManager.Job job = downloadManager.enqueue(chosenGroup, 0);
+        System.out.printf("Download #%d de %s na fila (acompanhe em \"Downloads em andamento\").%n", job.id, chosenGroup.fileName);
     }
 
     private void displayGroupedFiles(List<DiscoveredFileGroup> displayList) {
@@ -531,82 +1168,167 @@ public class Node {
         for (int i = 0; i < displayList.size(); i++) {
             DiscoveredFileGroup group = displayList.get(i);
             String peers = group.peerLocations.stream()
-                    .map(loc -> loc.peerHost + ":" + loc.peerPort)
+                    .map(loc -> loc.getAddress() + (loc.partial ? " (parcial)" : ""))
                     .collect(Collectors.joining(", "));
             System.out.printf("[%d] %s | %d bytes | Peers: %s%n", i + 1, group.fileName, group.fileSize, peers);
         }
     }
 
-    private void downloadFileInChunks(DiscoveredFileGroup chosenGroup) {
+    /**
+     * Baixa o arquivo do grupo para o diretorio compartilhado, na thread atual. Devolve se o
+     * download terminou. {@code onStart} recebe o {@link FileDownload} para acompanhar o progresso.
+     */
+    boolean downloadFile(DiscoveredFileGroup chosenGroup, Consumer<FileDownload> onStart) {
+        if (!isValidRemoteName(chosenGroup.fileName)) {
+            System.err.println("Nome de arquivo remoto invalido, download recusado: " + chosenGroup.fileName);
+            metrics.increment("remote_rejected_name_total");
+            return false;
+        }
         long fileSize = chosenGroup.fileSize;
         if (fileSize == 0) {
             try {
                 Files.write(Paths.get(sharedDir.getAbsolutePath(), chosenGroup.fileName), new byte[0], StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                sharedIndex.invalidate();
                 System.out.printf("Download do arquivo (vazio) %s finalizado.%n", chosenGroup.fileName);
+                return true;
             } catch (IOException e) {
                 System.err.println("Erro ao salvar arquivo vazio " + chosenGroup.fileName + ": " + e.getMessage());
+                return false;
             }
-            return;
         }
 
-        int numChunks = (int) Math.ceil((double) fileSize / this.chunkSize);
-        Map<Integer, byte[]> receivedChunks = new ConcurrentHashMap<>();
-        ExecutorService executor = Executors.newFixedThreadPool(Math.min(chosenGroup.peerLocations.size(), 10));
-        long startTime = System.nanoTime();
+        ChunkStore store = chunkStore;
+        File existing = new File(sharedDir, chosenGroup.fileName);
+        // Com o armazenamento por conteudo, os blocos da versao antiga ja sao reaproveitados
+        // pelo manifesto, sem precisar do DELTA.
+        if (store == null && existing.isFile() && existing.length() > 0) {
+            if (new DeltaSync(this, chosenGroup, existing).run()) {
+                sharedIndex.invalidate();
+                chunkCache.invalidate(chunkCacheFile(chosenGroup.fileName));
+                return true;
+            }
+            System.out.println("Sincronizacao por delta indisponivel para " + chosenGroup.fileName + "; baixando o arquivo inteiro.");
+        }
 
-        for (int i = 0; i < numChunks; i++) {
-            final int chunkIndex = i;
-            FileLocation location = chosenGroup.peerLocations.get(i % chosenGroup.peerLocations.size()); // Round-robin
-
-            executor.submit(() -> {
-                int localClock = incrementClockForSend();
-                String dlMessage = String.format("%s %d DL %s %d %d", getAddress(), localClock, chosenGroup.fileName, this.chunkSize, chunkIndex);
-                String fileResponse = sendAndReceive(location.peerHost, location.peerPort, dlMessage);
-
-                if (fileResponse != null) {
-                    String[] parts = fileResponse.split(" ", 7);
-                    if (parts.length == 7 && parts[2].equals("FILE") && parts[3].equals(chosenGroup.fileName)) {
-                        try {
-                            int responseChunkIndex = Integer.parseInt(parts[5]);
-                            if (responseChunkIndex == chunkIndex) {
-                                receivedChunks.put(chunkIndex, Base64.getDecoder().decode(parts[6]));
-                            }
-                        } catch (Exception e) {
-                            System.err.println("Erro ao processar chunk " + chunkIndex + ": " + e.getMessage());
-                        }
-                    }
-                } else {
-                    System.err.println("Falha ao baixar chunk " + chunkIndex + " de " + location.peerHost + ":" + location.peerPort);
-                }
-            });
+        int downloadChunkSize = store != null ? store.getBlockSize() : this.chunkSize;
+        PartialFile target;
+        try {
+            target = swarm.startDownload(chosenGroup.fileName, fileSize, downloadChunkSize);
+        } catch (IOException e) {
+            System.err.println("Erro ao preparar arquivo parcial " + chosenGroup.fileName + ": " + e.getMessage());
+            return false;
+        }
+        byte[] manifest = store == null ? null : fetchManifest(chosenGroup, downloadChunkSize);
+        if (manifest != null) {
+            reuseStoredBlocks(store, target, manifest);
         }
+        publishToDht(chosenGroup.fileName, fileSize);
 
-        executor.shutdown();
+        FileDownload download = new FileDownload(this, chosenGroup, target);
+        download.setExpectedHashes(manifest);
+        onStart.accept(download);
+        long startTime = System.nanoTime();
+        boolean success;
         try {
-            executor.awaitTermination(5, TimeUnit.MINUTES);
+            success = download.run();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             System.err.println("Download interrompido.");
-            return;
+            success = false;
         }
-
         long endTime = System.nanoTime();
         double durationSeconds = (endTime - startTime) / 1_000_000_000.0;
-        
-        if (receivedChunks.size() == numChunks) {
-            Path finalPath = Paths.get(sharedDir.getAbsolutePath(), chosenGroup.fileName);
-            try (FileOutputStream fos = new FileOutputStream(finalPath.toFile())) {
-                for (int i = 0; i < numChunks; i++) {
-                    fos.write(receivedChunks.get(i));
+
+        try {
+            swarm.finishDownload(target, success);
+        } catch (IOException e) {
+            System.err.println("Erro ao montar e salvar o arquivo " + chosenGroup.fileName + ": " + e.getMessage());
+            return false;
+        }
+
+        if (success) {
+            if (store != null) {
+                store.ingest(new File(sharedDir, chosenGroup.fileName));
+            }
+            sharedIndex.invalidate();
+            chunkCache.invalidate(chunkCacheFile(chosenGroup.fileName));
+            System.out.printf("Download do arquivo %s finalizado em %.4f segundos.%n", chosenGroup.fileName, durationSeconds);
+            StatKey key = new StatKey(downloadChunkSize, download.getSourceCount(), fileSize);
+            statistics.computeIfAbsent(key, k -> new StatData()).addTiming(durationSeconds);
+            metrics.observe(Metrics.labeled("download_duration_seconds", "chunk_size", String.valueOf(downloadChunkSize),
+                    "peers", String.valueOf(download.getSourceCount()), "file_size", String.valueOf(fileSize)), DOWNLOAD_SECONDS_BUCKETS, durationSeconds);
+        } else {
+            System.err.println("Download falhou. Nem todos os chunks foram recebidos. Esperado: " + target.getNumChunks() + ", Recebido: " + download.getReceivedChunks());
+        }
+        return success;
+    }
+
+    /**
+     * Pede {@code GET_MANIFEST <nome> <tam_bloco>} as fontes completas ate uma responder
+     * {@code MANIFEST <nome> <tamanho> <tam_bloco> <hashes>} com o tamanho esperado. Devolve os
+     * SHA-256 concatenados dos blocos, ou null se nenhuma fonte souber responder.
+     */
+    private byte[] fetchManifest(DiscoveredFileGroup group, int blockSize) {
+        long numBlocks = (group.fileSize + blockSize - 1) / blockSize;
+        for (FileLocation location : group.peerLocations) {
+            if (location.partial) {
+                continue;
+            }
+            try (MessageBuffer response = exchange(location.peerHost, location.peerPort,
+                    String.format("GET_MANIFEST %s %d", group.fileName, blockSize), "MANIFEST", null)) {
+                if (response == null) {
+                    continue;
+                }
+                MessageTokenizer tokens = new MessageTokenizer(response);
+                tokens.readHeader();
+                if (!group.fileName.equals(tokens.nextText()) || tokens.nextLong() != group.fileSize
+                        || tokens.nextInt() != blockSize || !tokens.next()) {
+                    continue;
                 }
-                System.out.printf("Download do arquivo %s finalizado em %.4f segundos.%n", chosenGroup.fileName, durationSeconds);
-                StatKey key = new StatKey(this.chunkSize, chosenGroup.peerLocations.size(), fileSize);
-                statistics.computeIfAbsent(key, k -> new StatData()).addTiming(durationSeconds);
+                byte[] line = tokens.getBuffer();
+                int start = tokens.tokenStart();
+                int length = tokens.tokenEnd() - start;
+                byte[] hashes = new byte[Math.max(0, Base64Codec.decodedLength(line, start, length))];
+                if (hashes.length == numBlocks * ChunkStore.HASH_BYTES && Base64Codec.decode(line, start, length, hashes, 0) == hashes.length) {
+                    return hashes;
+                }
+            } catch (NumberFormatException e) {
+                // Resposta de erro (ERROR_NOT_FOUND) ou invalida; tenta a proxima fonte.
+            }
+        }
+        System.out.println("Nenhuma fonte enviou o manifesto de " + group.fileName + "; baixando sem reaproveitar blocos.");
+        return null;
+    }
+
+    /** Grava em {@code target} os blocos do manifesto que ja estao guardados aqui. */
+    private void reuseStoredBlocks(ChunkStore store, PartialFile target, byte[] manifest) {
+        long reused = 0;
+        long blocks = 0;
+        byte[] block = new byte[target.getChunkSize()];
+        for (long i = 0; i < target.getNumChunks(); i++) {
+            if (target.hasChunk(i) || !store.hasBlock(manifest, i)) {
+                continue;
+            }
+            try {
+                int length = store.readBlock(manifest, i, block);
+                target.writeChunk(i, block, length);
+                reused += length;
+                blocks++;
             } catch (IOException e) {
-                System.err.println("Erro ao montar e salvar o arquivo " + chosenGroup.fileName + ": " + e.getMessage());
+                System.err.println("Erro ao reaproveitar bloco " + i + " de " + target.getFileName() + ": " + e.getMessage());
             }
-        } else {
-            System.err.println("Download falhou. Nem todos os chunks foram recebidos. Esperado: " + numChunks + ", Recebido: " + receivedChunks.size());
+        }
+        if (blocks > 0) {
+            metrics.add("cas_blocks_reused_total", blocks);
+            metrics.add("cas_download_reused_bytes_total", reused);
+            System.out.printf("%d blocos de %s (%d bytes) ja estavam guardados; baixando so o resto.%n", blocks, target.getFileName(), reused);
+        }
+    }
+
+    private void publishToDht(String fileName, long fileSize) {
+        Dht current = dht;
+        if (current != null) {
+            new Thread(() -> current.publishFile(fileName, fileSize), "dht-publish").start();
         }
     }
 
@@ -614,20 +1336,150 @@ public class Node {
         return host + ":" + port;
     }
 
+    public SharedIndex getSharedIndex() {
+        return sharedIndex;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public ChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
+    /** Nome de arquivo das chaves do {@link ChunkCache}, igual no DL e nas invalidacoes. */
+    String chunkCacheFile(String fileName) {
+        return Paths.get(sharedDir.getAbsolutePath(), fileName).toString();
+    }
+
+    public void setChunkCacheSize(long bytes) {
+        long capacity = ChunkCache.roundCapacity(bytes);
+        if (capacity != bytes && bytes > 0) {
+            System.out.println("Aviso: cache de chunks menor que uma pagina de " + ChunkCache.PAGE_SIZE + " bytes, usando " + capacity + " bytes.");
+            bytes = capacity;
+        }
+        this.chunkCache = new ChunkCache(bytes, metrics);
+        System.out.println("Cache de chunks: " + (bytes > 0 ? bytes + " bytes" : "desabilitado"));
+    }
+
+    /** Codecs anunciados nos DL, separados por virgula; vazio pede os chunks crus. */
+    public String getAcceptedCodecs() {
+        return acceptedCodecs;
+    }
+
+    public void setAcceptedCodecs(String codecs) {
+        this.acceptedCodecs = ChunkCodec.parseAccepted(codecs);
+        System.out.println("Compressao de chunks aceita: " + (acceptedCodecs.isEmpty() ? "nenhuma" : acceptedCodecs));
+    }
+
+    public BandwidthLimiter getUploadLimiter() {
+        return uploadLimiter;
+    }
+
+    public BandwidthLimiter getDownloadLimiter() {
+        return downloadLimiter;
+    }
+
+    DownloadManager getDownloadManager() {
+        return downloadManager;
+    }
+
+    /**
+     * Recria o gerenciador de downloads com novos limites. Deve ser chamado antes do primeiro
+     * download, como {@link #setChunkCacheSize}.
+     */
+    public void configureDownloads(int maxFiles, int maxInFlight, int perPeerInFlight) {
+        if (maxFiles <= 0 || maxInFlight <= 0 || perPeerInFlight <= 0) {
+            System.out.println("Configuracao de downloads invalida.");
+            return;
+        }
+        DownloadManager previous = downloadManager;
+        downloadManager = new DownloadManager(this, maxFiles, maxInFlight, perPeerInFlight);
+        previous.shutdown();
+        System.out.printf("Downloads: %d arquivos simultaneos, %d requisicoes em voo (%d por peer)%n", maxFiles, maxInFlight, perPeerInFlight);
+    }
+
+    public void displayDownloads() {
+        downloadManager.printStatus();
+    }
+
+    public PeerProfiles getPeerProfiles() {
+        return peerProfiles;
+    }
+
+    public LatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    public SwarmRegistry getSwarm() {
+        return swarm;
+    }
+
+    public File getSharedDir() {
+        return sharedDir;
+    }
+
+    /**
+     * Arquivo {@code fileName} dentro do diretorio compartilhado, ou null se o nome nao for um
+     * nome simples (com separador ou {@code ..}) ou apontar para fora do diretorio. Nomes que
+     * chegam pela rede passam por aqui antes de qualquer acesso ao disco.
+     */
+    File resolveShared(String fileName) {
+        if (fileName == null || fileName.isEmpty() || fileName.indexOf('/') >= 0 || fileName.indexOf('\\') >= 0
+                || fileName.contains("..") || fileName.equals(".")) {
+            return null;
+        }
+        Path root = sharedDir.toPath().toAbsolutePath().normalize();
+        Path path;
+        try {
+            path = root.resolve(fileName).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (!path.startsWith(root) || !root.equals(path.getParent()) || !path.getFileName().toString().equals(fileName)) {
+            return null;
+        }
+        return path.toFile();
+    }
+
+    /**
+     * Nome recebido de outro peer (LS_LIST, SEARCH_HIT, HOT) que pode virar arquivo local: so
+     * nomes simples dentro do diretorio compartilhado e sem ponto inicial (como {@code .estado}).
+     */
+    boolean isValidRemoteName(String fileName) {
+        return fileName != null && !fileName.startsWith(".") && resolveShared(fileName) != null;
+    }
+
     public boolean isRunning() {
         return running;
     }
 
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
     public void setChunkSize(int newSize) {
-        if (newSize > 0) {
+        if (newSize > MAX_CHUNK_SIZE) {
+            System.out.println("Tamanho de chunk invalido. Maximo: " + MAX_CHUNK_SIZE + ".");
+        } else if (newSize > 0) {
             this.chunkSize = newSize;
             System.out.println("Tamanho de chunk alterado: " + this.chunkSize);
+            if (newSize > ChunkCache.MAX_CACHED_CHUNK_BYTES && chunkCache.isEnabled()) {
+                System.out.println("Aviso: chunks acima de " + ChunkCache.MAX_CACHED_CHUNK_BYTES + " bytes nao entram no cache de chunks (ver chunk_cache_skipped_total).");
+            }
+            if (chunkStore != null) {
+                System.out.println("Downloads continuam em blocos de " + chunkStore.getBlockSize() + " bytes (--cas).");
+            }
         } else {
             System.out.println("Tamanho de chunk invalido. Deve ser maior que 0.");
         }
     }
 
     public void displayStatistics() {
+        System.out.println("\n--- Metricas do No ---");
+        metrics.print();
+
         System.out.println("\n--- Estatisticas de Download ---");
         if (statistics.isEmpty()) {
             System.out.println("(Nenhuma estatistica coletada ainda)");
@@ -651,30 +1503,6 @@ public class Node {
                 });
     }
 
-    private static class FileLocation {
-        String peerHost;
-        int peerPort;
-        FileLocation(String peerHost, int peerPort) {
-            this.peerHost = peerHost;
-            this.peerPort = peerPort;
-        }
-    }
-
-    private static class DiscoveredFileGroup {
-        String fileName;
-        long fileSize;
-        List<FileLocation> peerLocations = new ArrayList<>();
-
-        DiscoveredFileGroup(String fileName, long fileSize) {
-            this.fileName = fileName;
-            this.fileSize = fileSize;
-        }
-
-        void addPeerLocation(String host, int port) {
-            this.peerLocations.add(new FileLocation(host, port));
-        }
-    }
-
     private static class StatKey {
         final int chunkSize;
         final int numPeers;
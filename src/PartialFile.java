@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Arquivo em download, gravado direto na posicao de cada chunk. O arquivo e pre-alocado de
+ * forma esparsa no tamanho final, entao nem o heap nem o disco precisam do arquivo inteiro
+ * antes de os chunks chegarem; indices de chunk sao {@code long}.
+ */
+public class PartialFile {
+    private final String fileName;
+    private final long fileSize;
+    private final int chunkSize;
+    private final long numChunks;
+    private final Path path;
+    private final FileChannel channel;
+    private final ChunkBitmap have;
+
+    public PartialFile(Path path, String fileName, long fileSize, int chunkSize) throws IOException {
+        this.path = path;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.numChunks = (fileSize + chunkSize - 1) / chunkSize;
+        this.have = new ChunkBitmap(numChunks);
+        Files.createDirectories(path.getParent());
+        long usable = Files.getFileStore(path.getParent()).getUsableSpace();
+        if (fileSize > usable) {
+            throw new IOException("Espaco insuficiente para " + fileName + ": " + fileSize + " bytes, " + usable + " disponiveis");
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SPARSE);
+        preallocate();
+    }
+
+    /**
+     * Estende o arquivo ate o tamanho final gravando so o ultimo byte; em sistemas de arquivos
+     * com suporte a arquivos esparsos os blocos intermediarios so sao alocados ao serem escritos.
+     */
+    private void preallocate() throws IOException {
+        if (fileSize == 0) {
+            return;
+        }
+        ByteBuffer last = ByteBuffer.allocate(1);
+        while (last.hasRemaining()) {
+            channel.write(last, fileSize - 1);
+        }
+    }
+
+    public String getFileName() { return fileName; }
+    public long getFileSize() { return fileSize; }
+    public int getChunkSize() { return chunkSize; }
+    public long getNumChunks() { return numChunks; }
+
+    public void writeChunk(long index, byte[] data) throws IOException {
+        writeChunk(index, data, data.length);
+    }
+
+    public void writeChunk(long index, byte[] data, int length) throws IOException {
+        if (index < 0 || index >= numChunks) {
+            throw new IOException("Chunk " + index + " fora do arquivo " + fileName);
+        }
+        long offset = index * chunkSize;
+        long expected = Math.min(chunkSize, fileSize - offset);
+        if (length != expected) {
+            throw new IOException("Tamanho inesperado para o chunk " + index + ": " + length + " (esperado " + expected + ")");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        synchronized (have) {
+            have.set(index);
+        }
+    }
+
+    public boolean hasChunk(long index) {
+        synchronized (have) {
+            return have.get(index);
+        }
+    }
+
+    public long getChunkCount() {
+        synchronized (have) {
+            return have.cardinality();
+        }
+    }
+
+    public boolean isComplete() {
+        return getChunkCount() == numChunks;
+    }
+
+    public boolean hasRange(long offset, long length) {
+        if (offset < 0 || length <= 0 || offset + length > fileSize) {
+            return false;
+        }
+        long first = offset / chunkSize;
+        long last = (offset + length - 1) / chunkSize;
+        synchronized (have) {
+            return have.nextClearBit(first) > last;
+        }
+    }
+
+    public void readRange(long offset, byte[] dst) throws IOException {
+        readRange(offset, dst, dst.length);
+    }
+
+    public void readRange(long offset, byte[] dst, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(dst, 0, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Fim inesperado do arquivo parcial " + fileName);
+            }
+        }
+    }
+
+    /**
+     * Disponibilidade na granularidade de chunk de quem pergunta, que pode diferir da nossa.
+     */
+    ChunkBitmap availability(int requestChunkSize) {
+        if (requestChunkSize == chunkSize) {
+            synchronized (have) {
+                return ChunkBitmap.valueOf(have.toByteArray(), numChunks);
+            }
+        }
+        long requestChunks = (fileSize + requestChunkSize - 1) / requestChunkSize;
+        ChunkBitmap result = new ChunkBitmap(requestChunks);
+        for (long i = 0; i < requestChunks; i++) {
+            long offset = i * requestChunkSize;
+            if (hasRange(offset, Math.min(requestChunkSize, fileSize - offset))) {
+                result.set(i);
+            }
+        }
+        return result;
+    }
+
+    public void moveTo(Path finalPath) throws IOException {
+        channel.force(false);
+        channel.close();
+        Files.move(path, finalPath, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public void discard() {
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("Erro ao descartar arquivo parcial " + fileName + ": " + e.getMessage());
+        }
+    }
+}
@@ -5,6 +5,7 @@ public class Peer {
     private int port;
     private PeerStatus status;
     private int peerClock;
+    private volatile long lastSeen;
 
     public Peer(String host, int port, PeerStatus status, int peerClock) {
         this.host = host;
@@ -17,13 +18,29 @@ public class Peer {
     public int getPort() { return port; }
     public PeerStatus getStatus() { return status; }
     public int getPeerClock() { return peerClock; }
+    /** Ultima vez (epoch ms) que o peer respondeu ou mandou mensagem direta; 0 se nunca. */
+    public long getLastSeen() { return lastSeen; }
     
     public String getAddress() {
         return host + ":" + port;
     }
 
-    public void setStatus(PeerStatus status) { this.status = status; }
+    public void setStatus(PeerStatus status) {
+        PeerStatus previous = this.status;
+        this.status = status;
+        if (previous != status) {
+            TraceEvents.PeerStatusChanged event = new TraceEvents.PeerStatusChanged();
+            if (event.shouldCommit()) {
+                event.peer = getAddress();
+                event.previous = String.valueOf(previous);
+                event.status = String.valueOf(status);
+                event.peerClock = peerClock;
+                event.commit();
+            }
+        }
+    }
     public void setPeerClock(int peerClock) { this.peerClock = peerClock; }
+    public void setLastSeen(long lastSeen) { this.lastSeen = lastSeen; }
 
     @Override
     public String toString() {
@@ -0,0 +1,466 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * API assincrona para conversar com outros peers em nome de um {@link Node}. Cada chamada
+ * devolve um {@link CompletableFuture} com a resposta ja interpretada; cancelar o future (ou
+ * estourar o tempo limite, inclusive um {@code orTimeout} aplicado por quem chama) fecha o
+ * socket da requisicao em andamento. Falhas chegam como {@link PeerException}.
+ */
+public class PeerClient implements AutoCloseable {
+    private static final long DEFAULT_TIMEOUT_MS = 10_000;
+
+    private final Node node;
+    private final ExecutorService executor;
+    private volatile long timeoutMs = DEFAULT_TIMEOUT_MS;
+
+    public PeerClient(Node node) {
+        this.node = node;
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "peer-client-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Tempo limite aplicado a toda chamada (0 desabilita). Quem chama ainda pode encurtar um
+     * caso especifico com {@code orTimeout}.
+     */
+    public void setTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Envia HELLO. HELLO nao tem resposta no protocolo, entao o future completa quando a
+     * mensagem foi entregue, com o status do peer ja atualizado na tabela.
+     */
+    public CompletableFuture<Void> hello(String host, int port) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        RequestHandle handle = new RequestHandle();
+        submit(future, handle, () -> {
+            if (!node.sendHello(host, port, handle)) {
+                throw new PeerException(PeerException.Reason.UNREACHABLE, host, port, "HELLO nao entregue");
+            }
+            return null;
+        });
+        return future;
+    }
+
+    public CompletableFuture<List<PeerEntry>> getPeers(String host, int port) {
+        return call(host, port, "GET_PEERS", MessageType.PEER_LIST, tokens -> {
+            int count = tokens.nextInt();
+            List<PeerEntry> peers = new ArrayList<>(Math.max(0, Math.min(count, 1024)));
+            while (tokens.next()) {
+                if (tokens.split((byte) ':') != 4) {
+                    continue;
+                }
+                PeerStatus status = tokens.partEnum(2, PeerStatus.values());
+                if (status != null) {
+                    peers.add(new PeerEntry(tokens.partText(0), tokens.partInt(1), status, tokens.partInt(3)));
+                }
+            }
+            return peers;
+        });
+    }
+
+    public CompletableFuture<List<FileEntry>> ls(String host, int port) {
+        return call(host, port, "LS", MessageType.LS_LIST, tokens -> {
+            int count = tokens.nextInt();
+            List<FileEntry> files = new ArrayList<>(Math.max(0, Math.min(count, 1024)));
+            while (tokens.next()) {
+                FileEntry entry = parseFileEntry(tokens, host, port);
+                if (entry != null) {
+                    files.add(entry);
+                }
+            }
+            return files;
+        });
+    }
+
+    /**
+     * SEARCH com resposta em lotes: cada arquivo de um SEARCH_HIT vai para {@code onHit} assim
+     * que o lote chega, e o future completa com o total de arquivos quando chega o SEARCH_END.
+     * Um BUSY vira {@link PeerException} com {@link PeerException#getRetryAfterMs()}.
+     */
+    public CompletableFuture<Integer> search(String host, int port, SearchQuery query, Consumer<FileEntry> onHit) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        RequestHandle handle = new RequestHandle();
+        submit(future, handle, () -> {
+            int[] total = {0};
+            long[] busyRetryAfter = {0};
+            boolean[] ended = {false};
+            boolean completed = node.stream(host, port, "SEARCH " + query.toMessageArgs(), handle, tokens -> {
+                MessageType type = tokens.getType();
+                if (type == MessageType.SEARCH_HIT) {
+                    tokens.next();
+                    while (tokens.next()) {
+                        FileEntry entry = parseFileEntry(tokens, host, port);
+                        if (entry != null) {
+                            total[0]++;
+                            onHit.accept(entry);
+                        }
+                    }
+                    return true;
+                }
+                if (type == MessageType.BUSY) {
+                    try {
+                        busyRetryAfter[0] = Math.max(1, tokens.nextLong());
+                    } catch (NumberFormatException e) {
+                        busyRetryAfter[0] = -1;
+                    }
+                } else if (type == MessageType.SEARCH_END) {
+                    ended[0] = true;
+                } else {
+                    System.err.println("Resposta inesperada para SEARCH de " + host + ":" + port + ": " + tokens.line());
+                }
+                return false;
+            });
+            if (busyRetryAfter[0] > 0) {
+                throw PeerException.busy(host, port, busyRetryAfter[0]);
+            }
+            if (busyRetryAfter[0] < 0) {
+                throw new PeerException(PeerException.Reason.PROTOCOL, host, port, "BUSY sem tempo de espera valido");
+            }
+            if (!completed || !ended[0]) {
+                throw new PeerException(PeerException.Reason.FAILED, host, port, "SEARCH sem SEARCH_END");
+            }
+            return total[0];
+        });
+        return future;
+    }
+
+    /**
+     * Pede um chunk com DL aceitando os codecs configurados no no
+     * ({@link Node#getAcceptedCodecs()}).
+     */
+    public CompletableFuture<Chunk> downloadChunk(String host, int port, String fileName, int chunkSize, long chunkIndex) {
+        return downloadChunk(host, port, fileName, chunkSize, chunkIndex, node.getAcceptedCodecs());
+    }
+
+    /**
+     * Pede um chunk com DL, respeitando o limite de banda de download do no. Sem codecs
+     * ({@code codecs} vazio) o limite e cobrado antes, pelo tamanho cheio do chunk; com
+     * codecs, e cobrado depois, pelo que de fato chegou, ja que a fonte pode comprimir. O
+     * {@link Chunk} devolvido ja vem descomprimido, usa um buffer do pool e deve ser fechado
+     * depois de consumido.
+     */
+    public CompletableFuture<Chunk> downloadChunk(String host, int port, String fileName, int chunkSize, long chunkIndex, String codecs) {
+        String address = host + ":" + port;
+        CompletableFuture<Chunk> future = new CompletableFuture<>();
+        RequestHandle handle = new RequestHandle();
+        submit(future, handle, () -> {
+            boolean negotiate = codecs != null && !codecs.isEmpty();
+            if (!negotiate) {
+                node.getDownloadLimiter().acquire(address, Base64Codec.encodedLength(chunkSize));
+            }
+            long start = System.nanoTime();
+            String request = negotiate
+                    ? String.format("DL %s %d %d %s", fileName, chunkSize, chunkIndex, codecs)
+                    : String.format("DL %s %d %d", fileName, chunkSize, chunkIndex);
+            try (MessageBuffer response = exchange(host, port, request, MessageType.FILE, handle)) {
+                MessageTokenizer tokens = new MessageTokenizer(response);
+                tokens.readHeader();
+                Chunk chunk = decodeChunk(tokens, host, port, fileName, chunkSize, chunkIndex);
+                long elapsed = System.nanoTime() - start;
+                node.getLatencyTracker().record(address, elapsed / 1_000_000);
+                node.getPeerProfiles().recordTransfer(address, response.length(), elapsed);
+                if (negotiate) {
+                    try {
+                        node.getDownloadLimiter().acquire(address, response.length());
+                    } catch (InterruptedException e) {
+                        chunk.close();
+                        throw e;
+                    }
+                }
+                return chunk;
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private <T> CompletableFuture<T> call(String host, int port, String typeAndArgs, MessageType expected, ResponseParser<T> parser) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        RequestHandle handle = new RequestHandle();
+        submit(future, handle, () -> {
+            try (MessageBuffer response = exchange(host, port, typeAndArgs, expected, handle)) {
+                MessageTokenizer tokens = new MessageTokenizer(response);
+                tokens.readHeader();
+                try {
+                    return parser.parse(tokens);
+                } catch (RuntimeException e) {
+                    throw new PeerException(PeerException.Reason.PROTOCOL, host, port, "Resposta " + expected + " invalida: " + e.getMessage());
+                }
+            }
+        });
+        return future;
+    }
+
+    private MessageBuffer exchange(String host, int port, String typeAndArgs, MessageType expected, RequestHandle handle) throws PeerException {
+        MessageBuffer response = node.exchange(host, port, typeAndArgs, expected.name(), handle);
+        if (response != null) {
+            return response;
+        }
+        if (handle.getBusyRetryAfterMs() > 0) {
+            throw PeerException.busy(host, port, handle.getBusyRetryAfterMs());
+        }
+        throw new PeerException(PeerException.Reason.FAILED, host, port, "Sem resposta " + expected + " valida");
+    }
+
+    private <T> void submit(CompletableFuture<T> future, RequestHandle handle, Callable<T> request) {
+        future.whenComplete((result, error) -> {
+            if (error != null) {
+                handle.cancel();
+            }
+        });
+        if (timeoutMs > 0) {
+            future.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        try {
+            executor.execute(() -> {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    T result = request.call();
+                    if (!future.complete(result) && result instanceof Chunk) {
+                        ((Chunk) result).close();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    future.cancel(false);
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private Chunk decodeChunk(MessageTokenizer tokens, String host, int port, String fileName, int chunkSize, long chunkIndex) throws PeerException {
+        long size;
+        long index;
+        try {
+            if (!tokens.next() || !tokens.tokenEquals(fileName)) {
+                throw new PeerException(PeerException.Reason.PROTOCOL, host, port, "FILE de outro arquivo");
+            }
+            size = tokens.nextLong();
+            index = tokens.nextLong();
+        } catch (NumberFormatException e) {
+            throw new PeerException(PeerException.Reason.PROTOCOL, host, port, "FILE invalido: " + e.getMessage());
+        }
+        if (!tokens.next()) {
+            throw new PeerException(PeerException.Reason.PROTOCOL, host, port, "FILE sem conteudo");
+        }
+        if (tokens.getBuffer()[tokens.tokenStart()] == 'E' && tokens.tokenText().startsWith("ERROR_")) {
+            throw PeerException.rejected(host, port, tokens.tokenText());
+        }
+        if (index != chunkIndex) {
+            throw new PeerException(PeerException.Reason.PROTOCOL, host, port, "FILE do chunk " + index + ", esperado " + chunkIndex);
+        }
+        byte[] line = tokens.getBuffer();
+        int payloadStart = tokens.tokenStart();
+        int payloadLength = tokens.tokenEnd() - payloadStart;
+        ChunkCodec codec = null;
+        if (tokens.next()) {
+            codec = ChunkCodec.forName(tokens.tokenText());
+            if (codec == null || size < 0 || size > chunkSize) {
+                throw new PeerException(PeerException.Reason.PROTOCOL, host, port, "Chunk " + chunkIndex + " com codec ou tamanho invalido: " + tokens.tokenText() + " " + size);
+            }
+        }
+        int decodedLength = Base64Codec.decodedLength(line, payloadStart, payloadLength);
+        MessageBuffer data = decodedLength < 0 ? null : new MessageBuffer(node.getBufferPool(), decodedLength);
+        int written = data == null ? -1 : Base64Codec.decode(line, payloadStart, payloadLength, data.array(), 0);
+        if (written < 0) {
+            if (data != null) data.close();
+            throw new PeerException(PeerException.Reason.PROTOCOL, host, port, "Base64 invalido no chunk " + chunkIndex);
+        }
+        data.setLength(written);
+        if (codec == null) {
+            return new Chunk(fileName, chunkIndex, data);
+        }
+        try (MessageBuffer packed = data) {
+            MessageBuffer plain = new MessageBuffer(node.getBufferPool(), (int) size);
+            try {
+                codec.decompress(packed.array(), 0, written, plain.array(), (int) size);
+            } catch (IOException e) {
+                plain.close();
+                throw new PeerException(PeerException.Reason.PROTOCOL, host, port, "Chunk " + chunkIndex + ": " + e.getMessage());
+            }
+            plain.setLength((int) size);
+            return new Chunk(fileName, chunkIndex, plain);
+        }
+    }
+
+    /**
+     * Entrada {@code nome:tamanho[:P]} de LS_LIST/SEARCH_HIT no campo atual, ou null se mal
+     * formada ou com um nome que nao poderia virar arquivo no diretorio compartilhado.
+     */
+    FileEntry parseFileEntry(MessageTokenizer tokens, String host, int port) {
+        int parts = tokens.split((byte) ':');
+        boolean partial = parts == 3 && tokens.partEquals(2, "P");
+        if (parts != 2 && !partial) {
+            return null;
+        }
+        String name = tokens.partText(0);
+        if (!node.isValidRemoteName(name)) {
+            System.err.printf("Nome de arquivo remoto invalido de %s:%d ignorado: %s%n", host, port, name);
+            node.getMetrics().increment("remote_rejected_name_total");
+            return null;
+        }
+        try {
+            return new FileEntry(name, tokens.partLong(1), partial, host, port);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private interface ResponseParser<T> {
+        T parse(MessageTokenizer tokens);
+    }
+
+    public static class PeerEntry {
+        private final String host;
+        private final int port;
+        private final PeerStatus status;
+        private final int clock;
+
+        PeerEntry(String host, int port, PeerStatus status, int clock) {
+            this.host = host;
+            this.port = port;
+            this.status = status;
+            this.clock = clock;
+        }
+
+        public String getHost() { return host; }
+        public int getPort() { return port; }
+        public PeerStatus getStatus() { return status; }
+        public int getClock() { return clock; }
+
+        @Override
+        public String toString() {
+            return host + ":" + port + ":" + status + ":" + clock;
+        }
+    }
+
+    public static class FileEntry {
+        private final String name;
+        private final long size;
+        private final boolean partial;
+        private final String host;
+        private final int port;
+
+        FileEntry(String name, long size, boolean partial, String host, int port) {
+            this.name = name;
+            this.size = size;
+            this.partial = partial;
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getName() { return name; }
+        public long getSize() { return size; }
+        public boolean isPartial() { return partial; }
+        public String getHost() { return host; }
+        public int getPort() { return port; }
+
+        @Override
+        public String toString() {
+            return name + ":" + size + (partial ? ":P" : "") + "@" + host + ":" + port;
+        }
+    }
+
+    /**
+     * Conteudo de um chunk em um buffer do pool; {@link #close()} devolve o buffer.
+     */
+    public static class Chunk implements AutoCloseable {
+        private final String fileName;
+        private final long index;
+        private final MessageBuffer data;
+
+        Chunk(String fileName, long index, MessageBuffer data) {
+            this.fileName = fileName;
+            this.index = index;
+            this.data = data;
+        }
+
+        public String getFileName() { return fileName; }
+        public long getIndex() { return index; }
+        public int length() { return data.length(); }
+
+        /** Array interno; so os primeiros {@link #length()} bytes sao validos. */
+        public byte[] array() { return data.array(); }
+
+        public byte[] toByteArray() {
+            byte[] copy = new byte[data.length()];
+            System.arraycopy(data.array(), 0, copy, 0, copy.length);
+            return copy;
+        }
+
+        @Override
+        public void close() {
+            data.close();
+        }
+    }
+
+    public static class PeerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public enum Reason { UNREACHABLE, BUSY, REJECTED, PROTOCOL, FAILED }
+
+        private final Reason reason;
+        private final String peer;
+        private final long retryAfterMs;
+        private final String errorCode;
+
+        PeerException(Reason reason, String host, int port, String message) {
+            this(reason, host, port, message, 0, null);
+        }
+
+        private PeerException(Reason reason, String host, int port, String message, long retryAfterMs, String errorCode) {
+            super(host + ":" + port + ": " + message);
+            this.reason = reason;
+            this.peer = host + ":" + port;
+            this.retryAfterMs = retryAfterMs;
+            this.errorCode = errorCode;
+        }
+
+        static PeerException busy(String host, int port, long retryAfterMs) {
+            return new PeerException(Reason.BUSY, host, port, "ocupado, tentar em " + retryAfterMs + " ms", retryAfterMs, null);
+        }
+
+        static PeerException rejected(String host, int port, String errorCode) {
+            return new PeerException(Reason.REJECTED, host, port, errorCode, 0, errorCode);
+        }
+
+        public Reason getReason() { return reason; }
+        public String getPeer() { return peer; }
+        public long getRetryAfterMs() { return retryAfterMs; }
+
+        /** Codigo de erro do servidor (ex.: ERROR_CHUNK_NOT_AVAILABLE) quando {@link Reason#REJECTED}. */
+        public String getErrorCode() { return errorCode; }
+
+        /**
+         * Extrai a PeerException de uma falha de future (que costuma vir embrulhada em
+         * CompletionException), ou null se a falha for de outro tipo.
+         */
+        public static PeerException from(Throwable error) {
+            Throwable cause = error;
+            while (cause instanceof CompletionException || cause instanceof ExecutionException) {
+                cause = cause.getCause();
+            }
+            return cause instanceof PeerException ? (PeerException) cause : null;
+        }
+    }
+}
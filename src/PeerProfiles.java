@@ -0,0 +1,124 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Perfil de desempenho de cada peer: RTT suavizado (medido no handshake TCP de toda conexao
+ * que o no abre, entao nao precisa de mensagem propria) e vazao observada nos DL. As duas
+ * medias sao exponenciais (EWMA), como o SRTT do TCP, para acompanhar mudancas sem oscilar a
+ * cada amostra.
+ */
+public class PeerProfiles {
+    private static final double RTT_ALPHA = 0.125;
+    private static final double RATE_ALPHA = 0.25;
+    // Transferencias menores que isso medem mais o RTT que a banda.
+    private static final long MIN_RATE_SAMPLE_BYTES = 4 * 1024;
+
+    private final Map<String, Profile> profiles = new ConcurrentHashMap<>();
+
+    /** Amostra de RTT em nanossegundos (tempo de {@code connect}). */
+    public void recordRtt(String peerAddress, long nanos) {
+        profiles.computeIfAbsent(peerAddress, k -> new Profile()).addRtt(nanos / 1_000_000.0);
+    }
+
+    /**
+     * Amostra de vazao: {@code bytes} recebidos numa requisicao que levou {@code nanos} do
+     * envio ao fim da resposta. O RTT suavizado e descontado, para que a vazao estime so a
+     * banda.
+     */
+    public void recordTransfer(String peerAddress, long bytes, long nanos) {
+        if (bytes < MIN_RATE_SAMPLE_BYTES) {
+            return;
+        }
+        profiles.computeIfAbsent(peerAddress, k -> new Profile()).addTransfer(bytes, nanos / 1_000_000.0);
+    }
+
+    /**
+     * Tempo esperado, em ms, para buscar {@code bytes} do peer: RTT + bytes / vazao. Devolve
+     * -1 se o peer ainda nao tem RTT medido; sem vazao medida, conta so o RTT.
+     */
+    public double expectedMs(String peerAddress, long bytes) {
+        Profile profile = profiles.get(peerAddress);
+        return profile == null ? -1 : profile.expectedMs(bytes);
+    }
+
+    /** RTT suavizado em ms, ou -1 se nao medido. */
+    public double getRttMs(String peerAddress) {
+        Profile profile = profiles.get(peerAddress);
+        return profile == null ? -1 : profile.getRttMs();
+    }
+
+    /** Vazao suavizada em bytes/ms, ou -1 se nao medida. */
+    public double getBytesPerMs(String peerAddress) {
+        Profile profile = profiles.get(peerAddress);
+        return profile == null ? -1 : profile.getBytesPerMs();
+    }
+
+    /**
+     * Volta as medias de uma execucao anterior (snapshot da tabela de peers). Nao substitui um
+     * perfil que ja tenha amostras desta execucao; valores negativos significam "sem medida".
+     */
+    public void restore(String peerAddress, double rttMs, double bytesPerMs) {
+        if (rttMs < 0 && bytesPerMs < 0) {
+            return;
+        }
+        profiles.computeIfAbsent(peerAddress, k -> new Profile()).restore(rttMs, bytesPerMs);
+    }
+
+    /** Linhas {@code <peer> rtt=<ms> vazao=<KB/s> amostras=<rtt>/<vazao>}, para exibicao. */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        profiles.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(entry -> lines.add(entry.getKey() + " " + entry.getValue()));
+        return lines;
+    }
+
+    private static class Profile {
+        private double rttMs = -1;
+        private double bytesPerMs = -1;
+        private long rttSamples;
+        private long rateSamples;
+
+        synchronized void addRtt(double ms) {
+            rttMs = rttMs < 0 ? ms : rttMs + RTT_ALPHA * (ms - rttMs);
+            rttSamples++;
+        }
+
+        synchronized void addTransfer(long bytes, double ms) {
+            double transferMs = Math.max(1.0, ms - Math.max(0, rttMs));
+            double rate = bytes / transferMs;
+            bytesPerMs = bytesPerMs < 0 ? rate : bytesPerMs + RATE_ALPHA * (rate - bytesPerMs);
+            rateSamples++;
+        }
+
+        synchronized double getRttMs() {
+            return rttMs;
+        }
+
+        synchronized double getBytesPerMs() {
+            return bytesPerMs;
+        }
+
+        synchronized void restore(double savedRttMs, double savedBytesPerMs) {
+            if (rttSamples == 0) {
+                rttMs = savedRttMs;
+            }
+            if (rateSamples == 0) {
+                bytesPerMs = savedBytesPerMs;
+            }
+        }
+
+        synchronized double expectedMs(long bytes) {
+            if (rttMs < 0) {
+                return -1;
+            }
+            return bytesPerMs > 0 ? rttMs + bytes / bytesPerMs : rttMs;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("rtt=%.2fms vazao=%s amostras=%d/%d", rttMs,
+                    bytesPerMs < 0 ? "?" : String.format("%.1fKB/s", bytesPerMs * 1000 / 1024), rttSamples, rateSamples);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Guarda a tabela de peers em {@code <diretorio_compartilhado>/.estado/peers} para que o no
+ * volte a rede com os peers que ja conhecia. Uma linha por peer:
+ * {@code <host:porta> <status> <clock> <visto_em_ms> <rtt_ms> <bytes_por_ms>} (-1 quando o
+ * perfil nao tem a medida). A gravacao vai para um arquivo temporario e e renomeada, entao
+ * uma queda no meio nao corrompe a copia anterior.
+ */
+class PeerTableStore {
+    static final String STATE_DIR = ".estado";
+    private static final String FILE_NAME = "peers";
+    private static final String HEADER = "# eachare peers v1";
+    // Peers nao vistos ha mais tempo que isso sao esquecidos ao carregar.
+    private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(7);
+    private static final int MAX_PROBE_THREADS = 32;
+
+    private final Node node;
+    private final Path path;
+    private volatile ScheduledExecutorService periodic;
+
+    PeerTableStore(Node node, File sharedDir) {
+        this.node = node;
+        this.path = Paths.get(sharedDir.getAbsolutePath(), STATE_DIR, FILE_NAME);
+    }
+
+    /**
+     * Junta o snapshot a tabela. Peers ja conhecidos (do arquivo de vizinhos) ganham o clock
+     * e o visto-em salvos; todos entram OFFLINE ate serem sondados. Devolve quantos peers o
+     * snapshot trouxe.
+     */
+    int load() {
+        if (!Files.isRegularFile(path)) {
+            return 0;
+        }
+        int loaded = 0;
+        long now = System.currentTimeMillis();
+        try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                int colon = fields[0].lastIndexOf(':');
+                if (fields.length != 6 || colon <= 0) {
+                    System.err.println("Linha invalida no snapshot de peers: " + line);
+                    continue;
+                }
+                try {
+                    String host = fields[0].substring(0, colon);
+                    int port = Integer.parseInt(fields[0].substring(colon + 1));
+                    int clock = Integer.parseInt(fields[2]);
+                    long lastSeen = Long.parseLong(fields[3]);
+                    if (lastSeen > 0 && now - lastSeen > MAX_AGE_MS) {
+                        continue;
+                    }
+                    if (node.restorePeer(host, port, clock, lastSeen)) {
+                        node.getPeerProfiles().restore(fields[0], Double.parseDouble(fields[4]), Double.parseDouble(fields[5]));
+                        loaded++;
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("Linha invalida no snapshot de peers: " + line);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao ler snapshot de peers " + path + ": " + e.getMessage());
+        }
+        System.out.printf("Snapshot de peers carregado: %d peers de %s%n", loaded, path);
+        return loaded;
+    }
+
+    void startPeriodic(long intervalMs) {
+        if (periodic != null || intervalMs <= 0) {
+            return;
+        }
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "peer-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::save, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        periodic = scheduler;
+    }
+
+    void stopPeriodic() {
+        if (periodic != null) {
+            periodic.shutdownNow();
+        }
+    }
+
+    synchronized void save() {
+        List<Peer> peers = node.getKnownPeers();
+        Path temp = path.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                out.write(HEADER);
+                out.newLine();
+                for (Peer peer : peers) {
+                    PeerProfiles profiles = node.getPeerProfiles();
+                    out.write(String.format(java.util.Locale.ROOT, "%s %s %d %d %.3f %.3f", peer.getAddress(), peer.getStatus(), peer.getPeerClock(),
+                            peer.getLastSeen(), profiles.getRttMs(peer.getAddress()), profiles.getBytesPerMs(peer.getAddress())));
+                    out.newLine();
+                }
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao salvar snapshot de peers " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Manda HELLO a todos os peers ao mesmo tempo (os vistos mais recentemente primeiro) e
+     * espera ate {@code deadlineMs}; quem respondeu fica ONLINE, quem falhou OFFLINE e quem
+     * nao respondeu a tempo continua como estava. Devolve quantos ficaram ONLINE.
+     */
+    int probeAll(long deadlineMs) throws InterruptedException {
+        List<Peer> peers = new ArrayList<>(node.getKnownPeers());
+        if (peers.isEmpty()) {
+            return 0;
+        }
+        peers.sort(Comparator.comparingLong(Peer::getLastSeen).reversed());
+        ExecutorService probes = Executors.newFixedThreadPool(Math.min(MAX_PROBE_THREADS, peers.size()), r -> {
+            Thread t = new Thread(r, "bootstrap-probe");
+            t.setDaemon(true);
+            return t;
+        });
+        CountDownLatch done = new CountDownLatch(peers.size());
+        long start = System.nanoTime();
+        try {
+            for (Peer peer : peers) {
+                probes.execute(() -> {
+                    try {
+                        node.sendHello(peer.getHost(), peer.getPort());
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await(deadlineMs, TimeUnit.MILLISECONDS);
+        } finally {
+            probes.shutdownNow();
+        }
+        int online = 0;
+        for (Peer peer : node.getKnownPeers()) {
+            if (peer.getStatus() == PeerStatus.ONLINE) {
+                online++;
+            }
+        }
+        System.out.printf("Bootstrap: %d de %d peers ONLINE em %d ms.%n", online, peers.size(), (System.nanoTime() - start) / 1_000_000);
+        return online;
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Popularidade dos arquivos servidos por este no, medida pelos DL atendidos. A cada
+ * {@value #WINDOW_MS} ms a contagem da janela vira uma taxa em requisicoes por minuto,
+ * suavizada (EWMA) para que uma rajada isolada nao conte como demanda. Um arquivo completo
+ * cuja taxa passa de {@code hotThreshold} e anunciado como HOT aos peers
+ * ({@link Node#advertiseHot}), no maximo uma vez a cada {@value #READVERTISE_MS} ms.
+ */
+class PopularityTracker {
+    static final double DEFAULT_HOT_THRESHOLD = 60;
+    private static final long WINDOW_MS = 10_000;
+    private static final double RATE_ALPHA = 0.5;
+    private static final long READVERTISE_MS = 60_000;
+    // Arquivos com taxa abaixo disso e sem requisicoes novas saem da tabela.
+    private static final double FORGET_RATE = 0.1;
+
+    private final Node node;
+    private final Map<String, Stat> stats = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "popularity");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile double hotThreshold = DEFAULT_HOT_THRESHOLD;
+
+    PopularityTracker(Node node) {
+        this.node = node;
+        node.getMetrics().registerGauge("popularity_tracked_files", stats::size);
+    }
+
+    void start() {
+        scheduler.scheduleWithFixedDelay(this::tick, WINDOW_MS, WINDOW_MS, TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /** Requisicoes por minuto a partir das quais um arquivo e anunciado; 0 desliga o anuncio. */
+    void setHotThreshold(double requestsPerMinute) {
+        this.hotThreshold = requestsPerMinute;
+    }
+
+    /** Um DL atendido para {@code fileName}. */
+    void record(String fileName) {
+        stats.computeIfAbsent(fileName, k -> new Stat()).window.increment();
+    }
+
+    /** Taxa suavizada em requisicoes por minuto (0 se o arquivo nao e pedido). */
+    double getRate(String fileName) {
+        Stat stat = stats.get(fileName);
+        return stat == null ? 0 : stat.rate;
+    }
+
+    /** Linhas {@code <nome> <req/min> <total> [HOT]}, mais pedidos primeiro. */
+    List<String> describe() {
+        List<Map.Entry<String, Stat>> entries = new ArrayList<>(stats.entrySet());
+        entries.sort((a, b) -> Double.compare(b.getValue().rate, a.getValue().rate));
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Stat> entry : entries) {
+            Stat stat = entry.getValue();
+            lines.add(String.format(java.util.Locale.ROOT, "%s %.1f %d%s", entry.getKey(), stat.rate,
+                    stat.total + stat.window.sum(), stat.lastAdvertised > 0 && isHot(stat) ? " HOT" : ""));
+        }
+        return lines;
+    }
+
+    private boolean isHot(Stat stat) {
+        return hotThreshold > 0 && stat.rate >= hotThreshold;
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        double perMinute = 60_000.0 / WINDOW_MS;
+        for (Map.Entry<String, Stat> entry : stats.entrySet()) {
+            Stat stat = entry.getValue();
+            long count = stat.window.sumThenReset();
+            stat.total += count;
+            stat.rate += RATE_ALPHA * (count * perMinute - stat.rate);
+            if (count == 0 && stat.rate < FORGET_RATE) {
+                stats.remove(entry.getKey(), stat);
+                continue;
+            }
+            if (isHot(stat) && now - stat.lastAdvertised >= READVERTISE_MS) {
+                long size = node.localFileSize(entry.getKey());
+                // Parciais ainda nao podem ser replicados inteiros.
+                if (size >= 0 && node.getSwarm().getPartialFile(entry.getKey()) == null) {
+                    stat.lastAdvertised = now;
+                    node.advertiseHot(entry.getKey(), size, stat.rate);
+                }
+            }
+        }
+    }
+
+    private static class Stat {
+        final LongAdder window = new LongAdder();
+        // So a thread do tick escreve estes campos.
+        volatile long total;
+        volatile double rate;
+        volatile long lastAdvertised;
+    }
+}
@@ -0,0 +1,239 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replicas de arquivos populares de outros peers, guardadas no diretorio compartilhado (e
+ * servidas como qualquer arquivo) ate a cota {@code quota}. Quando um peer anuncia um arquivo
+ * HOT e este no tem disco e banda sobrando, o arquivo entra na fila de downloads com
+ * prioridade {@value #PREFETCH_PRIORITY}, abaixo de qualquer download pedido pelo usuario.
+ * Para abrir espaco sai a replica menos pedida (LFU, contando os DL atendidos desde que ela
+ * chegou). Arquivos que nao vieram por aqui nunca sao apagados.
+ *
+ * <p>A lista de replicas fica em {@code <diretorio_compartilhado>/.estado/replicas}, uma por
+ * linha: {@code <nome> <tamanho> <requisicoes>}.
+ */
+class ReplicaCache {
+    static final int PREFETCH_PRIORITY = -100;
+    private static final String FILE_NAME = "replicas";
+    // Nao replica se o disco ficaria com menos que isso livre.
+    private static final long MIN_FREE_BYTES = 256L * 1024 * 1024;
+    // Banda sobrando: download abaixo dessa fracao do limite e do orcamento de requisicoes.
+    private static final double MAX_BUSY_FRACTION = 0.5;
+
+    private final Node node;
+    private final long quota;
+    private final Path statePath;
+    private final Map<String, Replica> replicas = new ConcurrentHashMap<>();
+    private final Map<String, Long> pending = new ConcurrentHashMap<>();
+
+    ReplicaCache(Node node, long quota) {
+        this.node = node;
+        this.quota = quota;
+        this.statePath = Paths.get(node.getSharedDir().getAbsolutePath(), PeerTableStore.STATE_DIR, FILE_NAME);
+        node.getMetrics().registerGauge("replica_cache_quota_bytes", () -> quota);
+        node.getMetrics().registerGauge("replica_cache_used_bytes", this::usedBytes);
+        node.getMetrics().registerGauge("replica_cache_files", replicas::size);
+        load();
+    }
+
+    /**
+     * Anuncio HOT de {@code host:port}. Enfileira a replica se o arquivo ainda nao existe aqui,
+     * cabe na cota (apagando replicas menos pedidas) e ha disco e banda sobrando.
+     */
+    synchronized void onHot(String host, int port, String fileName, long fileSize, double requestsPerMinute) {
+        // O nome vem de um anuncio nao pedido: so nomes simples, que caem direto no diretorio
+        // compartilhado (nada de separadores, .. ou arquivos ocultos como .estado).
+        if (!node.isValidRemoteName(fileName)) {
+            System.err.printf("Anuncio HOT de %s:%d com nome de arquivo invalido ignorado: %s%n", host, port, fileName);
+            node.getMetrics().increment("replica_rejected_name_total");
+            return;
+        }
+        if (fileSize <= 0 || fileSize > quota || replicas.containsKey(fileName) || pending.containsKey(fileName)) {
+            return;
+        }
+        if (node.localFileSize(fileName) >= 0 || node.getSwarm().getPartialFile(fileName) != null) {
+            return;
+        }
+        if (!hasSpareBandwidth()) {
+            System.out.printf("Arquivo popular %s ignorado: download ocupado.%n", fileName);
+            node.getMetrics().increment("replica_skipped_busy_total");
+            return;
+        }
+        if (node.getSharedDir().getUsableSpace() - fileSize < MIN_FREE_BYTES) {
+            System.out.printf("Arquivo popular %s ignorado: pouco espaco em disco.%n", fileName);
+            node.getMetrics().increment("replica_skipped_disk_total");
+            return;
+        }
+        if (!makeRoom(fileSize, requestsPerMinute)) {
+            node.getMetrics().increment("replica_skipped_quota_total");
+            return;
+        }
+        DiscoveredFileGroup group = new DiscoveredFileGroup(fileName, fileSize);
+        group.addPeerLocation(host, port);
+        pending.put(fileName, fileSize);
+        DownloadManager.Job job = node.getDownloadManager().enqueue(group, PREFETCH_PRIORITY);
+        if (job.priority != PREFETCH_PRIORITY) {
+            // O usuario ja pediu esse arquivo; ele nao vira replica (e nunca sera apagado).
+            pending.remove(fileName);
+            return;
+        }
+        System.out.printf("Replicando arquivo popular %s (%d bytes, %.1f req/min em %s:%d).%n", fileName, fileSize, requestsPerMinute, host, port);
+        job.getCompletion().whenComplete((ok, error) -> finished(fileName, fileSize, Boolean.TRUE.equals(ok)));
+    }
+
+    /** Um DL atendido; so conta se o arquivo for uma replica. */
+    void recordHit(String fileName) {
+        Replica replica = replicas.get(fileName);
+        if (replica != null) {
+            replica.hits.increment();
+        }
+    }
+
+    /** Linhas {@code <nome> <tamanho> <requisicoes>} das replicas, mais pedidas primeiro. */
+    List<String> describe() {
+        List<Replica> sorted = new ArrayList<>(replicas.values());
+        sorted.sort(Comparator.comparingLong(this::frequency).reversed());
+        List<String> lines = new ArrayList<>();
+        for (Replica replica : sorted) {
+            lines.add(replica.name + " " + replica.size + " " + frequency(replica));
+        }
+        return lines;
+    }
+
+    private synchronized void finished(String fileName, long fileSize, boolean ok) {
+        pending.remove(fileName);
+        if (!ok) {
+            return;
+        }
+        replicas.put(fileName, new Replica(fileName, fileSize, 0));
+        node.getMetrics().increment("replicas_fetched_total");
+        save();
+    }
+
+    private boolean hasSpareBandwidth() {
+        ConnectionBudget budget = node.getDownloadManager().getBudget();
+        return budget.getInFlight() < budget.getGlobalLimit() * MAX_BUSY_FRACTION
+                && node.getDownloadLimiter().utilization() < MAX_BUSY_FRACTION;
+    }
+
+    /**
+     * Apaga replicas, da menos pedida para a mais pedida, ate {@code needed} bytes caberem na
+     * cota. So apaga replicas com menos requisicoes por minuto que o arquivo que vai entrar.
+     */
+    private boolean makeRoom(long needed, double incomingRate) {
+        long used = usedBytes();
+        if (used + needed <= quota) {
+            return true;
+        }
+        List<Replica> victims = new ArrayList<>(replicas.values());
+        victims.sort(Comparator.comparingLong(this::frequency));
+        List<Replica> evict = new ArrayList<>();
+        for (Replica victim : victims) {
+            if (used + needed <= quota) {
+                break;
+            }
+            if (node.getPopularity().getRate(victim.name) >= incomingRate) {
+                continue;
+            }
+            evict.add(victim);
+            used -= victim.size;
+        }
+        if (used + needed > quota) {
+            return false;
+        }
+        for (Replica victim : evict) {
+            evict(victim);
+        }
+        save();
+        return true;
+    }
+
+    private void evict(Replica replica) {
+        replicas.remove(replica.name);
+        try {
+            node.deleteLocalFile(replica.name);
+        } catch (IOException e) {
+            System.err.println("Erro ao apagar replica " + replica.name + ": " + e.getMessage());
+        }
+        node.getMetrics().increment("replica_cache_evictions_total");
+        System.out.printf("Replica %s removida (LFU, %d requisicoes).%n", replica.name, frequency(replica));
+    }
+
+    private long usedBytes() {
+        long used = 0;
+        for (Replica replica : replicas.values()) {
+            used += replica.size;
+        }
+        for (long size : pending.values()) {
+            used += size;
+        }
+        return used;
+    }
+
+    private long frequency(Replica replica) {
+        return replica.hits.sum();
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(statePath)) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(statePath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length != 3) {
+                    continue;
+                }
+                try {
+                    long size = Long.parseLong(fields[1]);
+                    // Replica apagada ou substituida pelo usuario deixa de ser da cache.
+                    if (node.resolveShared(fields[0]) != null && node.localFileSize(fields[0]) == size) {
+                        replicas.put(fields[0], new Replica(fields[0], size, Long.parseLong(fields[2])));
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("Linha invalida na lista de replicas: " + line);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao ler lista de replicas: " + e.getMessage());
+        }
+        System.out.printf("Cache de replicas: %d arquivos, %d de %d bytes.%n", replicas.size(), usedBytes(), quota);
+    }
+
+    synchronized void save() {
+        Path temp = statePath.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            Files.createDirectories(statePath.getParent());
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Replica replica : replicas.values()) {
+                    out.write(replica.name + " " + replica.size + " " + frequency(replica));
+                    out.newLine();
+                }
+            }
+            Files.move(temp, statePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Erro ao salvar lista de replicas: " + e.getMessage());
+        }
+    }
+
+    private static class Replica {
+        final String name;
+        final long size;
+        // DL atendidos desde que a replica chegou, somando execucoes anteriores.
+        final LongAdder hits = new LongAdder();
+
+        Replica(String name, long size, long savedHits) {
+            this.name = name;
+            this.size = size;
+            hits.add(savedHits);
+        }
+    }
+}
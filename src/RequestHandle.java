@@ -0,0 +1,37 @@
+import java.io.IOException;
+import java.net.Socket;
+
+class RequestHandle {
+    private Socket socket;
+    private boolean cancelled;
+    private long busyRetryAfterMs;
+
+    synchronized void attach(Socket socket) throws IOException {
+        this.socket = socket;
+        if (cancelled) {
+            socket.close();
+        }
+    }
+
+    synchronized void cancel() {
+        cancelled = true;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    synchronized void markBusy(long retryAfterMs) {
+        this.busyRetryAfterMs = retryAfterMs;
+    }
+
+    synchronized long getBusyRetryAfterMs() {
+        return busyRetryAfterMs;
+    }
+}
@@ -0,0 +1,169 @@
+import java.util.regex.Pattern;
+
+public class SearchQuery {
+    public static final int DEFAULT_LIMIT = 50;
+    public static final int MAX_LIMIT = 1000;
+
+    private enum Mode { ALL, PREFIX, SUBSTRING, GLOB }
+
+    private final String pattern;
+    private final Mode mode;
+    private final String literal;
+    private final Pattern glob;
+    private final long minSize;
+    private final long maxSize;
+    private final int limit;
+
+    private SearchQuery(String pattern, int limit, long minSize, long maxSize) {
+        this.pattern = pattern;
+        this.limit = limit;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+
+        if (pattern.equals("*")) {
+            this.mode = Mode.ALL;
+            this.literal = "";
+            this.glob = null;
+        } else if (pattern.indexOf('?') < 0 && pattern.indexOf('*') == pattern.length() - 1) {
+            this.mode = Mode.PREFIX;
+            this.literal = pattern.substring(0, pattern.length() - 1);
+            this.glob = null;
+        } else if (pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0) {
+            this.mode = Mode.GLOB;
+            this.literal = "";
+            this.glob = compileGlob(pattern);
+        } else {
+            this.mode = Mode.SUBSTRING;
+            this.literal = pattern;
+            this.glob = null;
+        }
+    }
+
+    /**
+     * Interpreta os argumentos de uma mensagem SEARCH: {@code <padrao> [limite] [min-max]}.
+     * Padroes terminados em '*' (sem outros curingas) sao prefixos, padroes com '*' ou '?'
+     * sao globs e qualquer outro texto e buscado como substring do nome.
+     */
+    public static SearchQuery parse(String argsString) {
+        String[] args = argsString.trim().split(" ");
+        if (args.length == 0 || args[0].isEmpty()) {
+            throw new IllegalArgumentException("Padrao de busca ausente.");
+        }
+        int limit = DEFAULT_LIMIT;
+        if (args.length > 1) {
+            limit = Integer.parseInt(args[1]);
+            if (limit <= 0) {
+                throw new IllegalArgumentException("Limite de busca invalido: " + args[1]);
+            }
+        }
+        long minSize = 0;
+        long maxSize = Long.MAX_VALUE;
+        if (args.length > 2) {
+            String range = args[2];
+            int dash = range.indexOf('-');
+            if (dash < 0) {
+                throw new IllegalArgumentException("Faixa de tamanho invalida: " + range);
+            }
+            String min = range.substring(0, dash);
+            String max = range.substring(dash + 1);
+            if (!min.isEmpty()) minSize = Long.parseLong(min);
+            if (!max.isEmpty()) maxSize = Long.parseLong(max);
+            if (minSize > maxSize) {
+                throw new IllegalArgumentException("Faixa de tamanho invalida: " + range);
+            }
+        }
+        return new SearchQuery(args[0], Math.min(limit, MAX_LIMIT), minSize, maxSize);
+    }
+
+    /** Como {@link #parse(String)}, lendo os campos de um SEARCH recebido direto da linha. */
+    static SearchQuery parse(MessageTokenizer tokens) {
+        String pattern = tokens.nextText();
+        if (pattern == null) {
+            throw new IllegalArgumentException("Padrao de busca ausente.");
+        }
+        int limit = DEFAULT_LIMIT;
+        if (tokens.next()) {
+            limit = tokens.parseInt(tokens.tokenStart(), tokens.tokenEnd());
+            if (limit <= 0) {
+                throw new IllegalArgumentException("Limite de busca invalido: " + tokens.tokenText());
+            }
+        }
+        long minSize = 0;
+        long maxSize = Long.MAX_VALUE;
+        if (tokens.next()) {
+            if (tokens.split((byte) '-') != 2) {
+                throw new IllegalArgumentException("Faixa de tamanho invalida: " + tokens.tokenText());
+            }
+            if (tokens.partEnd(0) > tokens.partStart(0)) minSize = tokens.partLong(0);
+            if (tokens.partEnd(1) > tokens.partStart(1)) maxSize = tokens.partLong(1);
+            if (minSize > maxSize) {
+                throw new IllegalArgumentException("Faixa de tamanho invalida: " + tokens.tokenText());
+            }
+        }
+        return new SearchQuery(pattern, Math.min(limit, MAX_LIMIT), minSize, maxSize);
+    }
+
+    public String toMessageArgs() {
+        StringBuilder sb = new StringBuilder(pattern).append(" ").append(limit);
+        if (minSize > 0 || maxSize < Long.MAX_VALUE) {
+            sb.append(" ");
+            if (minSize > 0) sb.append(minSize);
+            sb.append("-");
+            if (maxSize < Long.MAX_VALUE) sb.append(maxSize);
+        }
+        return sb.toString();
+    }
+
+    public boolean isPrefix() {
+        return mode == Mode.PREFIX || mode == Mode.ALL;
+    }
+
+    public String getPrefix() {
+        return literal;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public boolean matches(String fileName, long fileSize) {
+        if (fileSize < minSize || fileSize > maxSize) {
+            return false;
+        }
+        switch (mode) {
+            case ALL:
+                return true;
+            case PREFIX:
+                return fileName.startsWith(literal);
+            case SUBSTRING:
+                return fileName.contains(literal);
+            default:
+                return glob.matcher(fileName).matches();
+        }
+    }
+
+    private static Pattern compileGlob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literalRun = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literalRun.length() > 0) {
+                    regex.append(Pattern.quote(literalRun.toString()));
+                    literalRun.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literalRun.append(c);
+            }
+        }
+        if (literalRun.length() > 0) {
+            regex.append(Pattern.quote(literalRun.toString()));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    @Override
+    public String toString() {
+        return toMessageArgs();
+    }
+}
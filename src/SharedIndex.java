@@ -0,0 +1,98 @@
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.BiPredicate;
+
+public class SharedIndex {
+    private static final long RESCAN_INTERVAL_MS = 5000;
+
+    private final File sharedDir;
+    private volatile ChunkStore store;
+    private volatile NavigableMap<String, Long> entries = Collections.emptyNavigableMap();
+    private volatile boolean dirty = true;
+    private long lastScanAt = 0;
+    private long lastDirModified = -1;
+    private long version = 0;
+
+    public SharedIndex(File sharedDir) {
+        this.sharedDir = sharedDir;
+    }
+
+    /** Passa a incluir os arquivos guardados por conteudo. */
+    void setChunkStore(ChunkStore store) {
+        this.store = store;
+        dirty = true;
+    }
+
+    public void invalidate() {
+        dirty = true;
+    }
+
+    public synchronized long getVersion() {
+        refreshIfStale();
+        return version;
+    }
+
+    public NavigableMap<String, Long> snapshot() {
+        refreshIfStale();
+        return entries;
+    }
+
+    /**
+     * Percorre o indice entregando ao consumidor cada arquivo que satisfaz a consulta,
+     * parando quando o limite e atingido ou o consumidor devolve false.
+     * Buscas por prefixo percorrem apenas a faixa ordenada correspondente.
+     */
+    public int search(SearchQuery query, BiPredicate<String, Long> onMatch) {
+        NavigableMap<String, Long> view = snapshot();
+        if (query.isPrefix() && !query.getPrefix().isEmpty()) {
+            view = view.tailMap(query.getPrefix(), true);
+        }
+        int matches = 0;
+        for (Map.Entry<String, Long> entry : view.entrySet()) {
+            if (query.isPrefix() && !entry.getKey().startsWith(query.getPrefix())) {
+                break;
+            }
+            if (!query.matches(entry.getKey(), entry.getValue())) {
+                continue;
+            }
+            matches++;
+            if (!onMatch.test(entry.getKey(), entry.getValue()) || matches >= query.getLimit()) {
+                break;
+            }
+        }
+        return matches;
+    }
+
+    private synchronized void refreshIfStale() {
+        long now = System.currentTimeMillis();
+        long dirModified = sharedDir.lastModified();
+        if (!dirty && dirModified == lastDirModified && now - lastScanAt < RESCAN_INTERVAL_MS) {
+            return;
+        }
+        File[] files = sharedDir.listFiles(f -> f.isFile() && !f.getName().contains(" "));
+        NavigableMap<String, Long> fresh = new TreeMap<>();
+        ChunkStore current = store;
+        if (current != null) {
+            current.listFiles().forEach((name, size) -> {
+                if (!name.contains(" ")) {
+                    fresh.put(name, size);
+                }
+            });
+        }
+        if (files != null) {
+            for (File file : files) {
+                fresh.put(file.getName(), file.length());
+            }
+        }
+        if (!fresh.equals(entries)) {
+            version++;
+        }
+        entries = Collections.unmodifiableNavigableMap(fresh);
+        dirty = false;
+        lastScanAt = now;
+        lastDirModified = dirModified;
+    }
+}
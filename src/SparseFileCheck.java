@@ -0,0 +1,130 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exercita indices de chunk acima de 2^31 num arquivo esparso de mais de 16 GiB (chunks de 8
+ * bytes, 2^31 + 1024 chunks), com tres nos no loopback: A serve o arquivo inteiro, B baixa com
+ * DL os chunks em volta da fronteira para um {@link PartialFile} e C baixa de B esses chunks
+ * ainda parciais. Confere o conteudo de cada chunk, o mapa do parcial e os limites de DL.
+ * Precisa de ~1 GiB de heap (os mapas de 2^31 bits).
+ * Uso: java -Xmx1g SparseFileCheck [porta_base] [diretorio]
+ */
+public class SparseFileCheck {
+    private static final int CHUNK_SIZE = 8;
+    private static final long NUM_CHUNKS = (1L << 31) + 1024;
+    private static final int LAST_CHUNK_BYTES = 5;
+    private static final long FILE_SIZE = (NUM_CHUNKS - 1) * CHUNK_SIZE + LAST_CHUNK_BYTES;
+    private static final String FILE_NAME = "grande.bin";
+    private static final long BOUNDARY = 1L << 31;
+    private static final long[] INDICES = {0, BOUNDARY - 2, BOUNDARY - 1, BOUNDARY, BOUNDARY + 1, NUM_CHUNKS - 1};
+
+    private static PrintStream report;
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        int basePort = args.length > 0 ? Integer.parseInt(args[0]) : 17500;
+        Path base = args.length > 1 ? Files.createDirectories(Path.of(args[1])) : Files.createTempDirectory("eachare-esparso");
+        report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+
+        Path neighbors = base.resolve("vizinhos.txt");
+        Files.write(neighbors, new byte[0]);
+        Path source = Files.createDirectories(base.resolve("a")).resolve(FILE_NAME);
+        writeSparseSource(source);
+        report.printf("Arquivo esparso %s: %d bytes, %d chunks de %d bytes.%n", source, FILE_SIZE, NUM_CHUNKS, CHUNK_SIZE);
+
+        startNode(basePort, neighbors, base.resolve("a"));
+        Node b = startNode(basePort + 1, neighbors, Files.createDirectories(base.resolve("b")));
+        Node c = startNode(basePort + 2, neighbors, Files.createDirectories(base.resolve("c")));
+        Thread.sleep(300);
+        String host = "127.0.0.1";
+        try {
+            // DL de arquivo completo, com indices dos dois lados de 2^31.
+            PartialFile partial = b.getSwarm().startDownload(FILE_NAME, FILE_SIZE, CHUNK_SIZE);
+            for (long index : INDICES) {
+                byte[] data = download(b, host, basePort, CHUNK_SIZE, index);
+                check(data != null && Arrays.equals(data, expected(index)), "DL do chunk " + index + " de A");
+                if (data != null) {
+                    partial.writeChunk(index, data);
+                }
+            }
+            byte[] wide = download(b, host, basePort, 4, 1L << 32);
+            check(wide != null && Arrays.equals(wide, Arrays.copyOfRange(expected(1L << 31), 0, 4)), "DL com chunks de 4 bytes no indice 2^32");
+            check(download(b, host, basePort, CHUNK_SIZE, NUM_CHUNKS) == null, "DL alem do ultimo chunk recusado");
+
+            // Mapa e leitura do parcial em volta da fronteira.
+            check(partial.getChunkCount() == INDICES.length, "parcial com " + INDICES.length + " chunks");
+            check(partial.hasChunk(BOUNDARY) && !partial.hasChunk(BOUNDARY + 2), "hasChunk em 2^31 e 2^31+2");
+            check(partial.hasRange((BOUNDARY - 2) * CHUNK_SIZE, 4L * CHUNK_SIZE), "hasRange cruzando 2^31");
+            check(!partial.hasRange((BOUNDARY + 1) * CHUNK_SIZE, 2L * CHUNK_SIZE), "hasRange com buraco depois de 2^31");
+            byte[] read = new byte[CHUNK_SIZE];
+            partial.readRange(BOUNDARY * CHUNK_SIZE, read);
+            check(Arrays.equals(read, expected(BOUNDARY)), "readRange no chunk 2^31");
+
+            // DL servido do parcial de B.
+            for (long index : new long[]{BOUNDARY - 1, BOUNDARY, NUM_CHUNKS - 1}) {
+                byte[] data = download(c, host, basePort + 1, CHUNK_SIZE, index);
+                check(data != null && Arrays.equals(data, expected(index)), "DL do chunk " + index + " do parcial de B");
+            }
+            check(download(c, host, basePort + 1, CHUNK_SIZE, BOUNDARY + 2) == null, "DL de chunk que B ainda nao tem recusado");
+            b.getSwarm().finishDownload(partial, false);
+        } finally {
+            Files.deleteIfExists(source);
+        }
+        report.println(failures == 0 ? "Tudo certo." : failures + " verificacoes falharam.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static Node startNode(int port, Path neighbors, Path dir) {
+        Node node = new Node("127.0.0.1:" + port, neighbors.toString(), dir.toString());
+        Thread server = new Thread(node::startServer, "servidor-" + port);
+        server.setDaemon(true);
+        server.start();
+        return node;
+    }
+
+    /** Estende o arquivo ate o tamanho final e grava so os chunks usados nas verificacoes. */
+    private static void writeSparseSource(Path path) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+            raf.setLength(FILE_SIZE);
+            List<Long> indices = new ArrayList<>();
+            for (long index : INDICES) {
+                indices.add(index);
+            }
+            indices.add(BOUNDARY + 2);
+            for (long index : indices) {
+                raf.seek(index * CHUNK_SIZE);
+                raf.write(expected(index));
+            }
+        }
+    }
+
+    /** Conteudo do chunk: o proprio indice em big-endian (cortado no ultimo chunk). */
+    private static byte[] expected(long index) {
+        byte[] data = ByteBuffer.allocate(Long.BYTES).putLong(index).array();
+        return index == NUM_CHUNKS - 1 ? Arrays.copyOf(data, LAST_CHUNK_BYTES) : data;
+    }
+
+    private static byte[] download(Node client, String host, int port, int chunkSize, long index) throws InterruptedException {
+        try (PeerClient.Chunk chunk = client.getPeerClient().downloadChunk(host, port, FILE_NAME, chunkSize, index, "").get(10, TimeUnit.SECONDS)) {
+            return chunk.toByteArray();
+        } catch (ExecutionException | java.util.concurrent.TimeoutException e) {
+            return null;
+        }
+    }
+
+    private static void check(boolean ok, String description) {
+        report.printf("[%s] %s%n", ok ? "ok" : "FALHOU", description);
+        if (!ok) {
+            failures++;
+        }
+    }
+}
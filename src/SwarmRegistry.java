@@ -0,0 +1,94 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class SwarmRegistry {
+    public static final String PARTIAL_DIR = ".parcial";
+    private static final int MAX_MEMBERS_PER_FILE = 32;
+    /** Arquivos com membros lembrados; o menos consultado sai quando passa disso. */
+    private static final int MAX_TRACKED_FILES = 1024;
+
+    private final File sharedDir;
+    private final Map<String, PartialFile> partialFiles = new ConcurrentHashMap<>();
+    // Ordem de acesso: o primeiro e o arquivo consultado ha mais tempo. Acesso sob synchronized (members).
+    private final LinkedHashMap<String, LinkedHashSet<String>> members = new LinkedHashMap<>(16, 0.75f, true);
+
+    public SwarmRegistry(File sharedDir) {
+        this.sharedDir = sharedDir;
+    }
+
+    public PartialFile startDownload(String fileName, long fileSize, int chunkSize) throws IOException {
+        Path path = Paths.get(sharedDir.getAbsolutePath(), PARTIAL_DIR, fileName);
+        PartialFile partial = new PartialFile(path, fileName, fileSize, chunkSize);
+        PartialFile previous = partialFiles.put(fileName, partial);
+        if (previous != null) {
+            previous.discard();
+        }
+        return partial;
+    }
+
+    public void finishDownload(PartialFile partial, boolean success) throws IOException {
+        partialFiles.remove(partial.getFileName(), partial);
+        if (success) {
+            partial.moveTo(Paths.get(sharedDir.getAbsolutePath(), partial.getFileName()));
+        } else {
+            partial.discard();
+        }
+    }
+
+    public PartialFile getPartialFile(String fileName) {
+        return partialFiles.get(fileName);
+    }
+
+    public Collection<PartialFile> getPartialFiles() {
+        return partialFiles.values();
+    }
+
+    /**
+     * Lembra {@code address} como membro do enxame de {@code fileName}. So deve ser chamado
+     * para arquivos que este no tem (completos ou parciais).
+     */
+    public void recordMember(String fileName, String address) {
+        LinkedHashSet<String> set;
+        synchronized (members) {
+            set = members.computeIfAbsent(fileName, k -> new LinkedHashSet<>());
+            if (members.size() > MAX_TRACKED_FILES) {
+                Iterator<String> eldest = members.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        synchronized (set) {
+            set.remove(address);
+            set.add(address);
+            if (set.size() > MAX_MEMBERS_PER_FILE) {
+                Iterator<String> oldest = set.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+    }
+
+    public List<String> getMembers(String fileName, String exclude, int max) {
+        LinkedHashSet<String> set;
+        synchronized (members) {
+            set = members.get(fileName);
+        }
+        if (set == null) return Collections.emptyList();
+        List<String> result = new ArrayList<>();
+        synchronized (set) {
+            List<String> recentFirst = new ArrayList<>(set);
+            Collections.reverse(recentFirst);
+            for (String address : recentFirst) {
+                if (!address.equals(exclude)) {
+                    result.add(address);
+                    if (result.size() == max) break;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,47 @@
+public class TokenBucket {
+    private volatile long ratePerSecond;
+    private long capacity;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    public TokenBucket(long ratePerSecond, long capacity) {
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = capacity;
+        this.tokens = capacity;
+    }
+
+    public long getRate() {
+        return ratePerSecond;
+    }
+
+    public synchronized void setRate(long ratePerSecond, long capacity) {
+        refill();
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = capacity;
+        this.tokens = Math.min(tokens, capacity);
+    }
+
+    /**
+     * Consome os tokens imediatamente (o saldo pode ficar negativo para requisicoes maiores
+     * que a capacidade) e devolve quantos nanossegundos o chamador deve esperar.
+     */
+    public synchronized long reserve(long amount) {
+        if (ratePerSecond <= 0) {
+            return 0;
+        }
+        refill();
+        tokens -= amount;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) (-tokens * 1_000_000_000.0 / ratePerSecond);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (ratePerSecond > 0) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerSecond / 1_000_000_000.0);
+        }
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,130 @@
+import jdk.jfr.*;
+
+/**
+ * Eventos do JDK Flight Recorder emitidos nos caminhos quentes do protocolo. Gravar com
+ * {@code --jfr[=arquivo]} ou {@code -XX:StartFlightRecording} e abrir no JMC ou com
+ * {@code jfr print --categories EACHare}.
+ *
+ * <p>Com a gravacao desligada cada evento custa um teste de flag: quem emite chama
+ * {@code begin()}/{@code end()} e so preenche os campos (e monta strings) depois de
+ * {@code shouldCommit()}. Os eventos com duracao tem um limiar padrao para que uma gravacao
+ * continua nao fique cheia de requisicoes triviais; sem pilha, que custaria mais que o evento.
+ */
+final class TraceEvents {
+    private TraceEvents() {
+    }
+
+    @Name("eachare.MessageHandled")
+    @Label("Mensagem Atendida")
+    @Description("Requisicao recebida pelo servidor, da leitura do cabecalho ao fim do despacho")
+    @Category({"EACHare", "Protocolo"})
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static class MessageHandled extends Event {
+        @Label("Origem")
+        String origin;
+        @Label("Tipo")
+        String type;
+        @Label("Tamanho da Requisicao")
+        @DataAmount
+        int requestBytes;
+        @Label("Clock")
+        int clock;
+    }
+
+    @Name("eachare.ChunkServed")
+    @Label("Chunk Servido")
+    @Description("Resposta FILE a um DL: leitura (ou cache), codificacao, limite de banda e envio")
+    @Category({"EACHare", "Transferencia"})
+    @Threshold("5 ms")
+    @StackTrace(false)
+    static class ChunkServed extends Event {
+        @Label("Destino")
+        String peer;
+        @Label("Arquivo")
+        String file;
+        @Label("Indice")
+        long chunkIndex;
+        @Label("Offset")
+        @DataAmount
+        long offset;
+        @Label("Bytes do Chunk")
+        @DataAmount
+        long bytes;
+        @Label("Bytes Enviados")
+        @DataAmount
+        long payloadBytes;
+        @Label("Codec Negociado")
+        String codec;
+        @Label("Do Cache")
+        boolean cached;
+        @Label("Parcial")
+        boolean partial;
+    }
+
+    @Name("eachare.PeerRequest")
+    @Label("Requisicao a Peer")
+    @Description("Ida e volta de uma requisicao de saida: conexao, envio e espera pela resposta")
+    @Category({"EACHare", "Protocolo"})
+    @Threshold("20 ms")
+    @StackTrace(false)
+    static class PeerRequest extends Event {
+        @Label("Peer")
+        String peer;
+        @Label("Tipo")
+        String type;
+        @Label("Conexao")
+        @Timespan(Timespan.NANOSECONDS)
+        long connectTime;
+        @Label("Espera pela Resposta")
+        @Timespan(Timespan.NANOSECONDS)
+        long waitTime;
+        @Label("Bytes Recebidos")
+        @DataAmount
+        long responseBytes;
+        @Label("Sucesso")
+        boolean success;
+    }
+
+    @Name("eachare.ChunkScheduled")
+    @Label("Chunk Agendado")
+    @Description("Decisao do download: chunk escolhido para uma fonte (pick) ou duplicado em outra (hedge)")
+    @Category({"EACHare", "Transferencia"})
+    @StackTrace(false)
+    static class ChunkScheduled extends Event {
+        @Label("Arquivo")
+        String file;
+        @Label("Indice")
+        long chunkIndex;
+        @Label("Fonte")
+        String source;
+        @Label("Decisao")
+        String decision;
+        @Label("Conexao da Fonte")
+        int lane;
+        @Label("Tempo Esperado (ms)")
+        double expectedMs;
+    }
+
+    @Name("eachare.PeerStatusChanged")
+    @Label("Status de Peer")
+    @Description("Transicao ONLINE/OFFLINE de um peer na tabela")
+    @Category({"EACHare", "Peers"})
+    @StackTrace(false)
+    static class PeerStatusChanged extends Event {
+        @Label("Peer")
+        String peer;
+        @Label("Status Anterior")
+        String previous;
+        @Label("Status")
+        String status;
+        @Label("Clock do Peer")
+        int peerClock;
+    }
+
+    /** Tipo da mensagem numa linha {@code <origem> <clock> <TIPO> ...}, para os eventos. */
+    static String typeOf(MessageBuffer line) {
+        String[] fields = line.toString(0, 96).split(" ", 4);
+        return fields.length > 2 ? fields[2].trim() : "?";
+    }
+}